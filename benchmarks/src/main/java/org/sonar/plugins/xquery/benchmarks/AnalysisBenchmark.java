@@ -0,0 +1,100 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.XQueryPlugin;
+import org.sonar.plugins.xquery.analysis.ProjectAnalyzer;
+import org.sonar.plugins.xquery.api.XQueryConstants;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs both passes of the analysis over the corpus like the sensor does,
+ * with all the checks and the default settings of the plugin, but without
+ * saving anything to Sonar.
+ *
+ * One operation is the analysis of all the files of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private Corpus corpus;
+    private Settings settings;
+    private int saved;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        settings = new Settings(new PropertyDefinitions(XQueryPlugin.class));
+        settings.setProperty(XQueryConstants.THREADS_KEY, threads);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public int analyze() {
+        saved = 0;
+        ProjectAnalyzer analyzer = new ProjectAnalyzer(settings) {
+            @Override
+            protected SourceCode createSourceCode(File file) {
+                return new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+            }
+
+            @Override
+            protected List<XQueryAstVisitor> createChecks() {
+                List<XQueryAstVisitor> checks = new ArrayList<XQueryAstVisitor>();
+                for (Class<?> checkClass : CheckClasses.getChecks()) {
+                    try {
+                        checks.add((XQueryAstVisitor) checkClass.newInstance());
+                    } catch (Exception e) {
+                        throw new SonarException(e);
+                    }
+                }
+                return checks;
+            }
+
+            @Override
+            protected void save(SourceCode sourceCode) {
+                saved += sourceCode.getIssues().size() + sourceCode.getMeasures().size();
+            }
+        };
+        List<File> files = corpus.getFiles();
+        analyzer.analyze(files, analyzer.mapDependencies(files));
+        return saved;
+    }
+}
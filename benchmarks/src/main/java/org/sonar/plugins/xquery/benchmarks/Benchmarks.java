@@ -0,0 +1,31 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so each result has the bytes
+ * allocated per operation next to the operations per second. Takes the
+ * usual JMH options, like a pattern of the benchmarks to run or "-rf json"
+ * to keep the results for comparing them with a later run.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstDispatcher;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one check at a time over the trees of the corpus, the same way the
+ * analysis runs it but without the other checks. The trees are parsed and
+ * the global declarations mapped up front, so only the check is measured
+ * (and the walk over the tree, see {@link TraversalBenchmark}).
+ *
+ * There is a parameter value for each of the checks in
+ * {@link CheckClasses#getChecks()}, new checks have to be added to it.
+ *
+ * One operation is one pass over all the files of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckBenchmark {
+
+    @Param({
+        "DynamicFunctionCheck",
+        "EffectiveBooleanCheck",
+        "FunctionMappingCheck",
+        "OperationsInPredicateCheck",
+        "OrderByRangeCheck",
+        "ParseErrorCheck",
+        "SkippedFileCheck",
+        "StrongTypingInFLWORCheck",
+        "StrongTypingInFunctionDeclarationCheck",
+        "StrongTypingInModuleVariableCheck",
+        "XPathDescendantStepsCheck",
+        "XPathSubExpressionsInPredicateCheck",
+        "XPathTextStepsCheck",
+        "XQueryVersionCheck"
+    })
+    public String check;
+
+    private Corpus corpus;
+    private List<SourceCode> sources;
+    private List<XQueryTree> trees;
+    private List<ProblemReporter> reporters;
+    private List<XQueryAstParser> parsers;
+    private DependencyMapper mapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        sources = corpus.createSourceCode();
+        trees = new ArrayList<XQueryTree>();
+        reporters = new ArrayList<ProblemReporter>();
+        mapper = new DependencyMapper();
+        for (SourceCode sourceCode : sources) {
+            ProblemReporter reporter = new ProblemReporter();
+            XQueryAstParser parser = new XQueryAstParser(sourceCode, new ArrayList<XQueryAstVisitor>());
+            XQueryTree tree = parser.parse(reporter);
+            DependencyMapper fileMapper = new DependencyMapper();
+            parser.mapDependencies(tree, fileMapper);
+            mapper.addGlobalDeclarations(fileMapper);
+            trees.add(tree);
+            reporters.add(reporter);
+        }
+        mapper.setMode("local");
+        mapper = mapper.createLocalMapper();
+
+        XQueryAstDispatcher dispatcher = new XQueryAstDispatcher(Arrays.asList(new XQueryAstVisitor[] { createCheck() }));
+        parsers = new ArrayList<XQueryAstParser>();
+        for (SourceCode sourceCode : sources) {
+            XQueryAstParser parser = new XQueryAstParser(sourceCode, dispatcher.getVisitors());
+            parser.setDispatcher(dispatcher);
+            parsers.add(parser);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public int process() {
+        int issues = 0;
+        for (int i = 0; i < parsers.size(); i++) {
+            // Start over so the issues don't pile up from one pass to the next
+            SourceCode sourceCode = sources.get(i);
+            sourceCode.getIssues().clear();
+            parsers.get(i).process(trees.get(i), mapper, reporters.get(i));
+            issues += sourceCode.getIssues().size();
+        }
+        return issues;
+    }
+
+    private XQueryAstVisitor createCheck() throws Exception {
+        for (Class<?> checkClass : CheckClasses.getChecks()) {
+            if (checkClass.getSimpleName().equals(check)) {
+                return (XQueryAstVisitor) checkClass.newInstance();
+            }
+        }
+        throw new SonarException("There is no check named " + check);
+    }
+}
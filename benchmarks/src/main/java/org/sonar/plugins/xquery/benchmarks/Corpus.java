@@ -0,0 +1,121 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fixed set of XQuery files the benchmarks run over: a couple of library
+ * modules and main modules with the FLWOR expressions, XML constructors and
+ * string literals that make the lexers switch, like a real project has.
+ * The files never change so the results of different runs can be compared.
+ * They are copied from the classpath to a temporary directory, so they can
+ * be read like the files of a project.
+ */
+public final class Corpus {
+
+    public static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList(
+        "util.xqy", "test.xqy", "search.xqy", "report.xqy"));
+
+    private final File directory;
+    private final List<File> files = new ArrayList<File>();
+    private final List<String> code = new ArrayList<String>();
+
+    private Corpus(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Copies the files of the corpus to a new temporary directory.
+     */
+    public static Corpus load() throws IOException {
+        File directory = File.createTempFile("xquery-corpus", "");
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+
+        Corpus corpus = new Corpus(directory);
+        for (String name : NAMES) {
+            InputStream in = Corpus.class.getResourceAsStream("corpus/" + name);
+            if (in == null) {
+                throw new SonarException("The corpus file " + name + " is missing");
+            }
+            try {
+                String code = IOUtils.toString(in, "UTF-8");
+                File file = new File(directory, name);
+                FileUtils.writeStringToFile(file, code, "UTF-8");
+                corpus.files.add(file);
+                corpus.code.add(code);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Deletes the copies of the files.
+     */
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public String getCode(int index) {
+        return code.get(index);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Creates the source code objects of the files, with the code already
+     * read so that using them doesn't read the files again.
+     */
+    public List<SourceCode> createSourceCode() {
+        List<SourceCode> sources = new ArrayList<SourceCode>();
+        for (File file : files) {
+            SourceCode sourceCode = new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+            sourceCode.getSource();
+            sources.add(sourceCode);
+        }
+        return sources;
+    }
+
+    /**
+     * Parses each of the files.
+     */
+    public static List<XQueryTree> parse(List<SourceCode> sources) {
+        List<XQueryTree> trees = new ArrayList<XQueryTree>();
+        for (SourceCode sourceCode : sources) {
+            XQueryAstParser parser = new XQueryAstParser(sourceCode, Collections.<XQueryAstVisitor>emptyList());
+            try {
+                trees.add(parser.parse(new ProblemReporter()));
+            } catch (Exception e) {
+                throw new SonarException("Could not parse " + sourceCode, e);
+            }
+        }
+        return trees;
+    }
+}
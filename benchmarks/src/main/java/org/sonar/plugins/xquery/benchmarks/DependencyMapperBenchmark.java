@@ -0,0 +1,100 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the dependency mapper: mapping the global declarations of the
+ * corpus (the first pass of the analysis, without the parsing) and looking
+ * up the functions and variables it found through a local mapper, like the
+ * checks do.
+ *
+ * One operation is one pass over all the files of the corpus, or one lookup
+ * of each declaration (and of a missing one for each).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DependencyMapperBenchmark {
+
+    private Corpus corpus;
+    private List<XQueryTree> trees;
+    private List<XQueryAstParser> parsers;
+    private DependencyMapper localMapper;
+    private List<Declaration> declarations;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        List<SourceCode> sources = corpus.createSourceCode();
+        trees = Corpus.parse(sources);
+        parsers = new ArrayList<XQueryAstParser>();
+        for (SourceCode sourceCode : sources) {
+            parsers.add(new XQueryAstParser(sourceCode, Collections.<XQueryAstVisitor>emptyList()));
+        }
+
+        DependencyMapper mapper = map();
+        mapper.setMode("local");
+        localMapper = mapper.createLocalMapper();
+        localMapper.enterStack();
+        declarations = new ArrayList<Declaration>(mapper.getGlobalDeclarations().values());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public DependencyMapper map() {
+        DependencyMapper mapper = new DependencyMapper();
+        for (int i = 0; i < trees.size(); i++) {
+            DependencyMapper fileMapper = new DependencyMapper();
+            parsers.get(i).mapDependencies(trees.get(i), fileMapper);
+            mapper.addGlobalDeclarations(fileMapper);
+        }
+        return mapper;
+    }
+
+    @Benchmark
+    public void lookup(Blackhole blackhole) {
+        for (Declaration declaration : declarations) {
+            if (declaration instanceof Function) {
+                blackhole.consume(localMapper.getFunctionDeclaration(declaration.getName(), declaration.getNamespace()));
+                blackhole.consume(localMapper.getFunctionDeclaration(declaration.getName() + "-missing", declaration.getNamespace()));
+            } else {
+                blackhole.consume(localMapper.getVariableDeclaration(declaration.getName(), declaration.getNamespace()));
+                blackhole.consume(localMapper.getVariableDeclaration(declaration.getName() + "-missing", declaration.getNamespace()));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a large generated module that stresses one part of the parser,
+ * where the corpus only has a bit of everything:
+ * <ul>
+ * <li>comments: a comment and some whitespace between most of the tokens, so
+ * the parser has to look past many hidden tokens every time it looks ahead</li>
+ * <li>xml: mostly direct XML constructors, where the parser switches lexers
+ * for every element, attribute value and enclosed expression</li>
+ * </ul>
+ *
+ * One operation is one parse of the module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratedSourceBenchmark {
+
+    @Param({ "comments", "xml" })
+    public String shape;
+
+    private SourceCode sourceCode;
+
+    @Setup
+    public void setUp() {
+        sourceCode = new XQuerySourceCode("comments".equals(shape) ? generateComments(500) : generateXml(2000));
+    }
+
+    @Benchmark
+    public XQueryTree parse() throws Exception {
+        XQueryAstParser parser = new XQueryAstParser(sourceCode, Collections.<XQueryAstVisitor>emptyList());
+        return parser.parse(new ProblemReporter());
+    }
+
+    private static String generateComments(int functions) {
+        StringBuffer code = new StringBuffer();
+        code.append("xquery version '1.0-ml';\n");
+        for (int i = 0; i < functions; i++) {
+            code.append("(:~\n : Sums the values of the items for case ").append(i).append("\n :)\n");
+            code.append("declare function local:sum").append(i).append("(\n");
+            code.append("    $items (: the items :) as element()* (: any element :)\n");
+            code.append(") (: returns :) as xs:integer\n");
+            code.append("{\n");
+            code.append("    (: filter the items :)\n");
+            code.append("    let $valid (: only the valid ones :) := $items[ (: predicate :) @valid (: attribute :) eq 'true' ]\n");
+            code.append("    (: then add them up :)\n");
+            code.append("    return\n");
+            code.append("        fn:sum( (: all of them :)\n");
+            code.append("            for $item (: each :) in $valid (: sequence :)\n");
+            code.append("            return (: value :) xs:integer( $item/@value ) (: cast :) * ").append(i).append(" (: factor :)\n");
+            code.append("        ) (: end sum :)\n");
+            code.append("};\n\n");
+        }
+        code.append("(: call them all :)\n");
+        code.append("local:sum0( (: nothing :) () )\n");
+        return code.toString();
+    }
+
+    private static String generateXml(int elements) {
+        StringBuffer code = new StringBuffer();
+        code.append("xquery version '1.0-ml';\n");
+        code.append("declare namespace xh = 'http://www.w3.org/1999/xhtml';\n");
+        code.append("<xh:html>\n");
+        for (int i = 0; i < elements; i++) {
+            code.append("    <xh:div id=\"item-").append(i).append("\" class='row {$class}'>\n");
+            code.append("        <xh:span title=\"{fn:concat('Item ', ").append(i).append(")}\">Item ").append(i).append("</xh:span>\n");
+            code.append("        <!-- separator -->\n");
+            code.append("        { if (").append(i).append(" mod 2 eq 0) then <xh:b>even</xh:b> else <xh:i>odd</xh:i> }\n");
+            code.append("    </xh:div>\n");
+        }
+        code.append("</xh:html>\n");
+        return code.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.antlr.runtime.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.plugins.xquery.language.SourceBuffer;
+import org.sonar.plugins.xquery.parser.SourceCharStream;
+import org.sonar.plugins.xquery.parser.XQueryLexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads all the tokens of the corpus with the XQuery lexer alone. The parser
+ * is what switches to the XML and string lexers, so here the XML and string
+ * content is read as XQuery tokens too: this measures the raw speed of the
+ * lexer, not how a file is lexed while it is parsed.
+ *
+ * One operation is one pass over all the files of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    private Corpus corpus;
+    private List<SourceBuffer> sources;
+    private XQueryLexer lexer;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        sources = new ArrayList<SourceBuffer>();
+        for (int i = 0; i < corpus.size(); i++) {
+            sources.add(new SourceBuffer(corpus.getCode(i)));
+        }
+        lexer = new XQueryLexer();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public int lex() {
+        int tokens = 0;
+        for (SourceBuffer source : sources) {
+            lexer.setCharStream(new SourceCharStream(source));
+            for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the corpus from the characters to the finished tree, the way the
+ * analysis does: XQueryParser.p_Module with the lexers it switches between
+ * and the tree adaptor.
+ *
+ * One operation is one pass over all the files of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({ "true", "false" })
+    public boolean compactTokens;
+
+    private Corpus corpus;
+    private List<SourceCode> sources;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        sources = corpus.createSourceCode();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        for (SourceCode sourceCode : sources) {
+            XQueryAstParser parser = new XQueryAstParser(sourceCode, Collections.<XQueryAstVisitor>emptyList());
+            parser.setCompactTokens(compactTokens);
+            blackhole.consume(parser.parse(new ProblemReporter()));
+        }
+    }
+}
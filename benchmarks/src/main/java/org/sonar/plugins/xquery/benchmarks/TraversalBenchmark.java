@@ -0,0 +1,62 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstDispatcher;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks the trees of the corpus with a dispatcher that has no visitors, the
+ * cost of the traversal that every check and the mapper share.
+ *
+ * One operation is one walk over the trees of all the files of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraversalBenchmark {
+
+    private Corpus corpus;
+    private List<XQueryTree> trees;
+    private XQueryAstDispatcher dispatcher;
+
+    @Setup
+    public void setUp() throws Exception {
+        corpus = Corpus.load();
+        trees = Corpus.parse(corpus.createSourceCode());
+        dispatcher = new XQueryAstDispatcher(Collections.<XQueryAstVisitor>emptyList());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public void visit() {
+        for (XQueryTree tree : trees) {
+            dispatcher.visit(tree);
+        }
+    }
+}
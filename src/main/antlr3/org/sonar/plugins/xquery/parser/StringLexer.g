@@ -33,6 +33,11 @@ package org.sonar.plugins.xquery.parser;
 	
 	public StringLexer(CharStream input, boolean isAposStr) {
 		this(input, new RecognizerSharedState());
+		setAposStr(isAposStr);
+	}
+	
+	// Starts a string with the quote, so the lexer can be used again
+	public void setAposStr(boolean isAposStr) {
 		this.inAposStr = isAposStr;
 		this.inQuotStr = !isAposStr;
 		setIsWsExplicit(true);
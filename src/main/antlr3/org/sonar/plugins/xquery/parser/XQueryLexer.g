@@ -47,7 +47,13 @@ package org.sonar.plugins.xquery.parser;
 
 	public boolean isInString() {
 		return inStr;
-	}	
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		inStr = false;
+	}
 }
 
 
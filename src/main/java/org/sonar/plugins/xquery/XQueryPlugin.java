@@ -7,6 +7,7 @@ package org.sonar.plugins.xquery;
 import com.google.common.collect.ImmutableList;
 import org.sonar.api.Properties;
 import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
 import org.sonar.api.SonarPlugin;
 import org.sonar.plugins.xquery.api.XQueryConstants;
 import org.sonar.plugins.xquery.language.XQuery;
@@ -37,7 +38,109 @@ import java.util.List;
         description = "Path (absolute or relative) to XML report files.",
         defaultValue = XQueryConstants.DEFAULT_XQTEST_DIRECTORY,
         project = true,
-        global = false)
+        global = false),
+    @Property(key = XQueryConstants.THREADS_KEY,
+        name = "Analysis threads",
+        description = "Number of threads used to analyze files. Use 0 for one thread per available processor, or 1 to analyze the files sequentially (the analysis is then never pipelined). When the analysis is pipelined, half of the threads parse the files and the others run the checks.",
+        defaultValue = XQueryConstants.DEFAULT_THREADS,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.TREE_CACHE_SIZE_KEY,
+        name = "Syntax tree cache size",
+        description = "Memory (in MB) used to keep the syntax trees parsed while mapping dependencies so files don't have to be parsed again for analysis. Only used when the mapping pass parses complete files. Use 0 to disable.",
+        defaultValue = XQueryConstants.DEFAULT_TREE_CACHE_SIZE,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.DECLARATIONS_ONLY_MAPPING_KEY,
+        name = "Map declarations only",
+        description = "Only parse the module declarations, imports, function signatures and variable declarations of library modules while mapping dependencies, skipping the function bodies.",
+        defaultValue = XQueryConstants.DEFAULT_DECLARATIONS_ONLY_MAPPING,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.ANALYSIS_CACHE_KEY,
+        name = "Analysis cache",
+        description = "Keep the results of each file in the working directory and reuse them in the next analysis when neither the file, the modules it imports nor the rules have changed.",
+        defaultValue = XQueryConstants.DEFAULT_ANALYSIS_CACHE,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.SYMBOL_INDEX_KEY,
+        name = "Symbol index",
+        description = "Keep the module functions and variables declared in each file in the working directory so that only changed files have to be parsed to map dependencies.",
+        defaultValue = XQueryConstants.DEFAULT_SYMBOL_INDEX,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.COMPACT_TOKENS_KEY,
+        name = "Compact tokens",
+        description = "Keep the tokens of the file being parsed in compact arrays, only creating token objects for the tokens the parser uses. Uses much less memory for large files.",
+        defaultValue = XQueryConstants.DEFAULT_COMPACT_TOKENS,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.TREE_DUMP_FILES_KEY,
+        name = "Syntax tree dumps",
+        description = "Comma-separated patterns of the files (relative to the project, like **/lib/*.xqy) whose syntax trees are written to the xquery-trees directory of the working directory. For diagnosing parsing problems, leave empty otherwise.",
+        defaultValue = XQueryConstants.DEFAULT_TREE_DUMP_FILES,
+        global = false,
+        project = true),
+    @Property(key = XQueryConstants.PARSE_ERROR_LIMIT_KEY,
+        name = "Parse error limit",
+        description = "Number of syntax errors after which a file stops being parsed. The file then gets one parse error issue and only its line metrics. Use 0 for no limit.",
+        defaultValue = XQueryConstants.DEFAULT_PARSE_ERROR_LIMIT,
+        global = true,
+        project = true,
+        type = PropertyType.INTEGER),
+    @Property(key = XQueryConstants.PARSE_RECOVERY_TIMEOUT_KEY,
+        name = "Parse recovery timeout",
+        description = "Time (in milliseconds) after the first syntax error of a file after which the file stops being parsed, like with the parse error limit. Use 0 for no limit.",
+        defaultValue = XQueryConstants.DEFAULT_PARSE_RECOVERY_TIMEOUT,
+        global = true,
+        project = true,
+        type = PropertyType.INTEGER),
+    @Property(key = XQueryConstants.FILE_TIME_BUDGET_KEY,
+        name = "File time budget",
+        description = "Time (in milliseconds) each file can take to be mapped or analyzed. Files that take longer are skipped with a Skipped File issue and only get their line metrics. Use 0 for no limit.",
+        defaultValue = XQueryConstants.DEFAULT_FILE_TIME_BUDGET,
+        global = true,
+        project = true,
+        type = PropertyType.INTEGER),
+    @Property(key = XQueryConstants.FILE_MEMORY_BUDGET_KEY,
+        name = "File memory budget",
+        description = "Memory (in MB) that can be allocated to map or analyze each file, files that need more are skipped like with the time budget. Needs a JVM that can measure the memory allocated by a thread. Use 0 for no limit.",
+        defaultValue = XQueryConstants.DEFAULT_FILE_MEMORY_BUDGET,
+        global = true,
+        project = true,
+        type = PropertyType.INTEGER),
+    @Property(key = XQueryConstants.PROFILE_KEY,
+        name = "Profile the analysis",
+        description = "Measures the time and memory of each phase, check and file of the analysis, logs the totals and writes them to xquery-profile.json in the working directory. Makes the analysis slower, leave off unless looking for what makes it slow.",
+        defaultValue = XQueryConstants.DEFAULT_PROFILE,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.STREAMING_KEY,
+        name = "Streaming analysis",
+        description = "Keep nothing of a file in memory once its results are saved, so the memory used doesn't grow with the number of files apart from the declarations of the library modules. Only the declarations are parsed while mapping dependencies, no syntax trees are kept for the analysis and the analysis cache is not used.",
+        defaultValue = XQueryConstants.DEFAULT_STREAMING,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.PIPELINE_KEY,
+        name = "Pipelined analysis",
+        description = "Read, parse and check the files in separate stages with their own threads while the results are saved, instead of doing all of it for one file at a time. Only used with more than one analysis thread. The files each stage processed and how full its queue was are logged.",
+        defaultValue = XQueryConstants.DEFAULT_PIPELINE,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN),
+    @Property(key = XQueryConstants.SCHEDULE_KEY,
+        name = "Schedule the files by cost",
+        description = "Start the files that took the longest in the previous run (or the largest ones, the first time) first, so the threads don't wait for a big file at the end. How busy the threads were and which file was done last are logged.",
+        defaultValue = XQueryConstants.DEFAULT_SCHEDULE,
+        global = true,
+        project = true,
+        type = PropertyType.BOOLEAN)
 })
 public class XQueryPlugin extends SonarPlugin {
 
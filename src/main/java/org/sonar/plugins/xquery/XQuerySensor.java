@@ -9,27 +9,32 @@ import org.sonar.api.batch.SensorContext;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.checks.AnnotationCheckFactory;
 import org.sonar.api.component.ResourcePerspectives;
+import org.sonar.api.config.Settings;
 import org.sonar.api.design.Dependency;
 import org.sonar.api.issue.Issuable;
 import org.sonar.api.measures.Measure;
 import org.sonar.api.profiles.RulesProfile;
 import org.sonar.api.resources.Project;
+import org.sonar.api.rules.ActiveRule;
+import org.sonar.api.rules.ActiveRuleParam;
+import org.sonar.plugins.xquery.analysis.AnalysisProfile;
+import org.sonar.plugins.xquery.analysis.FileSchedule;
+import org.sonar.plugins.xquery.analysis.ProjectAnalyzer;
+import org.sonar.plugins.xquery.analysis.ResultCache;
+import org.sonar.plugins.xquery.analysis.SymbolIndex;
+import org.sonar.plugins.xquery.analysis.TreeDumps;
 import org.sonar.plugins.xquery.api.XQueryConstants;
 import org.sonar.plugins.xquery.language.Issue;
 import org.sonar.plugins.xquery.language.SourceCode;
-import org.sonar.plugins.xquery.language.XQueryLineCountParser;
 import org.sonar.plugins.xquery.language.XQuerySourceCode;
-import org.sonar.plugins.xquery.parser.XQueryTree;
 import org.sonar.plugins.xquery.parser.node.DependencyMapper;
-import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
-import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
 import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,15 +43,17 @@ public class XQuerySensor implements Sensor {
 
     private static final Logger logger = Logger.getLogger(XQuerySensor.class.getName());
 
+    private final RulesProfile profile;
     private final ResourcePerspectives perspectives;
     private final FileSystem fileSystem;
-    private final AnnotationCheckFactory annotationCheckFactory;
+    private final Settings settings;
     private Project project;
 
-    public XQuerySensor(RulesProfile profile, ResourcePerspectives perspectives, FileSystem fileSystem) {
+    public XQuerySensor(RulesProfile profile, ResourcePerspectives perspectives, FileSystem fileSystem, Settings settings) {
+        this.profile = profile;
         this.perspectives = perspectives;
         this.fileSystem = fileSystem;
-        this.annotationCheckFactory = AnnotationCheckFactory.create(profile, CheckClasses.REPOSITORY_KEY, CheckClasses.getChecks());
+        this.settings = settings;
     }
 
     org.sonar.api.resources.File getSonarResource(java.io.File file) {
@@ -54,66 +61,81 @@ public class XQuerySensor implements Sensor {
     }
 
     @Override
-    public void analyse(Project project, SensorContext context) {
+    public void analyse(Project project, final SensorContext context) {
         this.project = project;
 
-        Collection<XQueryAstVisitor> checks = annotationCheckFactory.getChecks();
-        List<XQueryAstVisitor> visitors = new ArrayList(checks);
+        ProjectAnalyzer analyzer = new ProjectAnalyzer(settings) {
+            @Override
+            protected SourceCode createSourceCode(File file) {
+                return new XQuerySourceCode(getSonarResource(file), file);
+            }
 
-        // Create a mapper and add it to the visitors so that it can keep track
-        // of global declarations and the local declaration stack
-        DependencyMapper mapper = new DependencyMapper();
-        visitors.add(mapper);
+            @Override
+            protected List<XQueryAstVisitor> createChecks() {
+                // Each analysis thread gets its own check instances
+                AnnotationCheckFactory factory = AnnotationCheckFactory.create(profile, CheckClasses.REPOSITORY_KEY, CheckClasses.getChecks());
+                return new ArrayList<XQueryAstVisitor>(factory.getChecks());
+            }
 
-        // Do the first pass to map all the global dependencies
-        logger.info("Scanning all files to map dependencies");
-        for (File inputFile : getProjectMainFiles()) {
-
-            try {
-                org.sonar.api.resources.File sonarFile = getSonarResource(inputFile);
-                SourceCode sourceCode = new XQuerySourceCode(sonarFile, inputFile);
-                logger.fine("Mapping " + sonarFile.getLongName());
-
-                XQueryAstParser parser = new XQueryAstParser(sourceCode, Arrays.asList(new XQueryAstVisitor[] { mapper }));
-                XQueryTree tree = parser.parse();
-                parser.mapDependencies(tree, mapper);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not map the dependencies in the file " + inputFile.getAbsolutePath(), e);
+            @Override
+            protected void save(SourceCode sourceCode) {
+                saveMetrics(sourceCode.getResource(), context, sourceCode);
             }
+        };
+        if (settings.getBoolean(XQueryConstants.SYMBOL_INDEX_KEY)) {
+            analyzer.setSymbolIndex(new SymbolIndex(new File(fileSystem.workDir(), SymbolIndex.FILE_NAME), fileSystem.baseDir()));
+        }
+        if (settings.getBoolean(XQueryConstants.ANALYSIS_CACHE_KEY)) {
+            if (analyzer.isStreaming()) {
+                // The cache keeps the results of every file until the end
+                logger.info("Not using the analysis cache in streaming mode");
+            } else {
+                analyzer.setResultCache(new ResultCache(new File(fileSystem.workDir(), ResultCache.FILE_NAME), fileSystem.baseDir(), getCacheKey()));
+            }
+        }
+        String[] treeDumpFiles = settings.getStringArray(XQueryConstants.TREE_DUMP_FILES_KEY);
+        if (treeDumpFiles.length > 0) {
+            analyzer.setTreeDumps(new TreeDumps(new File(fileSystem.workDir(), TreeDumps.DIRECTORY_NAME), fileSystem.baseDir(), treeDumpFiles));
         }
+        if (settings.getBoolean(XQueryConstants.SCHEDULE_KEY)) {
+            analyzer.setSchedule(new FileSchedule(new File(fileSystem.workDir(), FileSchedule.FILE_NAME), fileSystem.baseDir()));
+        }
+        if (settings.getBoolean(XQueryConstants.PROFILE_KEY)) {
+            analyzer.setProfile(new AnalysisProfile());
+        }
+        List<File> files = getProjectMainFiles();
+
+        // Do the first pass to map all the global dependencies
+        logger.info("Scanning all files to map dependencies");
+        DependencyMapper mapper = analyzer.mapDependencies(files);
 
-        // Now that the global mappings are done we can change the mode to "local"
-        mapper.setMode("local");
-                
         // Do the second pass to process the checks and other metrics
-        logger.info("Scanning all files and gathering metrics");
-        for (File inputFile : getProjectMainFiles()) {
-
-            try {
-                org.sonar.api.resources.File sonarFile = getSonarResource(inputFile);
-                SourceCode sourceCode = new XQuerySourceCode(sonarFile, inputFile);
-                logger.fine("Analyzing " + sonarFile.getLongName());
-
-                XQueryAstParser parser = new XQueryAstParser(sourceCode, visitors);
-                ProblemReporter reporter = new ProblemReporter();
-                XQueryTree tree = parser.parse(reporter);
-                parser.process(tree, mapper, reporter);
-
-                // Count the lines of code
-                new XQueryLineCountParser(sourceCode).count();
-
-                // Save all the collected metrics
-                saveMetrics(sonarFile, context, sourceCode);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not analyze the file " + inputFile.getAbsolutePath(), e);
-            }
+        logger.info("Scanning all files and gathering metrics using " + analyzer.getThreads() + " thread(s)");
+        analyzer.analyze(files, mapper);
+
+        if (analyzer.getProfile() != null) {
+            writeProfile(analyzer.getProfile());
+        }
+    }
+
+    private void writeProfile(AnalysisProfile analysisProfile) {
+        analysisProfile.log();
+        File report = new File(fileSystem.workDir(), AnalysisProfile.FILE_NAME);
+        try {
+            analysisProfile.write(report);
+            logger.info("Wrote the profile of the analysis to " + report);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the profile of the analysis to " + report, e);
         }
     }
 
     private void saveMetrics(org.sonar.api.resources.File sonarFile, SensorContext context, SourceCode sourceCode) {
+        Issuable issuable = null;
+        if (!sourceCode.getIssues().isEmpty()) {
+            issuable = perspectives.as(Issuable.class, sonarFile);
+        }
         for (Issue issue : sourceCode.getIssues()) {
             logger.finer("Saving issue: " + issue);
-            Issuable issuable = perspectives.as(Issuable.class, sonarFile);
             if (issuable != null) {
                 org.sonar.api.issue.Issue sIssue = issuable.newIssueBuilder()
                         .ruleKey(issue.rule())
@@ -133,8 +155,39 @@ public class XQuerySensor implements Sensor {
         }
     }
 
-    private Iterable<File> getProjectMainFiles() {
-        return fileSystem.files(fileSystem.predicates().hasLanguage(XQueryConstants.XQUERY_LANGUAGE_KEY));
+    /*
+     * Describes the active rules and their parameters, so the analysis cache
+     * can tell when the results it has were created with other rules.
+     */
+    /*
+     * The active rules and the settings the results of a file depend on, the
+     * analysis cache is only used with the same ones.
+     */
+    private String getCacheKey() {
+        return getActiveRules() + " " + XQueryConstants.PARSE_ERROR_LIMIT_KEY + "=" + settings.getInt(XQueryConstants.PARSE_ERROR_LIMIT_KEY)
+            + " " + XQueryConstants.PARSE_RECOVERY_TIMEOUT_KEY + "=" + settings.getLong(XQueryConstants.PARSE_RECOVERY_TIMEOUT_KEY);
+    }
+
+    private String getActiveRules() {
+        List<String> rules = new ArrayList<String>();
+        for (ActiveRule rule : profile.getActiveRulesByRepository(CheckClasses.REPOSITORY_KEY)) {
+            List<String> parameters = new ArrayList<String>();
+            for (ActiveRuleParam parameter : rule.getActiveRuleParams()) {
+                parameters.add(parameter.getKey() + "=" + parameter.getValue());
+            }
+            Collections.sort(parameters);
+            rules.add(rule.getRuleKey() + " " + parameters);
+        }
+        Collections.sort(rules);
+        return rules.toString();
+    }
+
+    private List<File> getProjectMainFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File file : fileSystem.files(fileSystem.predicates().hasLanguage(XQueryConstants.XQUERY_LANGUAGE_KEY))) {
+            files.add(file);
+        }
+        return files;
     }
 
     public boolean shouldExecuteOnProject(Project project) {
@@ -0,0 +1,490 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes the files of the analysis through stages that each have their own
+ * threads, like a reader that reads the files ahead, parsers and checkers.
+ * Each stage takes the files from a bounded queue, so a stage that falls
+ * behind holds back the ones before it instead of piling up files. The files
+ * come out of the last stage in any order, the thread that submits them
+ * waits for each one to be done and saves them in their own order, or as
+ * soon as they are done.
+ *
+ * The watchdog, the profile and the schedule follow each file from one thread
+ * to the next. A thread that is stuck with a cancelled file is replaced, so
+ * the stage goes on with the other files.
+ * How many files each stage processed, how fast and how full its queue was
+ * are counted for the log.
+ *
+ * @since 2.1
+ */
+class AnalysisPipeline {
+
+    private static final Logger logger = Logger.getLogger(AnalysisPipeline.class.getName());
+
+    private final FileWatchdog watchdog;
+    private final AnalysisProfile profile;
+    private final FileSchedule schedule;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    // Guarded by itself, since stuck threads are replaced from the watchdog
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private boolean stopped;
+
+    // Notified whenever a file is done or cancelled
+    private final Object finished = new Object();
+
+    // What the thread that saves the files did
+    private long saved;
+    private long saveTime;
+
+    AnalysisPipeline(FileWatchdog watchdog, AnalysisProfile profile, FileSchedule schedule) {
+        this.watchdog = watchdog;
+        this.profile = profile;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Adds a stage with one thread for each of the steps.
+     *
+     * @param name
+     *            The name of the stage, for the threads and the log
+     * @param phase
+     *            The phase files start in when the stage takes them, null
+     *            if the steps enter a phase themselves
+     * @param capacity
+     *            How many files can wait in the queue of the stage
+     * @param steps
+     *            The work the threads of the stage do
+     */
+    void addStage(String name, FileWatchdog.Phase phase, int capacity, List<? extends Step> steps) {
+        stages.add(new Stage(name, phase, capacity, steps));
+    }
+
+    /**
+     * @return How many files can be in the pipeline at once, without any of
+     *         the stages having to wait for the next one
+     */
+    int getCapacity() {
+        int capacity = 0;
+        for (Stage stage : stages) {
+            capacity += stage.capacity + stage.steps.size();
+        }
+        return capacity;
+    }
+
+    void start() {
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            stage.next = i < stages.size() - 1 ? stages.get(i + 1) : null;
+            for (Step step : stage.steps) {
+                startThread(stage, step);
+            }
+        }
+    }
+
+    private void startThread(final Stage stage, final Step step) {
+        synchronized (threads) {
+            if (stopped) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    AnalysisPipeline.this.run(stage, step);
+                }
+            }, "xquery-" + stage.name + "-" + stage.addStarted());
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Adds a file to the first stage, waiting if its queue is full. A file
+     * that was cancelled before it got here is done right away, one that is
+     * cancelled later gets the thread processing it replaced right away, as
+     * the files behind it may be waited for first, and wakes up the thread
+     * waiting for it.
+     */
+    void submit(final Job job) throws InterruptedException {
+        if (job.watch.isCancelled()) {
+            finish(job);
+        } else {
+            job.watch.setCancelListener(new Runnable() {
+                public void run() {
+                    replace(job);
+                    synchronized (finished) {
+                        finished.notifyAll();
+                    }
+                }
+            });
+            stages.get(0).put(job);
+        }
+    }
+
+    /**
+     * Waits until a file has been through all the stages, or until it is
+     * cancelled since the thread processing it may not notice for a while.
+     *
+     * @throws SonarException
+     *             If processing the file failed with an error, like running
+     *             out of memory
+     */
+    void await(Job job) throws InterruptedException {
+        synchronized (finished) {
+            while (job.done.getCount() > 0) {
+                if (job.watch.isCancelled()) {
+                    return;
+                }
+                finished.wait();
+            }
+        }
+        checkError(job);
+    }
+
+    /**
+     * Waits until any of the files has been through all the stages, or has
+     * been cancelled, and removes it from the list.
+     *
+     * @throws SonarException
+     *             If processing the file failed with an error, like running
+     *             out of memory
+     */
+    Job awaitAny(List<Job> jobs) throws InterruptedException {
+        synchronized (finished) {
+            while (true) {
+                for (Iterator<Job> iterator = jobs.iterator(); iterator.hasNext();) {
+                    Job job = iterator.next();
+                    if (job.done.getCount() == 0 || job.watch.isCancelled()) {
+                        iterator.remove();
+                        checkError(job);
+                        return job;
+                    }
+                }
+                finished.wait();
+            }
+        }
+    }
+
+    private void checkError(Job job) {
+        if (job.error != null) {
+            throw new SonarException(job.error);
+        }
+    }
+
+    /*
+     * Replaces the thread that is processing a cancelled file with a new one
+     * for the same stage, since the steps can only be stopped at the next
+     * token or node and may never get there. The thread ends once it is done
+     * with the file.
+     */
+    private void replace(Job job) {
+        Stage stage;
+        Step step;
+        synchronized (job) {
+            if (job.stage == null || job.replaced) {
+                return;
+            }
+            job.replaced = true;
+            stage = job.stage;
+            step = job.step;
+        }
+        stage.addReplaced();
+        startThread(stage, step.replace());
+    }
+
+    /**
+     * Counts a file saved by the thread that submitted it.
+     */
+    synchronized void addSaved(long nanos) {
+        saved++;
+        saveTime += nanos;
+    }
+
+    /**
+     * Stops the threads of all the stages, the files still in the pipeline
+     * are dropped.
+     */
+    void stop() {
+        synchronized (threads) {
+            stopped = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            threads.clear();
+        }
+    }
+
+    /*
+     * Takes the files from the queue of a stage until the pipeline is
+     * stopped, and passes each one on to the next stage once the step is
+     * done with it.
+     */
+    private void run(Stage stage, Step step) {
+        try {
+            boolean replaced = false;
+            while (!replaced) {
+                Job job = stage.queue.take();
+                if (!job.finished && !job.failed && !job.watch.isCancelled()) {
+                    replaced = process(stage, step, job);
+                }
+                if (stage.next != null) {
+                    stage.next.put(job);
+                } else {
+                    finish(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /*
+     * Processes a file in a stage, returns whether the thread was replaced
+     * while it did. The time of each stage adds to the duration of the file
+     * in the schedule, but only the threads of the last stage are measured
+     * for the pass since the threads of the earlier ones are done before
+     * them anyway.
+     */
+    private boolean process(Stage stage, Step step, Job job) throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (job) {
+            job.stage = stage;
+            job.step = step;
+        }
+        watchdog.start(job.watch);
+        if (profile != null) {
+            profile.startFile(job.file, stage.phase);
+        }
+        boolean stopped = false;
+        try {
+            step.process(job);
+        } catch (InterruptedException e) {
+            stopped = !job.watch.isCancelled();
+        } catch (CancellationException e) {
+            stopped = !job.watch.isCancelled();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Could not analyze the file " + job.sourceCode, e);
+            job.failed = true;
+        } catch (Error e) {
+            // Fails the analysis once the file is waited for
+            job.error = e;
+            job.failed = true;
+        } finally {
+            if (profile != null) {
+                profile.endFile();
+            }
+            watchdog.pause(job.watch);
+            long end = System.nanoTime();
+            stage.addProcessed(end - start);
+            if (schedule != null && stage.next == null) {
+                schedule.record(job.file, start, end);
+            } else if (schedule != null) {
+                schedule.addTime(job.file, end - start);
+            }
+        }
+        boolean replaced;
+        synchronized (job) {
+            job.stage = null;
+            job.step = null;
+            replaced = job.replaced;
+        }
+        if (stopped) {
+            throw new InterruptedException();
+        }
+        return replaced;
+    }
+
+    private void finish(Job job) {
+        watchdog.stop(job.watch);
+        job.done.countDown();
+        synchronized (finished) {
+            finished.notifyAll();
+        }
+    }
+
+    /**
+     * Describes how many files each stage processed, how many files a
+     * second each of its threads processed while it was busy and how many
+     * files waited in its queue on average and at most.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuffer buffer = new StringBuffer("Analysis pipeline: ");
+        for (Stage stage : stages) {
+            buffer.append(stage).append("; ");
+        }
+        buffer.append(String.format(Locale.ENGLISH, "save on the calling thread: %d files, %.0f files/s", saved, rate(saved, saveTime)));
+        return buffer.toString();
+    }
+
+    private static double rate(long files, long nanos) {
+        return nanos > 0 ? files * 1000000000.0 / nanos : 0;
+    }
+
+    /**
+     * The work a stage does on a file, each thread of the stage has its own
+     * step.
+     */
+    interface Step {
+        void process(Job job) throws Exception;
+
+        /**
+         * @return The step for a thread that takes over from one that is
+         *         stuck in this step, this step if it can be shared
+         */
+        Step replace();
+    }
+
+    /**
+     * A file on its way through the pipeline, with what the stages found out
+     * about it for the next ones.
+     */
+    static class Job {
+        private final File file;
+        private final SourceCode sourceCode;
+        private final FileWatchdog.Watch watch;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String hash;
+        private XQueryTree tree;
+        private ProblemReporter reporter;
+        private volatile boolean finished;
+        private volatile boolean failed;
+        private volatile Error error;
+
+        // Where the file is being processed, for replacing the thread
+        private Stage stage;
+        private Step step;
+        private boolean replaced;
+
+        Job(File file, SourceCode sourceCode, FileWatchdog.Watch watch) {
+            this.file = file;
+            this.sourceCode = sourceCode;
+            this.watch = watch;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        SourceCode getSourceCode() {
+            return sourceCode;
+        }
+
+        FileWatchdog.Watch getWatch() {
+            return watch;
+        }
+
+        String getHash() {
+            return hash;
+        }
+
+        void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        XQueryTree getTree() {
+            return tree;
+        }
+
+        ProblemReporter getReporter() {
+            return reporter;
+        }
+
+        void setTree(XQueryTree tree, ProblemReporter reporter) {
+            this.tree = tree;
+            this.reporter = reporter;
+        }
+
+        /**
+         * Marks the file as done, like when its results are replayed from
+         * the cache, so the next stages pass it on without processing it.
+         */
+        void finish() {
+            finished = true;
+        }
+
+        /**
+         * @return Whether one of the stages could not process the file
+         */
+        boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /*
+     * The threads of a stage share its queue.
+     */
+    private static class Stage {
+        private final String name;
+        private final FileWatchdog.Phase phase;
+        private final int capacity;
+        private final BlockingQueue<Job> queue;
+        private final List<? extends Step> steps;
+        private Stage next;
+        private int started;
+        private int replaced;
+        private long processed;
+        private long busyTime;
+        private long depths;
+        private long puts;
+        private int maxDepth;
+
+        private Stage(String name, FileWatchdog.Phase phase, int capacity, List<? extends Step> steps) {
+            this.name = name;
+            this.phase = phase;
+            this.capacity = capacity;
+            this.queue = new ArrayBlockingQueue<Job>(capacity);
+            this.steps = steps;
+        }
+
+        private void put(Job job) throws InterruptedException {
+            queue.put(job);
+            int depth = queue.size();
+            synchronized (this) {
+                depths += depth;
+                puts++;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+        }
+
+        private synchronized int addStarted() {
+            return ++started;
+        }
+
+        private synchronized void addReplaced() {
+            replaced++;
+        }
+
+        private synchronized void addProcessed(long nanos) {
+            processed++;
+            busyTime += nanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH, "%s on %d thread(s)%s: %d files, %.0f files/s per thread, queue %.1f on average and %d at most",
+                name, steps.size(), replaced > 0 ? " (" + replaced + " replaced)" : "", processed, rate(processed, busyTime),
+                puts > 0 ? (double) depths / puts : 0, maxDepth);
+        }
+    }
+}
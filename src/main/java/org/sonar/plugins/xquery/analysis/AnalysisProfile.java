@@ -0,0 +1,394 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Adds up where the time of an analysis goes: the wall time, CPU time and
+ * allocated bytes of each phase, each visitor and each file. The totals and
+ * the slowest files and visitors are written to a JSON report and logged as a
+ * table.
+ *
+ * The phases of a file are measured on the threads that process it, from one
+ * phase to the next. The lexers run while a file is parsed, so the parse
+ * phase includes them and the lex totals, listed after it, only have the wall
+ * time spent in them.
+ * Measuring the visitors adds the cost of reading the clocks to every call,
+ * their numbers are for comparing them with each other.
+ *
+ * @since 2.1
+ */
+public class AnalysisProfile {
+
+    private static final Logger logger = Logger.getLogger(AnalysisProfile.class.getName());
+
+    public static final String FILE_NAME = "xquery-profile.json";
+
+    /**
+     * The number of files and visitors listed as the slowest.
+     */
+    public static final int TOP = 10;
+
+    private final Map<FileWatchdog.Phase, Totals> phases = new EnumMap<FileWatchdog.Phase, Totals>(FileWatchdog.Phase.class);
+    private final Totals lexers = new Totals("lex");
+    private final Map<String, Totals> visitors = new HashMap<String, Totals>();
+    private final Map<File, Totals> files = new HashMap<File, Totals>();
+    private final Map<String, Long> passes = new LinkedHashMap<String, Long>();
+
+    // The file each thread is working on
+    private final ThreadLocal<Recorder> recorders = new ThreadLocal<Recorder>();
+
+    public AnalysisProfile() {
+        for (FileWatchdog.Phase phase : FileWatchdog.Phase.values()) {
+            phases.put(phase, new Totals(phase.toString()));
+        }
+    }
+
+    /**
+     * Starts measuring a file on the current thread, in the read phase.
+     */
+    public void startFile(File file) {
+        startFile(file, FileWatchdog.Phase.READ);
+    }
+
+    /**
+     * Starts measuring a file on the current thread, in the specified phase.
+     * With a null phase nothing is measured until a phase is entered, for a
+     * thread that takes over a file from another one.
+     */
+    public void startFile(File file, FileWatchdog.Phase phase) {
+        recorders.set(new Recorder(file, phase));
+    }
+
+    /**
+     * Ends the current phase of the file of the current thread and starts
+     * the next one.
+     */
+    public void enter(FileWatchdog.Phase phase) {
+        Recorder recorder = recorders.get();
+        if (recorder != null) {
+            recorder.enter(phase);
+        }
+    }
+
+    /**
+     * Ends the last phase of the file of the current thread.
+     */
+    public void endFile() {
+        Recorder recorder = recorders.get();
+        if (recorder != null) {
+            recorder.enter(null);
+            recorders.remove();
+        }
+    }
+
+    /**
+     * Adds a phase that was measured apart from the others, like saving the
+     * results on the calling thread.
+     */
+    public void record(FileWatchdog.Phase phase, File file, Sample sample) {
+        long wall = System.nanoTime() - sample.wall;
+        long cpu = ThreadMeter.getCpuTime() - sample.cpu;
+        long bytes = ThreadMeter.getAllocatedBytes(Thread.currentThread()) - sample.bytes;
+        add(phase, file, wall, cpu, bytes);
+    }
+
+    /**
+     * Adds the time the lexers took while a file was parsed.
+     */
+    public synchronized void addLexTime(long wall) {
+        lexers.add(1, wall, 0, 0);
+    }
+
+    /**
+     * Adds the calls to a visitor.
+     */
+    public synchronized void addVisitor(String name, long calls, long wall, long cpu, long bytes) {
+        Totals totals = visitors.get(name);
+        if (totals == null) {
+            totals = new Totals(name);
+            visitors.put(name, totals);
+        }
+        totals.add(calls, wall, cpu, bytes);
+    }
+
+    /**
+     * Adds the time a pass over all the files took.
+     */
+    public synchronized void addPass(String name, long wall) {
+        Long previous = passes.get(name);
+        passes.put(name, previous != null ? previous + wall : wall);
+    }
+
+    /**
+     * @return The clocks of the current thread, to record a phase with
+     */
+    public Sample sample() {
+        return new Sample();
+    }
+
+    public synchronized Totals getPhase(FileWatchdog.Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * @return The time the lexers took, part of the parse phase
+     */
+    public synchronized Totals getLexers() {
+        return lexers;
+    }
+
+    /**
+     * @return The slowest visitors first
+     */
+    public synchronized List<Totals> getVisitors() {
+        return sort(visitors.values(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The slowest files first, with the path of each file as its name
+     */
+    public synchronized List<Totals> getSlowestFiles(int count) {
+        return sort(files.values(), count);
+    }
+
+    /**
+     * Writes the totals, the slowest visitors and the slowest files.
+     */
+    public synchronized void write(File report) throws IOException {
+        Writer out = null;
+        try {
+            report.getParentFile().mkdirs();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(report), "UTF-8"));
+            out.write("{\n  \"cpuTime\": " + ThreadMeter.isCpuTimeSupported());
+            out.write(",\n  \"allocatedBytes\": " + ThreadMeter.isAllocatedBytesSupported());
+            out.write(",\n  \"files\": " + files.size());
+            out.write(",\n  \"passes\": {");
+            String separator = "\n";
+            for (Map.Entry<String, Long> pass : passes.entrySet()) {
+                out.write(separator + "    " + quote(pass.getKey()) + ": " + millis(pass.getValue()));
+                separator = ",\n";
+            }
+            out.write("\n  },\n  \"phases\": ");
+            write(out, getPhases());
+            out.write(",\n  \"visitors\": ");
+            write(out, sort(visitors.values(), TOP));
+            out.write(",\n  \"slowestFiles\": ");
+            write(out, sort(files.values(), TOP));
+            out.write("\n}\n");
+            out.close();
+            out = null;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Logs the totals of the phases, the slowest visitors and the slowest
+     * files as tables.
+     */
+    public synchronized void log() {
+        StringBuffer table = new StringBuffer("Profile of the analysis (times in ms)");
+        for (Map.Entry<String, Long> pass : passes.entrySet()) {
+            table.append(", ").append(pass.getKey()).append(": ").append(millis(pass.getValue()));
+        }
+        row(table, "Phase", "Count", "Wall", "CPU", "MB");
+        for (Totals totals : getPhases()) {
+            row(table, totals);
+        }
+        row(table, "Visitor", "Calls", "Wall", "CPU", "MB");
+        for (Totals totals : sort(visitors.values(), TOP)) {
+            row(table, totals);
+        }
+        row(table, "File", "Phases", "Wall", "CPU", "MB");
+        for (Totals totals : sort(files.values(), TOP)) {
+            row(table, totals);
+        }
+        logger.info(table.toString());
+    }
+
+    /*
+     * The phases in order, with the lexers after the parse phase.
+     */
+    private List<Totals> getPhases() {
+        List<Totals> list = new ArrayList<Totals>();
+        for (Map.Entry<FileWatchdog.Phase, Totals> phase : phases.entrySet()) {
+            list.add(phase.getValue());
+            if (phase.getKey() == FileWatchdog.Phase.PARSE) {
+                list.add(lexers);
+            }
+        }
+        return list;
+    }
+
+    private synchronized void add(FileWatchdog.Phase phase, File file, long wall, long cpu, long bytes) {
+        phases.get(phase).add(1, wall, cpu, bytes);
+        Totals totals = files.get(file);
+        if (totals == null) {
+            totals = new Totals(file.getPath());
+            files.put(file, totals);
+        }
+        totals.add(1, wall, cpu, bytes);
+    }
+
+    private static List<Totals> sort(Iterable<Totals> values, int count) {
+        List<Totals> sorted = new ArrayList<Totals>();
+        for (Totals totals : values) {
+            sorted.add(totals);
+        }
+        Collections.sort(sorted, new Comparator<Totals>() {
+            public int compare(Totals a, Totals b) {
+                return a.wall < b.wall ? 1 : a.wall > b.wall ? -1 : a.name.compareTo(b.name);
+            }
+        });
+        return sorted.size() > count ? sorted.subList(0, count) : sorted;
+    }
+
+    private static void write(Writer out, List<Totals> list) throws IOException {
+        out.write("[");
+        String separator = "\n";
+        for (Totals totals : list) {
+            out.write(separator + "    {\"name\": " + quote(totals.name) + ", \"count\": " + totals.count + ", \"wallMs\": "
+                + millis(totals.wall) + ", \"cpuMs\": " + millis(totals.cpu) + ", \"bytes\": " + totals.bytes + "}");
+            separator = ",\n";
+        }
+        out.write(list.isEmpty() ? "]" : "\n  ]");
+    }
+
+    private static void row(StringBuffer table, Totals totals) {
+        row(table, totals.name, Long.toString(totals.count), millis(totals.wall), millis(totals.cpu),
+            String.format(Locale.ENGLISH, "%.1f", totals.bytes / (1024.0 * 1024.0)));
+    }
+
+    private static void row(StringBuffer table, String name, String count, String wall, String cpu, String bytes) {
+        if (name.length() > 40) {
+            name = "..." + name.substring(name.length() - 37);
+        }
+        table.append(String.format(Locale.ENGLISH, "%n  %-40s %8s %10s %10s %8s", name, count, wall, cpu, bytes));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.1f", nanos / 1000000.0);
+    }
+
+    private static String quote(String value) {
+        StringBuffer quoted = new StringBuffer("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The clocks of a thread at one point.
+     */
+    public static class Sample {
+        private final long wall = System.nanoTime();
+        private final long cpu = ThreadMeter.getCpuTime();
+        private final long bytes = ThreadMeter.getAllocatedBytes(Thread.currentThread());
+    }
+
+    /**
+     * What was measured for a phase, a visitor or a file.
+     */
+    public static class Totals {
+        private final String name;
+        private long count;
+        private long wall;
+        private long cpu;
+        private long bytes;
+
+        private Totals(String name) {
+            this.name = name;
+        }
+
+        private void add(long count, long wall, long cpu, long bytes) {
+            this.count += count;
+            this.wall += wall;
+            this.cpu += cpu;
+            this.bytes += bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The wall time in nanoseconds
+         */
+        public long getWallTime() {
+            return wall;
+        }
+
+        /**
+         * @return The CPU time in nanoseconds, 0 if it can't be measured
+         */
+        public long getCpuTime() {
+            return cpu;
+        }
+
+        /**
+         * @return The allocated bytes, 0 if they can't be measured
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /*
+     * The phase a thread is in for its file.
+     */
+    private class Recorder {
+        private final File file;
+        private FileWatchdog.Phase phase;
+        private Sample sample = new Sample();
+
+        private Recorder(File file, FileWatchdog.Phase phase) {
+            this.file = file;
+            this.phase = phase;
+        }
+
+        private void enter(FileWatchdog.Phase next) {
+            if (next == phase) {
+                return;
+            }
+            Sample now = new Sample();
+            if (phase != null) {
+                add(phase, file, now.wall - sample.wall, now.cpu - sample.cpu, now.bytes - sample.bytes);
+            }
+            phase = next;
+            sample = now;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers shared by the files that the analysis keeps between runs in the
+ * working directory.
+ *
+ * @since 2.1
+ */
+final class CacheFiles {
+
+    private static final Logger logger = Logger.getLogger(CacheFiles.class.getName());
+
+    /**
+     * The version of the plugin, cached data written by any other version is
+     * not used.
+     */
+    static final String PLUGIN_VERSION = readPluginVersion();
+
+    private CacheFiles() {
+    }
+
+    /**
+     * Creates a hash of the content of a file.
+     *
+     * @param file
+     *            The file to hash
+     * @return The hash of the file, as a hexadecimal string
+     */
+    static String hash(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            MessageDigest digest = createDigest();
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Creates a hash of a string.
+     *
+     * @param value
+     *            The string to hash
+     * @return The hash of the string, as a hexadecimal string
+     */
+    static String hash(String value) {
+        try {
+            return toHex(createDigest().digest(value.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Strings are written as UTF-8 bytes with their length in front, since
+     * writeUTF() can't handle strings longer than 64K (and a null string has
+     * a length of -1).
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Replaces a file with a temporary file that was completely written, so an
+     * interrupted run never leaves a partial file behind.
+     */
+    static void replace(File temp, File file) throws IOException {
+        file.delete();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer buffer = new StringBuffer(bytes.length * 2);
+        for (byte b : bytes) {
+            buffer.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buffer.toString();
+    }
+
+    private static String readPluginVersion() {
+        Properties properties = new Properties();
+        InputStream in = CacheFiles.class.getResourceAsStream("/org/sonar/plugins/xquery/xquery-plugin.properties");
+        try {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the plugin version", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return properties.getProperty("version", "unknown");
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Orders the files of an analysis so that the ones that take the longest are
+ * started first. The threads then end the passes on small files, instead of
+ * all but one of them waiting for a big file that came last. How long each
+ * file took in each pass is kept in the working directory for the next run, a
+ * file that wasn't analyzed before is estimated from its size. Files that
+ * come from the symbol index or the analysis cache keep the durations of the
+ * run that really processed them, so they are still scheduled by how long
+ * they take once they change.
+ *
+ * Also measures each pass: how busy the threads were, which file finished
+ * last (the critical path of the pass) and how long the threads that were
+ * done waited for it.
+ *
+ * @since 2.1
+ */
+public class FileSchedule {
+
+    private static final Logger logger = Logger.getLogger(FileSchedule.class.getName());
+
+    public static final String FILE_NAME = "xquery-schedule.bin";
+
+    // Change this whenever the layout of the schedule file changes
+    private static final int FORMAT_VERSION = 2;
+
+    private final File scheduleFile;
+    private final String basePath;
+
+    // The nanoseconds each file took in each pass of the previous run and of
+    // this one
+    private Map<String, Map<String, Long>> previous = new HashMap<String, Map<String, Long>>();
+    private final Map<String, Map<String, Long>> current = new HashMap<String, Map<String, Long>>();
+
+    // The files of the current pass that kept their previous duration
+    private final Set<String> carried = new HashSet<String>();
+
+    private Pass pass;
+    private Pass lastPass;
+
+    /**
+     * Creates a schedule that keeps the durations of the files in the
+     * specified file.
+     *
+     * @param scheduleFile
+     *            The file the durations are read from and written to
+     * @param baseDir
+     *            The base directory of the project, so the durations don't
+     *            depend on where the project is checked out
+     */
+    public FileSchedule(File scheduleFile, File baseDir) {
+        this.scheduleFile = scheduleFile;
+        this.basePath = baseDir != null ? baseDir.getAbsolutePath() + File.separator : null;
+    }
+
+    /**
+     * Reads the durations of the previous run. They are ignored if they don't
+     * exist, can't be read or were written by a different version of the
+     * plugin.
+     */
+    public synchronized void load() {
+        previous = new HashMap<String, Map<String, Long>>();
+        if (!scheduleFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(scheduleFile)));
+            if (in.readInt() != FORMAT_VERSION || !CacheFiles.PLUGIN_VERSION.equals(CacheFiles.readString(in))) {
+                logger.info("File durations were written with a different version, scheduling the files by size");
+                return;
+            }
+
+            Map<String, Map<String, Long>> passes = new HashMap<String, Map<String, Long>>();
+            for (int i = in.readInt(); i > 0; i--) {
+                Map<String, Long> durations = new HashMap<String, Long>();
+                passes.put(CacheFiles.readString(in), durations);
+                for (int j = in.readInt(); j > 0; j--) {
+                    String path = CacheFiles.readString(in);
+                    durations.put(path, in.readLong());
+                }
+            }
+            previous = passes;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the file durations " + scheduleFile + ", scheduling the files by size", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the durations of this run. Only the files that were analyzed in
+     * this run are kept, so deleted files drop out.
+     */
+    public synchronized void save() {
+        File temp = new File(scheduleFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            scheduleFile.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            CacheFiles.writeString(out, CacheFiles.PLUGIN_VERSION);
+
+            out.writeInt(current.size());
+            for (Map.Entry<String, Map<String, Long>> pass : new TreeMap<String, Map<String, Long>>(current).entrySet()) {
+                CacheFiles.writeString(out, pass.getKey());
+                Map<String, Long> durations = new TreeMap<String, Long>(pass.getValue());
+                out.writeInt(durations.size());
+                for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                    CacheFiles.writeString(out, entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            out.close();
+            out = null;
+
+            CacheFiles.replace(temp, scheduleFile);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the file durations " + scheduleFile, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Orders the files by how long they are expected to take, the longest
+     * first. Files that are expected to take as long keep their order.
+     *
+     * @param files
+     *            The files of the analysis
+     * @return A new list with the files in the order they should be started
+     */
+    public synchronized List<File> order(List<File> files) {
+        // Files without a duration are estimated with the time the files
+        // with one took for each byte
+        Map<File, Long> durations = new IdentityHashMap<File, Long>();
+        long knownTime = 0;
+        long knownBytes = 0;
+        for (File file : files) {
+            Long duration = getPreviousDuration(getPath(file));
+            if (duration != null) {
+                durations.put(file, duration);
+                knownTime += duration;
+                knownBytes += file.length();
+            }
+        }
+        double nanosPerByte = knownTime > 0 && knownBytes > 0 ? (double) knownTime / knownBytes : 1;
+
+        final Map<File, Double> estimates = new IdentityHashMap<File, Double>();
+        for (File file : files) {
+            Long duration = durations.get(file);
+            estimates.put(file, duration != null ? duration : file.length() * nanosPerByte);
+        }
+        List<File> ordered = new ArrayList<File>(files);
+        Collections.sort(ordered, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return estimates.get(b).compareTo(estimates.get(a));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Starts measuring a pass over the files. Durations are only recorded
+     * while a pass is started.
+     */
+    public synchronized void startPass(String name) {
+        pass = new Pass(name);
+        carried.clear();
+    }
+
+    /**
+     * Adds the time a thread spent on a file in the current pass, to its
+     * duration and to the measurements of the pass.
+     *
+     * @param file
+     *            The file
+     * @param start
+     *            When the thread started on the file, from System.nanoTime()
+     * @param end
+     *            When the thread was done with the file
+     */
+    public synchronized void record(File file, long start, long end) {
+        if (pass != null) {
+            addTime(file, end - start);
+            pass.record(file, start, end);
+        }
+    }
+
+    /**
+     * Adds time spent on a file in the current pass to its duration only,
+     * like the time spent in the stages of a pipeline before the one that is
+     * measured.
+     */
+    public synchronized void addTime(File file, long nanos) {
+        String path = getPath(file);
+        if (pass == null || carried.contains(path)) {
+            return;
+        }
+        Map<String, Long> durations = getDurations(current, pass.getName());
+        Long duration = durations.get(path);
+        durations.put(path, (duration != null ? duration : 0) + nanos);
+    }
+
+    /**
+     * Keeps the duration of a file in the current pass from the previous run,
+     * for a file that isn't really processed since its results come from a
+     * cache. The time spent on it in this pass is ignored.
+     */
+    public synchronized void carry(File file) {
+        if (pass == null) {
+            return;
+        }
+        String path = getPath(file);
+        carried.add(path);
+        Map<String, Long> durations = getDurations(current, pass.getName());
+        Long duration = getDurations(previous, pass.getName()).get(path);
+        if (duration != null) {
+            durations.put(path, duration);
+        } else {
+            durations.remove(path);
+        }
+    }
+
+    /**
+     * Ends the current pass and logs how busy its threads were.
+     *
+     * @return What was measured for the pass
+     */
+    public synchronized Pass endPass() {
+        Pass ended = pass;
+        pass = null;
+        if (ended != null) {
+            ended.end();
+            logger.info(ended.toString());
+            lastPass = ended;
+        }
+        return ended;
+    }
+
+    /**
+     * @return What was measured for the last pass that ended, null if none
+     *         did
+     */
+    public synchronized Pass getLastPass() {
+        return lastPass;
+    }
+
+    /*
+     * Adds up the durations of a file in all the passes of the previous run,
+     * null if it wasn't processed then.
+     */
+    private Long getPreviousDuration(String path) {
+        Long total = null;
+        for (Map<String, Long> durations : previous.values()) {
+            Long duration = durations.get(path);
+            if (duration != null) {
+                total = (total != null ? total : 0) + duration;
+            }
+        }
+        return total;
+    }
+
+    private static Map<String, Long> getDurations(Map<String, Map<String, Long>> passes, String name) {
+        Map<String, Long> durations = passes.get(name);
+        if (durations == null) {
+            durations = new HashMap<String, Long>();
+            passes.put(name, durations);
+        }
+        return durations;
+    }
+
+    private String getPath(File file) {
+        String path = file.getAbsolutePath();
+        if (basePath != null && path.startsWith(basePath)) {
+            return path.substring(basePath.length());
+        }
+        return path;
+    }
+
+    /**
+     * How the threads spent one pass over the files. In a pipeline only the
+     * threads of the last stage are measured.
+     */
+    public static class Pass {
+        private final String name;
+        private final long start = System.nanoTime();
+        private long end;
+        private final Map<Thread, long[]> threads = new IdentityHashMap<Thread, long[]>();
+        private final Map<File, Long> durations = new HashMap<File, Long>();
+        private File lastFile;
+        private long lastEnd;
+        private long busyTime;
+        private long idleTime;
+        private long tailTime;
+
+        private Pass(String name) {
+            this.name = name;
+        }
+
+        private void record(File file, long start, long end) {
+            long[] thread = threads.get(Thread.currentThread());
+            if (thread == null) {
+                // The time the thread was busy and when it was last done
+                thread = new long[2];
+                threads.put(Thread.currentThread(), thread);
+            }
+            thread[0] += end - start;
+            thread[1] = Math.max(thread[1], end);
+
+            Long duration = durations.get(file);
+            durations.put(file, (duration != null ? duration : 0) + end - start);
+            if (end >= lastEnd) {
+                lastEnd = end;
+                lastFile = file;
+            }
+        }
+
+        /*
+         * Adds up the busy time of the threads, and the time each of them
+         * waited after its last file for the last file of the pass.
+         */
+        private void end() {
+            end = System.nanoTime();
+            long firstDone = lastEnd;
+            for (long[] thread : threads.values()) {
+                busyTime += thread[0];
+                idleTime += lastEnd - thread[1];
+                firstDone = Math.min(firstDone, thread[1]);
+            }
+            tailTime = lastEnd - firstDone;
+            durations.keySet().retainAll(Collections.singleton(lastFile));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads.size();
+        }
+
+        /**
+         * @return The nanoseconds from the start to the end of the pass
+         */
+        public long getWallTime() {
+            return end - start;
+        }
+
+        /**
+         * @return The nanoseconds the threads spent on files, all together
+         */
+        public long getBusyTime() {
+            return busyTime;
+        }
+
+        /**
+         * @return The nanoseconds the threads waited after their last file
+         *         until the last file of the pass was done, all together
+         */
+        public long getIdleTime() {
+            return idleTime;
+        }
+
+        /**
+         * @return The nanoseconds from the moment the first thread was done
+         *         until the last file of the pass was done
+         */
+        public long getTailTime() {
+            return tailTime;
+        }
+
+        /**
+         * @return The file that was done last, null if there were no files
+         */
+        public File getCriticalFile() {
+            return lastFile;
+        }
+
+        /**
+         * @return The nanoseconds spent on the file that was done last
+         */
+        public long getCriticalTime() {
+            Long duration = durations.get(lastFile);
+            return duration != null ? duration : 0;
+        }
+
+        @Override
+        public String toString() {
+            long wall = getWallTime();
+            StringBuffer buffer = new StringBuffer("Schedule of the ").append(name).append(" pass: ");
+            buffer.append(String.format(Locale.ENGLISH, "%d thread(s) busy %.0f%% of %d ms", threads.size(),
+                wall > 0 && !threads.isEmpty() ? busyTime * 100.0 / (wall * threads.size()) : 0, wall / 1000000));
+            if (lastFile != null) {
+                buffer.append(String.format(Locale.ENGLISH, ", the last file was %s (%d ms)", lastFile.getName(), getCriticalTime() / 1000000));
+                buffer.append(String.format(Locale.ENGLISH, ", the threads were idle %.0f%% of the %d ms it took after the first thread was done",
+                    tailTime > 0 ? idleTime * 100.0 / (tailTime * threads.size()) : 0, tailTime / 1000000));
+            }
+            return buffer.toString();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Keeps each file within a budget of time and memory while it is processed.
+ * A thread checks the files that are being processed every few milliseconds,
+ * and a file that goes over the budget is cancelled: its task is cancelled
+ * when it runs on an analysis thread (so nobody waits for it any more) and
+ * the thread processing it is interrupted. The token stream and the
+ * dispatcher of the checks stop at the next token or node once their thread
+ * is interrupted.
+ *
+ * Those are the only places a file can be stopped: a check that never
+ * returns from one node, or any other code that doesn't look at the
+ * interrupt, goes on running. Nobody waits for it, the analysis replaces the
+ * thread that is stuck with it and goes on with the other files.
+ *
+ * The memory budget is the number of bytes allocated by the thread while it
+ * processes the file, it is only used when the JVM can measure that.
+ *
+ * A file can be handed from one thread to another between the phases, it is
+ * paused by the thread it leaves and started again by the next one. Only the
+ * time and memory spent on it while it is started count against the budget.
+ *
+ * @since 2.1
+ */
+public class FileWatchdog {
+
+    private static final Logger logger = Logger.getLogger(FileWatchdog.class.getName());
+
+    /**
+     * What is being done with a file. The lexers run while the file is being
+     * parsed, the tokens are only read as the parser needs them, so lexing is
+     * part of the parse phase: only the profile of the analysis tells how much
+     * of it went to the lexers.
+     */
+    public enum Phase {
+        READ("read"), PARSE("parse"), MAP("map"), CHECK("check"), PERSIST("persist");
+
+        private final String name;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final long timeBudget;
+    private final long memoryBudget;
+    private final boolean allocations;
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private Thread thread;
+
+    /**
+     * Creates a watchdog with a budget for each file.
+     *
+     * @param timeBudget
+     *            The milliseconds a file can take, 0 for no limit
+     * @param memoryBudget
+     *            The bytes that can be allocated for a file, 0 for no limit
+     */
+    public FileWatchdog(long timeBudget, long memoryBudget) {
+        this.timeBudget = timeBudget;
+        this.memoryBudget = memoryBudget;
+        this.allocations = memoryBudget > 0 && ThreadMeter.isAllocatedBytesSupported();
+        if (memoryBudget > 0 && !allocations) {
+            logger.warning("This JVM can't measure the memory allocated by a thread, only the time of each file is limited");
+        }
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public boolean isEnabled() {
+        return timeBudget > 0 || allocations;
+    }
+
+    /**
+     * Creates the watch for a file, the budget starts being used when the
+     * file is started.
+     */
+    public Watch watch(File file) {
+        return new Watch(file);
+    }
+
+    /**
+     * Starts watching a file on the thread that is going to process it, or
+     * goes on watching a paused file on the thread it was handed to.
+     */
+    public void start(Watch watch) {
+        synchronized (watch) {
+            watch.thread = Thread.currentThread();
+            watch.startTime = System.nanoTime();
+            if (allocations) {
+                watch.startBytes = ThreadMeter.getAllocatedBytes(watch.thread);
+            }
+        }
+        if (isEnabled()) {
+            watches.add(watch);
+            startThread();
+        }
+    }
+
+    /**
+     * Stops watching a file for now, called by the thread that hands it on
+     * to another one. Clears the interrupt of the thread if the file was
+     * cancelled, so it doesn't affect the next file.
+     */
+    public void pause(Watch watch) {
+        watches.remove(watch);
+        synchronized (watch) {
+            watch.elapsed += System.nanoTime() - watch.startTime;
+            if (allocations) {
+                watch.bytes += ThreadMeter.getAllocatedBytes(watch.thread) - watch.startBytes;
+            }
+            watch.thread = null;
+        }
+        if (watch.isCancelled()) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Stops watching a file, called by the thread that processed it. Clears
+     * the interrupt of the thread if the file was cancelled, so it doesn't
+     * affect the next file.
+     */
+    public void stop(Watch watch) {
+        watches.remove(watch);
+        synchronized (watch) {
+            watch.done = true;
+        }
+        if (watch.isCancelled() && watch.thread == Thread.currentThread()) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Stops the thread that checks the files.
+     */
+    public synchronized void close() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private synchronized void startThread() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                long interval = timeBudget > 0 ? Math.max(10, Math.min(100, timeBudget / 4)) : 100;
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(interval);
+                        for (Watch watch : watches) {
+                            check(watch);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Closed
+                }
+            }
+        }, "xquery-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void check(Watch watch) {
+        long elapsed;
+        long bytes = 0;
+        synchronized (watch) {
+            if (watch.thread == null) {
+                // Paused since the watches were listed
+                return;
+            }
+            elapsed = (watch.elapsed + System.nanoTime() - watch.startTime) / 1000000;
+            if (allocations) {
+                bytes = watch.bytes + ThreadMeter.getAllocatedBytes(watch.thread) - watch.startBytes;
+            }
+        }
+        if (timeBudget > 0 && elapsed > timeBudget) {
+            watch.cancel("took more than " + timeBudget + " ms");
+        } else if (allocations) {
+            if (bytes > memoryBudget) {
+                watch.cancel("allocated more than " + memoryBudget / (1024 * 1024) + " MB");
+            }
+        }
+    }
+
+    /**
+     * The progress of one file.
+     */
+    public static class Watch {
+        private final File file;
+        private volatile Phase phase = Phase.READ;
+        private volatile String reason;
+        private volatile Future<?> future;
+        private volatile Runnable listener;
+        private volatile Thread thread;
+        private volatile long startTime;
+        private volatile long startBytes;
+        // What the file used on the threads it was handed on from
+        private long elapsed;
+        private long bytes;
+        private boolean done;
+
+        private Watch(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public void setPhase(Phase phase) {
+            this.phase = phase;
+        }
+
+        /**
+         * Sets the task that processes the file, it is cancelled with the
+         * file.
+         */
+        public void setFuture(Future<?> future) {
+            this.future = future;
+        }
+
+        /**
+         * Sets what to do once the file is cancelled, it runs on the thread
+         * that cancels the file.
+         */
+        public void setCancelListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * @return Why the file was cancelled, null if it wasn't
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        public boolean isCancelled() {
+            return reason != null;
+        }
+
+        /**
+         * Cancels the file, unless it is already done. The thread processing
+         * it only stops at the next token or node.
+         */
+        public synchronized void cancel(String reason) {
+            if (done || this.reason != null) {
+                return;
+            }
+            this.reason = reason;
+            if (future != null) {
+                future.cancel(true);
+            } else if (thread != null) {
+                thread.interrupt();
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * @return What happened to the file, with its size and the phase it
+         *         was in
+         */
+        public String getMessage() {
+            return "Skipped " + file + " (" + (file.length() + 1023) / 1024 + " KB), it " + reason + " in the " + phase + " phase";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstDispatcher;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatcher that measures every call to its visitors. Used by one thread at
+ * a time, like the visitors themselves, and adds what it measured to a
+ * profile when asked to.
+ *
+ * @since 2.1
+ */
+class ProfiledDispatcher extends XQueryAstDispatcher {
+
+    // Calls, wall time, CPU time and allocated bytes of each visitor
+    private final Map<XQueryAstVisitor, long[]> totals = new IdentityHashMap<XQueryAstVisitor, long[]>();
+
+    public ProfiledDispatcher(List<XQueryAstVisitor> visitors) {
+        super(visitors);
+        for (XQueryAstVisitor visitor : visitors) {
+            totals.put(visitor, new long[4]);
+        }
+    }
+
+    @Override
+    protected void enterExpression(XQueryAstVisitor visitor, XQueryTree node) {
+        Thread thread = Thread.currentThread();
+        long bytes = ThreadMeter.getAllocatedBytes(thread);
+        long cpu = ThreadMeter.getCpuTime();
+        long wall = System.nanoTime();
+        super.enterExpression(visitor, node);
+        add(visitor, thread, wall, cpu, bytes);
+    }
+
+    @Override
+    protected void exitExpression(XQueryAstVisitor visitor, XQueryTree node) {
+        Thread thread = Thread.currentThread();
+        long bytes = ThreadMeter.getAllocatedBytes(thread);
+        long cpu = ThreadMeter.getCpuTime();
+        long wall = System.nanoTime();
+        super.exitExpression(visitor, node);
+        add(visitor, thread, wall, cpu, bytes);
+    }
+
+    /**
+     * Adds the calls measured so far to the profile and starts over.
+     */
+    public void addTo(AnalysisProfile profile) {
+        for (Map.Entry<XQueryAstVisitor, long[]> entry : totals.entrySet()) {
+            long[] visitor = entry.getValue();
+            if (visitor[0] > 0) {
+                profile.addVisitor(entry.getKey().getClass().getSimpleName(), visitor[0], visitor[1], visitor[2], visitor[3]);
+            }
+            entry.setValue(new long[4]);
+        }
+    }
+
+    private void add(XQueryAstVisitor visitor, Thread thread, long wall, long cpu, long bytes) {
+        // Read in the reverse order, so the clocks measure as little of each
+        // other as possible
+        long wallTime = System.nanoTime() - wall;
+        long cpuTime = ThreadMeter.getCpuTime() - cpu;
+        long allocated = ThreadMeter.getAllocatedBytes(thread) - bytes;
+        long[] total = totals.get(visitor);
+        total[0]++;
+        total[1] += wallTime;
+        total[2] += cpuTime;
+        total[3] += allocated;
+    }
+}
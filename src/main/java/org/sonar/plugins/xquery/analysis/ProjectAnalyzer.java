@@ -0,0 +1,1045 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.api.XQueryConstants;
+import org.sonar.plugins.xquery.checks.AbstractCheck;
+import org.sonar.plugins.xquery.checks.SkippedFileCheck;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQueryLineCountParser;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstDispatcher;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the two analysis passes over the XQuery files of a project. The first
+ * pass maps the global declarations of all the files and the second pass runs
+ * the checks and gathers the metrics of each file.
+ *
+ * Files can be processed by several threads at once. Each thread works with
+ * its own checks and its own "local" dependency mapper, so no visitor state is
+ * ever shared between threads. Source code objects are created and results
+ * are handed to save() on the calling thread and in the order of the files,
+ * so the outcome is the same no matter how many threads are used.
+ *
+ * With a schedule the files are started by how long they are expected to
+ * take, the longest first, so the threads don't end a pass waiting for a big
+ * file that came last. The threads take the next file from the same queue as
+ * soon as they are done with one, and results are saved as soon as they are
+ * done instead of in order. The global declarations are still merged in the
+ * order of the files.
+ *
+ * With more than one thread the analysis pass is pipelined by default: a
+ * reader thread reads the files ahead, the files are parsed and checked by
+ * separate sets of threads (half of the threads each) and the calling thread
+ * saves the results, with bounded queues between the stages.
+ * Otherwise each file is read, parsed and checked by one thread, and with
+ * one thread and no budget the files are processed on the calling thread.
+ *
+ * A watchdog keeps each file within a budget of time and memory. Files that
+ * go over it are skipped: they get an issue saying so and their line metrics,
+ * and the analysis goes on with the other files. The thread processing a file
+ * only stops at the next token or node, so a thread that is still busy with
+ * a skipped file is replaced (with new checks) and left to finish on its own.
+ *
+ * A profile can be set to measure where the time of the analysis goes, by
+ * phase, by visitor and by file. Nothing is measured without one.
+ *
+ * In streaming mode nothing of a file is kept once it is saved, so the memory
+ * used only grows with the global declarations and not with the number of
+ * files. The mapping pass only parses the declarations, no trees are kept for
+ * the analysis pass, the code of each file is let go of as soon as it has
+ * been processed and fewer files are processed ahead of the one that is
+ * being saved.
+ *
+ * @since 2.1
+ */
+public abstract class ProjectAnalyzer {
+
+    private static final Logger logger = Logger.getLogger(ProjectAnalyzer.class.getName());
+
+    // How many files each thread can be working on ahead of the file that is
+    // waiting to be saved
+    private static final int FILES_PER_THREAD = 4;
+
+    private final int threads;
+    private final boolean streaming;
+    private final boolean pipelined;
+    private final int ahead;
+    private final boolean declarationsOnly;
+    private final boolean compactTokens;
+    private final int parseErrorLimit;
+    private final long parseRecoveryTimeout;
+    private final TreeCache treeCache;
+    private ResultCache resultCache;
+    private SymbolIndex symbolIndex;
+    private TreeDumps treeDumps;
+    private AnalysisProfile profile;
+    private FileSchedule schedule;
+    private final FileWatchdog watchdog;
+
+    // Why the files were skipped, so a file skipped while mapping isn't
+    // tried again in the analysis
+    private final Map<File, String> skipped = new ConcurrentHashMap<File, String>();
+
+    // The content hashes of the files, so each file is only hashed once for
+    // both passes
+    private final Map<File, String> hashes = new ConcurrentHashMap<File, String>();
+
+    /**
+     * Creates an analyzer configured with the specified settings. A number of
+     * threads of 0 or less uses one thread per available processor and a
+     * value of 1 processes the files sequentially on the calling thread (or
+     * on one analysis thread when there is a budget for each file), the
+     * analysis pass is only pipelined with more threads.
+     *
+     * @param settings
+     *            The analysis settings
+     */
+    public ProjectAnalyzer(Settings settings) {
+        int threads = settings.getInt(XQueryConstants.THREADS_KEY);
+        if (threads > 0) {
+            this.threads = threads;
+        } else {
+            this.threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.streaming = settings.getBoolean(XQueryConstants.STREAMING_KEY);
+        this.ahead = this.threads * (streaming ? 1 : FILES_PER_THREAD);
+        // A single thread processes the files one at a time
+        this.pipelined = this.threads > 1 && settings.getBoolean(XQueryConstants.PIPELINE_KEY);
+
+        // Trees are only kept for the analysis pass when the mapping pass
+        // parses the complete files
+        this.declarationsOnly = streaming || settings.getBoolean(XQueryConstants.DECLARATIONS_ONLY_MAPPING_KEY);
+        this.compactTokens = settings.getBoolean(XQueryConstants.COMPACT_TOKENS_KEY);
+        this.parseErrorLimit = settings.getInt(XQueryConstants.PARSE_ERROR_LIMIT_KEY);
+        this.parseRecoveryTimeout = settings.getLong(XQueryConstants.PARSE_RECOVERY_TIMEOUT_KEY);
+        this.watchdog = new FileWatchdog(settings.getLong(XQueryConstants.FILE_TIME_BUDGET_KEY),
+            settings.getLong(XQueryConstants.FILE_MEMORY_BUDGET_KEY) * 1024 * 1024);
+        this.treeCache = new TreeCache(declarationsOnly ? 0 : settings.getLong(XQueryConstants.TREE_CACHE_SIZE_KEY) * 1024 * 1024);
+    }
+
+    /**
+     * Creates the source code object for a file. Always called on the thread
+     * that started the analysis.
+     */
+    protected abstract SourceCode createSourceCode(File file);
+
+    /**
+     * Creates a new set of checks. Called once for each thread so the check
+     * instances are never shared.
+     */
+    protected abstract List<XQueryAstVisitor> createChecks();
+
+    /**
+     * Saves the results gathered for a file. Always called on the thread that
+     * started the analysis, and in the same order as the files unless there
+     * is a schedule.
+     */
+    protected abstract void save(SourceCode sourceCode);
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public TreeCache getTreeCache() {
+        return treeCache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the cache with the results of the previous run, so that files that
+     * haven't changed since then are not analyzed again. No results are
+     * cached by default.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public SymbolIndex getSymbolIndex() {
+        return symbolIndex;
+    }
+
+    /**
+     * Sets the index with the global declarations of the previous run, so
+     * that files that haven't changed since then are not mapped again. No
+     * declarations are indexed by default.
+     */
+    public void setSymbolIndex(SymbolIndex symbolIndex) {
+        this.symbolIndex = symbolIndex;
+    }
+
+    public FileWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public TreeDumps getTreeDumps() {
+        return treeDumps;
+    }
+
+    /**
+     * Sets the dumps that the syntax trees of the analyzed files are written
+     * to. No trees are written by default.
+     */
+    public void setTreeDumps(TreeDumps treeDumps) {
+        this.treeDumps = treeDumps;
+    }
+
+    public AnalysisProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Sets the profile that the phases, visitors and files of the analysis
+     * are measured in. Nothing is measured by default.
+     */
+    public void setProfile(AnalysisProfile profile) {
+        this.profile = profile;
+    }
+
+    public FileSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * Sets the schedule that orders the files by how long they took in the
+     * previous run. The files are processed in their own order by default.
+     */
+    public void setSchedule(FileSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /**
+     * Does the first pass and maps the global declarations of all the
+     * specified files.
+     *
+     * @param files
+     *            The files to map
+     * @return A "global" mapper with the declarations of all the files
+     */
+    public DependencyMapper mapDependencies(List<File> files) {
+        long start = System.nanoTime();
+        final DependencyMapper mapper = new DependencyMapper();
+        if (symbolIndex != null) {
+            symbolIndex.load();
+        }
+        if (schedule != null) {
+            schedule.load();
+            schedule.startPass("mapping");
+        }
+
+        // When the files are scheduled they are done out of order, so their
+        // declarations are kept until all of them are mapped
+        final Map<File, DependencyMapper> fileMappers = schedule != null ? new HashMap<File, DependencyMapper>() : null;
+
+        run(files, new FileTask<DependencyMapper>() {
+            public DependencyMapper process(File file, SourceCode sourceCode, FileWatchdog.Watch watch) {
+                try {
+                    // Use the declarations from the index if the file hasn't
+                    // changed since it was indexed
+                    String hash = null;
+                    if (symbolIndex != null) {
+                        hash = hash(file);
+                        DependencyMapper fileMapper = symbolIndex.restore(file, hash);
+                        if (fileMapper != null) {
+                            carry(file);
+                            return fileMapper;
+                        }
+                    }
+
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Mapping " + sourceCode);
+                    }
+
+                    // Each file gets its own mapper so that the declarations
+                    // can be merged in the order of the files
+                    DependencyMapper fileMapper = new DependencyMapper();
+                    XQueryAstParser parser = createParser(sourceCode, Arrays.asList(new XQueryAstVisitor[] { fileMapper }));
+                    ProblemReporter reporter = createReporter();
+                    XQueryTree tree;
+                    enter(watch, FileWatchdog.Phase.PARSE);
+                    if (declarationsOnly) {
+                        tree = parser.parseDeclarations(reporter);
+                        addLexTime(parser);
+                        if (tree != null) {
+                            enter(watch, FileWatchdog.Phase.MAP);
+                            parser.mapDependencies(tree, fileMapper);
+                        }
+                    } else {
+                        tree = parser.parse(reporter);
+                        addLexTime(parser);
+                        if (tree != null) {
+                            enter(watch, FileWatchdog.Phase.MAP);
+                            parser.mapDependencies(tree, fileMapper);
+                        }
+
+                        // Keep the tree so the analysis pass can reuse it
+                        treeCache.put(file, sourceCode, tree, reporter);
+                    }
+                    if (hash != null) {
+                        enter(watch, FileWatchdog.Phase.PERSIST);
+                        symbolIndex.record(file, hash, fileMapper);
+                    }
+                    return fileMapper;
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Could not map the dependencies in the file " + sourceCode, e);
+                    return null;
+                } finally {
+                    release(sourceCode);
+                }
+            }
+
+            public void complete(File file, SourceCode sourceCode, DependencyMapper fileMapper) {
+                if (fileMapper == null) {
+                    return;
+                }
+                if (fileMappers != null) {
+                    fileMappers.put(file, fileMapper);
+                } else {
+                    mapper.addGlobalDeclarations(fileMapper);
+                }
+            }
+
+            public void skip(File file, String message) {
+                // The analysis pass skips it too, the tree isn't needed
+                treeCache.discard(file);
+            }
+        });
+
+        if (fileMappers != null) {
+            for (File file : files) {
+                DependencyMapper fileMapper = fileMappers.get(file);
+                if (fileMapper != null) {
+                    mapper.addGlobalDeclarations(fileMapper);
+                }
+            }
+            schedule.endPass();
+        }
+        if (symbolIndex != null) {
+            logger.info(symbolIndex.toString());
+            symbolIndex.save();
+        }
+        if (profile != null) {
+            profile.addPass("mapping", System.nanoTime() - start);
+        }
+
+        // Now that the global mappings are done we can change the mode to
+        // "local"
+        mapper.setMode("local");
+        return mapper;
+    }
+
+    /**
+     * Does the second pass and processes the checks and other metrics for all
+     * the specified files. The results of each file are passed to save().
+     *
+     * @param files
+     *            The files to analyze
+     * @param mapper
+     *            The mapper with the global declarations from the first pass
+     */
+    public void analyze(List<File> files, final DependencyMapper mapper) {
+        long start = System.nanoTime();
+        // Stuck threads get their workers replaced from the watchdog
+        final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+        int workerCount = pipelined ? threads - threads / 2 : threads;
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(createWorker(mapper));
+        }
+
+        if (resultCache != null) {
+            resultCache.load();
+            resultCache.setGlobalDeclarations(mapper);
+        }
+        if (schedule != null) {
+            schedule.startPass("analysis");
+        }
+
+        FileTask<SourceCode> task = new FileTask<SourceCode>() {
+            private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>(workers);
+
+            // The workers that are processing the files
+            private final Map<File, Worker> busy = new ConcurrentHashMap<File, Worker>();
+
+            public SourceCode process(File file, SourceCode sourceCode, FileWatchdog.Watch watch) throws InterruptedException {
+                AnalysisPipeline.Job job = new AnalysisPipeline.Job(file, sourceCode, watch);
+                if (replay(job)) {
+                    return sourceCode;
+                }
+                Worker worker = idle.take();
+                busy.put(file, worker);
+                try {
+                    parse(job);
+                    check(job, worker);
+                    return sourceCode;
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Could not analyze the file " + sourceCode, e);
+                    return null;
+                } finally {
+                    // Unless it was replaced while the file was skipped
+                    if (busy.remove(file) != null) {
+                        idle.add(worker);
+                    }
+                    release(sourceCode);
+                }
+            }
+
+            public void complete(File file, SourceCode sourceCode, SourceCode result) {
+                if (result != null) {
+                    AnalysisProfile.Sample sample = profile != null ? profile.sample() : null;
+                    save(result);
+                    if (sample != null) {
+                        profile.record(FileWatchdog.Phase.PERSIST, file, sample);
+                    }
+                }
+            }
+
+            public void skip(File file, String message) {
+                // The thread that was processing the file may never stop, so
+                // its worker is replaced for the other files
+                Worker worker = busy.remove(file);
+                if (worker != null) {
+                    workers.remove(worker);
+                    Worker replacement = createWorker(mapper);
+                    workers.add(replacement);
+                    idle.add(replacement);
+                }
+
+                // The source code of the file may still be used by the
+                // thread that was processing it
+                treeCache.discard(file);
+                SourceCode sourceCode = createSourceCode(file);
+                sourceCode.addIssue(new Issue(SkippedFileCheck.RULE, 1, message));
+                new XQueryLineCountParser(sourceCode).count();
+                save(sourceCode);
+            }
+        };
+        if (pipelined) {
+            runPipeline(files, mapper, workers, task);
+        } else {
+            run(files, task);
+        }
+
+        if (treeCache.isEnabled()) {
+            logger.info(treeCache.toString());
+        }
+        treeCache.clear();
+
+        if (resultCache != null) {
+            logger.info(resultCache.toString());
+            resultCache.save();
+        }
+        if (schedule != null) {
+            schedule.endPass();
+            schedule.save();
+        }
+        hashes.clear();
+        skipped.clear();
+
+        if (profile != null) {
+            for (Worker worker : workers) {
+                ((ProfiledDispatcher) worker.dispatcher).addTo(profile);
+            }
+            profile.addPass("analysis", System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Replays the results of the previous run if nothing the file depends on
+     * has changed, returns whether it did.
+     */
+    private boolean replay(AnalysisPipeline.Job job) {
+        if (resultCache != null) {
+            try {
+                job.setHash(hash(job.getFile()));
+                if (resultCache.replay(job.getFile(), job.getHash(), job.getSourceCode())) {
+                    treeCache.discard(job.getFile());
+                    carry(job.getFile());
+                    return true;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read the file " + job.getSourceCode() + " to check the analysis cache", e);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Uses the tree from the mapping pass if it was kept, otherwise parses
+     * the file again.
+     */
+    private void parse(AnalysisPipeline.Job job) throws Exception {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Analyzing " + job.getSourceCode());
+        }
+
+        TreeCache.Entry cached = treeCache.take(job.getFile());
+        if (cached != null) {
+            job.setTree(cached.getTree(), cached.getReporter());
+        } else {
+            enter(job.getWatch(), FileWatchdog.Phase.PARSE);
+            XQueryAstParser parser = createParser(job.getSourceCode(), Collections.<XQueryAstVisitor> emptyList());
+            ProblemReporter reporter = createReporter();
+            job.setTree(parser.parse(reporter), reporter);
+            addLexTime(parser);
+        }
+        if (treeDumps != null) {
+            treeDumps.dump(job.getFile(), job.getTree());
+        }
+    }
+
+    /*
+     * Runs the checks of a worker on the tree of a file and counts its lines.
+     */
+    private void check(AnalysisPipeline.Job job, Worker worker) {
+        SourceCode sourceCode = job.getSourceCode();
+        try {
+            XQueryAstParser parser = createParser(sourceCode, worker.dispatcher.getVisitors());
+            parser.setDispatcher(worker.dispatcher);
+            enter(job.getWatch(), FileWatchdog.Phase.CHECK);
+            parser.process(job.getTree(), worker.mapper, job.getReporter());
+
+            // Count the lines of code
+            new XQueryLineCountParser(sourceCode).count();
+
+            // A file that went over its error budget has cut off results,
+            // they depend on the budget and on how fast this run was
+            if (job.getHash() != null && !isCancelled(job.getReporter())) {
+                enter(job.getWatch(), FileWatchdog.Phase.PERSIST);
+                resultCache.record(job.getFile(), job.getHash(), sourceCode, worker.mapper);
+            }
+        } finally {
+            // Don't let a failed file leave local declarations behind for the
+            // next file this worker processes
+            worker.mapper.resetStack();
+            worker.release();
+            job.setTree(null, null);
+        }
+    }
+
+    private static boolean isCancelled(ProblemReporter reporter) {
+        return reporter != null && reporter.isCancelled();
+    }
+
+    /*
+     * Does the analysis pass in a pipeline: a reader reads the files ahead
+     * (and replays the cached ones), the parser threads parse them and the
+     * check threads, one for each worker, run the checks. The parser and
+     * check threads share the analysis threads, so the stages don't use
+     * more processors than that; the reader mostly waits for the disk. The calling thread
+     * saves the results in the order of the files (or in the order they are
+     * done when they are scheduled), so every call to save() still happens
+     * on it.
+     */
+    private void runPipeline(List<File> files, DependencyMapper mapper, List<Worker> workers, FileTask<SourceCode> task) {
+        int perThread = streaming ? 1 : FILES_PER_THREAD;
+        AnalysisPipeline pipeline = new AnalysisPipeline(watchdog, profile, schedule);
+        pipeline.addStage("read", FileWatchdog.Phase.READ, perThread, Collections.singletonList(new AnalysisPipeline.Step() {
+            public void process(AnalysisPipeline.Job job) {
+                if (replay(job)) {
+                    job.finish();
+                } else {
+                    job.getSourceCode().getSource();
+                }
+            }
+
+            public AnalysisPipeline.Step replace() {
+                return this;
+            }
+        }));
+        AnalysisPipeline.Step parse = new AnalysisPipeline.Step() {
+            public void process(AnalysisPipeline.Job job) throws Exception {
+                parse(job);
+            }
+
+            public AnalysisPipeline.Step replace() {
+                return this;
+            }
+        };
+        int parseThreads = threads / 2;
+        pipeline.addStage("parse", null, threads * perThread, Collections.nCopies(parseThreads, parse));
+        List<AnalysisPipeline.Step> checks = new ArrayList<AnalysisPipeline.Step>();
+        for (Worker worker : new ArrayList<Worker>(workers)) {
+            checks.add(checkStep(worker, mapper, workers));
+        }
+        pipeline.addStage("check", null, threads * perThread, checks);
+
+        pipeline.start();
+        try {
+            LinkedList<AnalysisPipeline.Job> pending = new LinkedList<AnalysisPipeline.Job>();
+            Iterator<File> iterator = order(files).iterator();
+            while (iterator.hasNext() || !pending.isEmpty()) {
+                while (iterator.hasNext() && pending.size() < pipeline.getCapacity()) {
+                    File file = iterator.next();
+                    AnalysisPipeline.Job job = new AnalysisPipeline.Job(file, createSourceCode(file), watch(file));
+                    pending.add(job);
+                    pipeline.submit(job);
+                }
+                AnalysisPipeline.Job job;
+                if (schedule != null) {
+                    job = pipeline.awaitAny(pending);
+                } else {
+                    job = pending.removeFirst();
+                    pipeline.await(job);
+                }
+                long saveStart = System.nanoTime();
+                complete(task, job.getWatch(), job.getSourceCode(), job.isFailed() ? null : job.getSourceCode());
+                pipeline.addSaved(System.nanoTime() - saveStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SonarException(e);
+        } finally {
+            pipeline.stop();
+            watchdog.close();
+        }
+        logger.info(pipeline.toString());
+    }
+
+    /*
+     * Runs the checks of a worker in the pipeline. A thread that is stuck in
+     * a cancelled file is replaced with a new worker, since the worker can't
+     * be used by another thread until it is done.
+     */
+    private AnalysisPipeline.Step checkStep(final Worker worker, final DependencyMapper mapper, final List<Worker> workers) {
+        return new AnalysisPipeline.Step() {
+            public void process(AnalysisPipeline.Job job) {
+                try {
+                    check(job, worker);
+                } finally {
+                    release(job.getSourceCode());
+                }
+            }
+
+            public AnalysisPipeline.Step replace() {
+                Worker replacement = createWorker(mapper);
+                workers.remove(worker);
+                workers.add(replacement);
+                return checkStep(replacement, mapper, workers);
+            }
+        };
+    }
+
+    private Worker createWorker(DependencyMapper mapper) {
+        return new Worker(createChecks(), mapper.createLocalMapper(), profile != null);
+    }
+
+    /*
+     * Creates the parser for one file, timing its lexers when profiling.
+     */
+    private XQueryAstParser createParser(SourceCode sourceCode, List<XQueryAstVisitor> visitors) {
+        XQueryAstParser parser = new XQueryAstParser(sourceCode, visitors);
+        parser.setCompactTokens(compactTokens);
+        parser.setTimeLexers(profile != null);
+        return parser;
+    }
+
+    /*
+     * Lets go of the code of a file that has been processed, when streaming.
+     * Only the results are kept until the file is saved.
+     */
+    private void release(SourceCode sourceCode) {
+        if (streaming) {
+            sourceCode.releaseSource();
+        }
+    }
+
+    private void addLexTime(XQueryAstParser parser) {
+        if (profile != null) {
+            profile.addLexTime(parser.getLexTime());
+        }
+    }
+
+    /*
+     * Moves a file on to the next phase, for the watchdog and the profile.
+     */
+    private void enter(FileWatchdog.Watch watch, FileWatchdog.Phase phase) {
+        watch.setPhase(phase);
+        if (profile != null) {
+            profile.enter(phase);
+        }
+    }
+
+    /*
+     * Creates the reporter for one file, with the error budget that stops
+     * the parse of files that are too broken to be worth it.
+     */
+    private ProblemReporter createReporter() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setErrorBudget(parseErrorLimit, parseRecoveryTimeout);
+        return reporter;
+    }
+
+    /*
+     * Hashes the content of a file, only once for both passes unless
+     * streaming.
+     */
+    private String hash(File file) throws IOException {
+        String hash = hashes.get(file);
+        if (hash == null) {
+            hash = CacheFiles.hash(file);
+            if (!streaming) {
+                hashes.put(file, hash);
+            }
+        }
+        return hash;
+    }
+
+    /*
+     * Keeps the duration of a file from the previous run when its results
+     * come from a cache, so it isn't scheduled as if it took no time at all
+     * once it changes.
+     */
+    private void carry(File file) {
+        if (schedule != null) {
+            schedule.carry(file);
+        }
+    }
+
+    /*
+     * Orders the files by the schedule, if there is one.
+     */
+    private List<File> order(List<File> files) {
+        return schedule != null ? schedule.order(files) : files;
+    }
+
+    /*
+     * Processes each of the files with the task. Results are completed in the
+     * order of the files, or as soon as they are done when the files are
+     * scheduled, and at most a few files per thread are processed ahead of
+     * the ones that are waiting to be completed. A file that goes over its
+     * budget is skipped as soon as the watchdog cancels it, even if the
+     * thread processing it never notices.
+     */
+    private <T> void run(List<File> files, final FileTask<T> task) {
+        // With a budget even a single thread processes the files on an
+        // analysis thread, so the calling thread can move on from a file
+        // that never stops
+        if (threads == 1 && !watchdog.isEnabled()) {
+            try {
+                for (File file : order(files)) {
+                    SourceCode sourceCode = createSourceCode(file);
+                    FileWatchdog.Watch watch = watch(file);
+                    complete(task, watch, sourceCode, call(task, file, sourceCode, watch));
+                }
+            } finally {
+                watchdog.close();
+            }
+            return;
+        }
+
+        AnalysisExecutor executor = new AnalysisExecutor(threads);
+        try {
+            // The results that are done, when they are completed in that
+            // order
+            BlockingQueue<FileResult<T>> done = schedule != null ? new LinkedBlockingQueue<FileResult<T>>() : null;
+            LinkedList<FileResult<T>> results = new LinkedList<FileResult<T>>();
+            Iterator<File> iterator = order(files).iterator();
+            while (iterator.hasNext() || !results.isEmpty()) {
+                while (iterator.hasNext() && results.size() < ahead) {
+                    final File file = iterator.next();
+                    final SourceCode sourceCode = createSourceCode(file);
+                    final FileWatchdog.Watch watch = watch(file);
+                    FileResult<T> result = new FileResult<T>(new Callable<T>() {
+                        public T call() throws Exception {
+                            return ProjectAnalyzer.this.call(task, file, sourceCode, watch);
+                        }
+                    }, executor, sourceCode, watch, done);
+                    watch.setFuture(result);
+                    results.add(result);
+                    executor.execute(result);
+                }
+                FileResult<T> result = done != null ? take(done) : results.getFirst();
+                results.remove(result);
+                T value = get(result);
+                if (result.watch.isCancelled()) {
+                    result.replace();
+                }
+                complete(task, result.watch, result.sourceCode, value);
+            }
+        } finally {
+            executor.shutdownNow();
+            watchdog.close();
+        }
+    }
+
+    /*
+     * Creates the watch for a file, already cancelled if the file was skipped
+     * by an earlier pass.
+     */
+    private FileWatchdog.Watch watch(File file) {
+        FileWatchdog.Watch watch = watchdog.watch(file);
+        String message = skipped.get(file);
+        if (message != null) {
+            watch.cancel(message);
+        }
+        return watch;
+    }
+
+    private <T> T call(FileTask<T> task, File file, SourceCode sourceCode, FileWatchdog.Watch watch) {
+        if (watch.isCancelled()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        watchdog.start(watch);
+        if (profile != null) {
+            // Read the file up front so the read phase measures it
+            profile.startFile(file);
+            sourceCode.getSource();
+        }
+        try {
+            return task.process(file, sourceCode, watch);
+        } catch (InterruptedException e) {
+            if (watch.isCancelled()) {
+                return null;
+            }
+            Thread.currentThread().interrupt();
+            throw new SonarException(e);
+        } catch (CancellationException e) {
+            if (watch.isCancelled()) {
+                return null;
+            }
+            throw e;
+        } finally {
+            if (profile != null) {
+                profile.endFile();
+            }
+            watchdog.stop(watch);
+            if (schedule != null) {
+                schedule.record(file, start, System.nanoTime());
+            }
+        }
+    }
+
+    private <T> void complete(FileTask<T> task, FileWatchdog.Watch watch, SourceCode sourceCode, T result) {
+        if (!watch.isCancelled()) {
+            task.complete(watch.getFile(), sourceCode, result);
+            return;
+        }
+
+        String message = skipped.get(watch.getFile());
+        if (message == null) {
+            message = watch.getMessage();
+            skipped.put(watch.getFile(), message);
+            logger.warning(message);
+        }
+        task.skip(watch.getFile(), message);
+    }
+
+    private <T> FileResult<T> take(BlockingQueue<FileResult<T>> done) {
+        try {
+            return done.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SonarException(e);
+        }
+    }
+
+    private <T> T get(Future<T> result) {
+        try {
+            return result.get();
+        } catch (CancellationException e) {
+            // Cancelled by the watchdog
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SonarException(e);
+        } catch (ExecutionException e) {
+            throw new SonarException(e.getCause());
+        }
+    }
+
+    /*
+     * Work that is done for each file. The file is processed on any of the
+     * analysis threads and completed on the calling thread.
+     */
+    private interface FileTask<T> {
+        T process(File file, SourceCode sourceCode, FileWatchdog.Watch watch) throws InterruptedException;
+
+        void complete(File file, SourceCode sourceCode, T result);
+
+        /*
+         * Called instead of complete() for a file that went over its budget.
+         */
+        void skip(File file, String message);
+    }
+
+    /*
+     * The result of a file that is processed on one of the analysis threads,
+     * with what is needed to complete it. It is added to the queue of results
+     * that are done, if there is one, as soon as it is done or cancelled.
+     */
+    private static class FileResult<T> extends FutureTask<T> {
+        private final AnalysisExecutor executor;
+        private final SourceCode sourceCode;
+        private final FileWatchdog.Watch watch;
+        private final BlockingQueue<FileResult<T>> done;
+        private boolean running;
+        private boolean replaced;
+
+        private FileResult(Callable<T> callable, AnalysisExecutor executor, SourceCode sourceCode, FileWatchdog.Watch watch,
+                           BlockingQueue<FileResult<T>> done) {
+            super(callable);
+            this.executor = executor;
+            this.sourceCode = sourceCode;
+            this.watch = watch;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                running = true;
+            }
+            try {
+                super.run();
+            } finally {
+                boolean replaced;
+                synchronized (this) {
+                    running = false;
+                    replaced = this.replaced;
+                }
+                if (replaced) {
+                    executor.release();
+                }
+            }
+        }
+
+        /*
+         * Adds a thread for the other files if the thread processing this
+         * one is still busy with it, the extra thread goes away once this
+         * one is done.
+         */
+        private void replace() {
+            synchronized (this) {
+                if (!running || replaced) {
+                    return;
+                }
+                replaced = true;
+            }
+            executor.replace();
+        }
+
+        @Override
+        protected void done() {
+            if (done != null) {
+                done.add(this);
+            }
+        }
+    }
+
+    /*
+     * Runs the files on a fixed number of analysis threads, apart from the
+     * threads that are stuck with a file that was cancelled: an extra thread
+     * is added for each of them.
+     */
+    private static class AnalysisExecutor extends ThreadPoolExecutor {
+
+        private AnalysisExecutor(int threads) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new AnalysisThreadFactory());
+        }
+
+        private synchronized void replace() {
+            setMaximumPoolSize(getMaximumPoolSize() + 1);
+            setCorePoolSize(getCorePoolSize() + 1);
+        }
+
+        private synchronized void release() {
+            setCorePoolSize(getCorePoolSize() - 1);
+            setMaximumPoolSize(getMaximumPoolSize() - 1);
+        }
+    }
+
+    /*
+     * The visitors that are used by one thread at a time, and the table that
+     * dispatches the nodes to them (measuring each call when profiling).
+     */
+    private static class Worker {
+        private final XQueryAstDispatcher dispatcher;
+        private final DependencyMapper mapper;
+
+        private Worker(List<XQueryAstVisitor> checks, DependencyMapper mapper, boolean profiled) {
+            // Add the mapper after the checks so that it can keep track of
+            // the local declaration stack
+            List<XQueryAstVisitor> visitors = new ArrayList<XQueryAstVisitor>(checks);
+            visitors.add(mapper);
+            this.dispatcher = profiled ? new ProfiledDispatcher(visitors) : new XQueryAstDispatcher(visitors);
+            this.mapper = mapper;
+        }
+
+        /*
+         * Lets go of the file the checks were last run on, so it isn't kept
+         * until this worker processes another one.
+         */
+        private void release() {
+            for (XQueryAstVisitor visitor : dispatcher.getVisitors()) {
+                if (visitor instanceof AbstractCheck) {
+                    ((AbstractCheck) visitor).setSourceCode(null);
+                }
+            }
+        }
+    }
+
+    /*
+     * Names the analysis threads and makes sure they never keep the JVM alive.
+     */
+    private static class AnalysisThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "xquery-analysis-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
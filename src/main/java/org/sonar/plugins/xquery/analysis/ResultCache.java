@@ -0,0 +1,390 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.measures.Metric;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.node.Import;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the results of analyzing each file between runs so that files that
+ * haven't changed don't have to be parsed and checked again. A file is only
+ * replayed from the cache when:
+ * <ul>
+ * <li>the content of the file has the same hash,</li>
+ * <li>the plugin version, the active rules (and their parameters) and the
+ * settings the results depend on, like the error budget, are the
+ * same as when the cache was written, and</li>
+ * <li>the global declarations of the modules the file imports (and of its own
+ * module namespace) are the same as when the file was analyzed.</li>
+ * </ul>
+ * Otherwise the file is analyzed as usual and its new results are recorded.
+ * Files that could not be analyzed, or that went over their error budget and
+ * only have the results of the part that was parsed, are never cached.
+ * The issues and measures of a file are cached, the analysis doesn't add any
+ * dependencies to the files.
+ *
+ * @since 2.1
+ */
+public class ResultCache {
+
+    private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+
+    public static final String FILE_NAME = "xquery-analysis-cache.bin";
+
+    // Change this whenever the layout of the cache file changes
+    private static final int FORMAT_VERSION = 3;
+
+    private final File cacheFile;
+    private final String basePath;
+    private final String rules;
+
+    private Map<String, Entry> previous = new HashMap<String, Entry>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+    private Map<String, String> namespaces = new HashMap<String, String>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Creates a cache that is stored in the specified file.
+     *
+     * @param cacheFile
+     *            The file the cache is read from and written to
+     * @param baseDir
+     *            The base directory of the project, so the cache doesn't
+     *            depend on where the project is checked out
+     * @param rules
+     *            A description of the active rules and their parameters,
+     *            and of the settings the results depend on, any change to it
+     *            invalidates the whole cache
+     */
+    public ResultCache(File cacheFile, File baseDir, String rules) {
+        this.cacheFile = cacheFile;
+        this.basePath = baseDir != null ? baseDir.getAbsolutePath() + File.separator : null;
+        this.rules = rules;
+    }
+
+    /**
+     * Reads the results of the previous run. The cache is ignored if it
+     * doesn't exist, can't be read or was written by a different version of
+     * the plugin or with different rules.
+     */
+    public void load() {
+        previous = new HashMap<String, Entry>();
+        if (!cacheFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != FORMAT_VERSION || !CacheFiles.PLUGIN_VERSION.equals(CacheFiles.readString(in)) || !rules.equals(CacheFiles.readString(in))) {
+                logger.info("Analysis cache was written with a different version or rules, analyzing all files");
+                return;
+            }
+
+            Map<String, Entry> entries = new HashMap<String, Entry>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String path = CacheFiles.readString(in);
+                entries.put(path, readEntry(in));
+            }
+            previous = entries;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the analysis cache " + cacheFile + ", analyzing all files", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the results of this run. Only the files that were analyzed or
+     * replayed in this run are kept, so deleted files drop out of the cache.
+     */
+    public void save() {
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            cacheFile.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            CacheFiles.writeString(out, CacheFiles.PLUGIN_VERSION);
+            CacheFiles.writeString(out, rules);
+
+            Map<String, Entry> entries = new TreeMap<String, Entry>(current);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                CacheFiles.writeString(out, entry.getKey());
+                writeEntry(out, entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            CacheFiles.replace(temp, cacheFile);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the analysis cache " + cacheFile, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Takes a fingerprint of the global declarations of each module namespace,
+     * to compare with the fingerprints that were recorded with each file.
+     *
+     * @param mapper
+     *            The mapper with the global declarations of the project
+     */
+    public void setGlobalDeclarations(DependencyMapper mapper) {
+        Map<String, List<String>> declarations = new HashMap<String, List<String>>();
+        for (Declaration declaration : mapper.getGlobalDeclarations().values()) {
+            String namespace = nullToEmpty(declaration.getNamespace());
+            List<String> list = declarations.get(namespace);
+            if (list == null) {
+                list = new ArrayList<String>();
+                declarations.put(namespace, list);
+            }
+            list.add(describe(declaration));
+        }
+
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> entry : declarations.entrySet()) {
+            Collections.sort(entry.getValue());
+            fingerprints.put(entry.getKey(), CacheFiles.hash(entry.getValue().toString()));
+        }
+        namespaces = fingerprints;
+    }
+
+    /**
+     * Adds the cached results of a file to its source code, if they are still
+     * valid.
+     *
+     * @param file
+     *            The file being analyzed
+     * @param hash
+     *            The current hash of the file
+     * @param sourceCode
+     *            The source code to add the results to
+     * @return Whether the results were replayed, if not the file has to be
+     *         analyzed
+     */
+    public boolean replay(File file, String hash, SourceCode sourceCode) {
+        String path = getPath(file);
+        Entry entry = previous.get(path);
+        if (entry == null || !entry.hash.equals(hash) || !isCurrent(entry.namespaces)) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        for (Issue issue : entry.issues) {
+            sourceCode.addIssue(issue);
+        }
+        for (Measure measure : entry.measures) {
+            Measure copy = new Measure(measure.getMetric());
+            copy.setValue(measure.getValue());
+            copy.setData(measure.getData());
+            sourceCode.addMeasure(copy);
+        }
+
+        current.put(path, entry);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records the results of a file that was analyzed.
+     *
+     * @param file
+     *            The file that was analyzed
+     * @param hash
+     *            The hash of the file
+     * @param sourceCode
+     *            The source code with the results
+     * @param mapper
+     *            The "local" mapper that processed the file, with its imports
+     *            and module namespace still set
+     */
+    public void record(File file, String hash, SourceCode sourceCode, DependencyMapper mapper) {
+        Entry entry = new Entry(hash);
+
+        // The file depends on the declarations of its own namespace and of
+        // every module it imports
+        addNamespace(entry, mapper.getNamespace());
+        for (Import imported : mapper.getImports().values()) {
+            addNamespace(entry, imported.getNamespace());
+        }
+
+        entry.issues.addAll(sourceCode.getIssues());
+        // Distributions and other data measures have no value
+        for (Measure measure : sourceCode.getMeasures()) {
+            if (measure.getValue() != null || measure.getData() != null) {
+                entry.measures.add(measure);
+            }
+        }
+
+        current.put(getPath(file), entry);
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Analysis cache: " + hits + " files replayed, " + misses + " files analyzed";
+    }
+
+    private void addNamespace(Entry entry, String namespace) {
+        namespace = nullToEmpty(namespace);
+        entry.namespaces.put(namespace, nullToEmpty(namespaces.get(namespace)));
+    }
+
+    private boolean isCurrent(Map<String, String> fingerprints) {
+        for (Map.Entry<String, String> fingerprint : fingerprints.entrySet()) {
+            if (!fingerprint.getValue().equals(nullToEmpty(namespaces.get(fingerprint.getKey())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getPath(File file) {
+        String path = file.getAbsolutePath();
+        if (basePath != null && path.startsWith(basePath)) {
+            return path.substring(basePath.length());
+        }
+        return path;
+    }
+
+    private static String describe(Declaration declaration) {
+        StringBuffer buffer = new StringBuffer(declaration.getClass().getSimpleName());
+        buffer.append(' ').append(declaration.getName()).append(' ').append(declaration.getType()).append(' ').append(declaration.getLine());
+        if (declaration instanceof Function) {
+            List<String> parameters = new ArrayList<String>();
+            for (Declaration parameter : ((Function) declaration).getParameters().values()) {
+                parameters.add(parameter.getName() + " " + parameter.getType());
+            }
+            Collections.sort(parameters);
+            buffer.append(' ').append(parameters);
+        }
+        return buffer.toString();
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        Entry entry = new Entry(CacheFiles.readString(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            String namespace = CacheFiles.readString(in);
+            entry.namespaces.put(namespace, CacheFiles.readString(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            RuleKey rule = RuleKey.parse(CacheFiles.readString(in));
+            int line = in.readInt();
+            entry.issues.add(new Issue(rule, line, CacheFiles.readString(in)));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String key = CacheFiles.readString(in);
+            Metric metric = getMetric(key);
+            if (metric == null) {
+                throw new IOException("Unknown metric " + key);
+            }
+            Measure measure = new Measure(metric);
+            if (in.readBoolean()) {
+                measure.setValue(in.readDouble());
+            }
+            if (in.readBoolean()) {
+                measure.setData(CacheFiles.readString(in));
+            }
+            entry.measures.add(measure);
+        }
+        return entry;
+    }
+
+    private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        CacheFiles.writeString(out, entry.hash);
+        out.writeInt(entry.namespaces.size());
+        for (Map.Entry<String, String> namespace : entry.namespaces.entrySet()) {
+            CacheFiles.writeString(out, namespace.getKey());
+            CacheFiles.writeString(out, namespace.getValue());
+        }
+        out.writeInt(entry.issues.size());
+        for (Issue issue : entry.issues) {
+            CacheFiles.writeString(out, issue.rule().toString());
+            out.writeInt(issue.line());
+            CacheFiles.writeString(out, issue.message());
+        }
+        out.writeInt(entry.measures.size());
+        for (Measure measure : entry.measures) {
+            CacheFiles.writeString(out, measure.getMetric().getKey());
+            out.writeBoolean(measure.getValue() != null);
+            if (measure.getValue() != null) {
+                out.writeDouble(measure.getValue());
+            }
+            out.writeBoolean(measure.getData() != null);
+            if (measure.getData() != null) {
+                CacheFiles.writeString(out, measure.getData());
+            }
+        }
+    }
+
+    private static Metric getMetric(String key) {
+        for (Metric metric : CoreMetrics.getMetrics()) {
+            if (metric.getKey().equals(key)) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    /*
+     * The results of one file and the fingerprints of the namespaces it
+     * depends on.
+     */
+    private static class Entry {
+        private final String hash;
+        private final Map<String, String> namespaces = new HashMap<String, String>();
+        private final List<Issue> issues = new ArrayList<Issue>();
+        private final List<Measure> measures = new ArrayList<Measure>();
+
+        private Entry(String hash) {
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the global declarations (module functions and variables) that each
+ * file added to the dependency mapper between runs, so that the mapping pass
+ * only has to parse the files whose content has changed. The declarations of
+ * an unchanged file are restored into a mapper of their own, exactly as if the
+ * file had been mapped again, so the merged global declarations are the same
+ * either way.
+ *
+ * @since 2.1
+ */
+public class SymbolIndex {
+
+    private static final Logger logger = Logger.getLogger(SymbolIndex.class.getName());
+
+    public static final String FILE_NAME = "xquery-symbol-index.bin";
+
+    // Change this whenever the layout of the index file changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte DECLARATION = 0;
+    private static final byte FUNCTION = 1;
+
+    private final File indexFile;
+    private final String basePath;
+
+    private Map<String, Entry> previous = new HashMap<String, Entry>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Creates an index that is stored in the specified file.
+     *
+     * @param indexFile
+     *            The file the index is read from and written to
+     * @param baseDir
+     *            The base directory of the project, so the index doesn't
+     *            depend on where the project is checked out
+     */
+    public SymbolIndex(File indexFile, File baseDir) {
+        this.indexFile = indexFile;
+        this.basePath = baseDir != null ? baseDir.getAbsolutePath() + File.separator : null;
+    }
+
+    /**
+     * Reads the index of the previous run. The index is ignored if it doesn't
+     * exist, can't be read or was written by a different version of the
+     * plugin.
+     */
+    public void load() {
+        previous = new HashMap<String, Entry>();
+        if (!indexFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != FORMAT_VERSION || !CacheFiles.PLUGIN_VERSION.equals(CacheFiles.readString(in))) {
+                logger.info("Symbol index was written with a different version, mapping all files");
+                return;
+            }
+
+            Map<String, Entry> entries = new HashMap<String, Entry>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String path = CacheFiles.readString(in);
+                entries.put(path, readEntry(in));
+            }
+            previous = entries;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read the symbol index " + indexFile + ", mapping all files", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the index of this run. Only the files that were mapped or
+     * restored in this run are kept, so deleted files drop out of the index.
+     */
+    public void save() {
+        File temp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            indexFile.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            CacheFiles.writeString(out, CacheFiles.PLUGIN_VERSION);
+
+            Map<String, Entry> entries = new TreeMap<String, Entry>(current);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                CacheFiles.writeString(out, entry.getKey());
+                writeEntry(out, entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            CacheFiles.replace(temp, indexFile);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the symbol index " + indexFile, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Creates a "global" mapper with the declarations that were indexed for a
+     * file, if the file hasn't changed.
+     *
+     * @param file
+     *            The file being mapped
+     * @param hash
+     *            The current hash of the file
+     * @return The mapper with the declarations of the file, or null if the
+     *         file has to be mapped again
+     */
+    public DependencyMapper restore(File file, String hash) {
+        String path = getPath(file);
+        Entry entry = previous.get(path);
+        if (entry == null || !entry.hash.equals(hash)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        DependencyMapper mapper = new DependencyMapper();
+        mapper.setNamespace(entry.namespace);
+        mapper.setPrefix(entry.prefix);
+        for (Declaration declaration : entry.declarations) {
+            mapper.getGlobalDeclarations().put(declaration.hashCode(), declaration);
+        }
+
+        current.put(path, entry);
+        hits.incrementAndGet();
+        return mapper;
+    }
+
+    /**
+     * Records the declarations of a file that was mapped.
+     *
+     * @param file
+     *            The file that was mapped
+     * @param hash
+     *            The hash of the file
+     * @param mapper
+     *            The "global" mapper that mapped only this file
+     */
+    public void record(File file, String hash, DependencyMapper mapper) {
+        Entry entry = new Entry(hash, mapper.getNamespace(), mapper.getPrefix());
+        entry.declarations.addAll(mapper.getGlobalDeclarations().values());
+        current.put(getPath(file), entry);
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Symbol index: " + hits + " files restored, " + misses + " files mapped";
+    }
+
+    private String getPath(File file) {
+        String path = file.getAbsolutePath();
+        if (basePath != null && path.startsWith(basePath)) {
+            return path.substring(basePath.length());
+        }
+        return path;
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        String hash = CacheFiles.readString(in);
+        String namespace = CacheFiles.readString(in);
+        Entry entry = new Entry(hash, namespace, CacheFiles.readString(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            if (in.readByte() == FUNCTION) {
+                Function function = new Function(null, null);
+                readDeclaration(in, function);
+                for (int j = in.readInt(); j > 0; j--) {
+                    Declaration parameter = new Declaration(null, null);
+                    readDeclaration(in, parameter);
+                    function.addParameter(parameter);
+                }
+                entry.declarations.add(function);
+            } else {
+                Declaration declaration = new Declaration(null, null);
+                readDeclaration(in, declaration);
+                entry.declarations.add(declaration);
+            }
+        }
+        return entry;
+    }
+
+    private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        CacheFiles.writeString(out, entry.hash);
+        CacheFiles.writeString(out, entry.namespace);
+        CacheFiles.writeString(out, entry.prefix);
+        out.writeInt(entry.declarations.size());
+        for (Declaration declaration : entry.declarations) {
+            if (declaration instanceof Function) {
+                out.writeByte(FUNCTION);
+                writeDeclaration(out, declaration);
+                Map<String, Declaration> parameters = ((Function) declaration).getParameters();
+                out.writeInt(parameters.size());
+                for (Declaration parameter : parameters.values()) {
+                    writeDeclaration(out, parameter);
+                }
+            } else {
+                out.writeByte(DECLARATION);
+                writeDeclaration(out, declaration);
+            }
+        }
+    }
+
+    private void readDeclaration(DataInputStream in, Declaration declaration) throws IOException {
+        declaration.setName(CacheFiles.readString(in));
+        declaration.setNamespace(CacheFiles.readString(in));
+        declaration.setType(CacheFiles.readString(in));
+        declaration.setLine(in.readInt());
+    }
+
+    private void writeDeclaration(DataOutputStream out, Declaration declaration) throws IOException {
+        CacheFiles.writeString(out, declaration.getName());
+        CacheFiles.writeString(out, declaration.getNamespace());
+        CacheFiles.writeString(out, declaration.getType());
+        out.writeInt(declaration.getLine());
+    }
+
+    /*
+     * The global declarations of one file and the module namespace they were
+     * declared in.
+     */
+    private static class Entry {
+        private final String hash;
+        private final String namespace;
+        private final String prefix;
+        private final List<Declaration> declarations = new ArrayList<Declaration>();
+
+        private Entry(String hash, String namespace, String prefix) {
+            this.hash = hash;
+            this.namespace = namespace;
+            this.prefix = prefix;
+        }
+    }
+}
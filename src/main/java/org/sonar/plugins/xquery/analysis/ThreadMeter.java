@@ -0,0 +1,93 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the CPU time and the allocated bytes of threads, as far as the JVM
+ * can measure them. The values that can't be measured are always 0.
+ *
+ * @since 2.1
+ */
+final class ThreadMeter {
+
+    private static final Logger logger = Logger.getLogger(ThreadMeter.class.getName());
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU = enableCpuTime();
+    private static final Allocations ALLOCATIONS = Allocations.create();
+
+    private ThreadMeter() {
+    }
+
+    public static boolean isCpuTimeSupported() {
+        return CPU;
+    }
+
+    public static boolean isAllocatedBytesSupported() {
+        return ALLOCATIONS != null;
+    }
+
+    /**
+     * @return The CPU time of the current thread in nanoseconds
+     */
+    public static long getCpuTime() {
+        return CPU ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * @return The bytes allocated by a thread so far
+     */
+    public static long getAllocatedBytes(Thread thread) {
+        return ALLOCATIONS != null && thread != null ? ALLOCATIONS.get(thread.getId()) : 0;
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (THREADS.isCurrentThreadCpuTimeSupported()) {
+                if (!THREADS.isThreadCpuTimeEnabled()) {
+                    THREADS.setThreadCpuTimeEnabled(true);
+                }
+                return true;
+            }
+        } catch (UnsupportedOperationException e) {
+            logger.log(Level.FINE, "No thread CPU time measurement", e);
+        }
+        return false;
+    }
+
+    /*
+     * Kept apart so the JVMs without the com.sun.management classes never
+     * load them.
+     */
+    private static class Allocations {
+        private final com.sun.management.ThreadMXBean threads;
+
+        private Allocations(com.sun.management.ThreadMXBean threads) {
+            this.threads = threads;
+        }
+
+        static Allocations create() {
+            try {
+                if (THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()) {
+                    ((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(true);
+                    return new Allocations((com.sun.management.ThreadMXBean) THREADS);
+                }
+            } catch (LinkageError e) {
+                logger.log(Level.FINE, "No thread allocation measurement", e);
+            }
+            return null;
+        }
+
+        long get(long id) {
+            return threads.getThreadAllocatedBytes(id);
+        }
+    }
+}
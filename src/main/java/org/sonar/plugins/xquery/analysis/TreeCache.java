@@ -0,0 +1,174 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the syntax trees that were parsed in the dependency mapping pass so
+ * that the analysis pass doesn't have to parse the files again. The size of a
+ * tree is estimated from the length of its source code and the cache never
+ * holds more than the configured number of bytes.
+ *
+ * Both passes go through the files in the same order, so when the cache is
+ * full the new tree is dropped instead of an older one - the older trees are
+ * the ones the analysis pass is going to need first.
+ *
+ * @since 2.1
+ */
+public class TreeCache {
+
+    // Average heap used by a syntax tree (nodes, tokens and the character
+    // buffer they point to) for each character of source code
+    static final int BYTES_PER_CHAR = 48;
+
+    private final long maxBytes;
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+    private long bytes;
+
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    /**
+     * Creates a cache that holds at most the specified number of bytes. A
+     * size of 0 disables the cache.
+     *
+     * @param maxBytes
+     *            The maximum estimated size of the cached trees
+     */
+    public TreeCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the tree for a file to the cache, if there is room for it.
+     *
+     * @param file
+     *            The file that was parsed
+     * @param sourceCode
+     *            The source code of the file, used to estimate the tree size
+     * @param tree
+     *            The parsed tree
+     * @param reporter
+     *            The reporter with the problems found while parsing
+     */
+    public synchronized void put(File file, SourceCode sourceCode, XQueryTree tree, ProblemReporter reporter) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        long size = estimateSize(sourceCode);
+        if (bytes + size > maxBytes) {
+            evictions++;
+            return;
+        }
+
+        Entry previous = entries.put(file, new Entry(tree, reporter, size));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+    }
+
+    /**
+     * Removes the tree for a file from the cache and returns it. Each tree is
+     * only used once by the analysis pass.
+     *
+     * @param file
+     *            The file to get the tree for
+     * @return The cached tree, or null if it isn't in the cache
+     */
+    public synchronized Entry take(File file) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            bytes -= entry.size;
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the tree for a file from the cache without using it, for files
+     * the analysis pass doesn't need to parse. Doesn't count as a hit or miss.
+     *
+     * @param file
+     *            The file to remove the tree for
+     */
+    public synchronized void discard(File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    private long estimateSize(SourceCode sourceCode) {
+        return (sourceCode.getSource().length() + 1L) * BYTES_PER_CHAR;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuffer buffer = new StringBuffer("Syntax tree cache: ");
+        buffer.append(hits).append(" hits, ").append(misses).append(" misses, ").append(evictions).append(" evictions (");
+        buffer.append(maxBytes / (1024 * 1024)).append(" MB budget)");
+        return buffer.toString();
+    }
+
+    /**
+     * A parsed tree and the problems that were found while parsing it.
+     */
+    public static class Entry {
+        private final XQueryTree tree;
+        private final ProblemReporter reporter;
+        private final long size;
+
+        private Entry(XQueryTree tree, ProblemReporter reporter, long size) {
+            this.tree = tree;
+            this.reporter = reporter;
+            this.size = size;
+        }
+
+        public XQueryTree getTree() {
+            return tree;
+        }
+
+        public ProblemReporter getReporter() {
+            return reporter;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.utils.WildcardPattern;
+import org.sonar.plugins.xquery.parser.XQueryParser;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the syntax trees of the files that match a set of patterns to the
+ * working directory, one node per line, for diagnosing how a file was parsed.
+ * Nothing is done for the files that don't match.
+ *
+ * @since 2.1
+ */
+public class TreeDumps {
+
+    private static final Logger logger = Logger.getLogger(TreeDumps.class.getName());
+
+    public static final String DIRECTORY_NAME = "xquery-trees";
+
+    private final File directory;
+    private final String basePath;
+    private final WildcardPattern[] patterns;
+
+    /**
+     * Creates the dumps for the files matching the patterns.
+     *
+     * @param directory
+     *            The directory the trees are written to, under the path of
+     *            each file
+     * @param baseDir
+     *            The base directory of the project, the patterns are matched
+     *            against the paths of the files relative to it
+     * @param patterns
+     *            Ant-style patterns, like "**&#47;lib/*.xqy"
+     */
+    public TreeDumps(File directory, File baseDir, String[] patterns) {
+        this.directory = directory;
+        this.basePath = baseDir != null ? baseDir.getAbsolutePath() + File.separator : null;
+        this.patterns = WildcardPattern.create(patterns);
+    }
+
+    public boolean matches(File file) {
+        return WildcardPattern.match(patterns, getPath(file));
+    }
+
+    /**
+     * Writes the tree of a file if the file matches the patterns.
+     *
+     * @param file
+     *            The file that was parsed
+     * @param tree
+     *            The tree of the file
+     */
+    public void dump(File file, XQueryTree tree) {
+        if (tree == null || !matches(file)) {
+            return;
+        }
+
+        File dump = new File(directory, getPath(file) + ".txt");
+        Writer out = null;
+        try {
+            dump.getParentFile().mkdirs();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dump), "UTF-8"));
+            write(out, tree, 0);
+            out.close();
+            out = null;
+            logger.info("Wrote the syntax tree of " + file + " to " + dump);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the syntax tree of " + file + " to " + dump, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /*
+     * Writes a node as "Type 'text' line:column" (the text and position are
+     * left out of the nodes that don't come from the code) and its children
+     * indented below it.
+     */
+    private void write(Writer out, XQueryTree node, int depth) throws IOException {
+        out.write(StringUtils.repeat("  ", depth));
+        int type = node.getType();
+        String name = type >= 0 && type < XQueryParser.tokenNames.length ? XQueryParser.tokenNames[type] : "nil";
+        out.write(name);
+        String text = node.getText();
+        if (text != null && !text.equals(name)) {
+            out.write(" '");
+            out.write(StringUtils.replace(StringUtils.replace(text, "\r", "\\r"), "\n", "\\n"));
+            out.write("'");
+        }
+        if (node.getToken() != null && node.getToken().getLine() > 0) {
+            out.write(" " + node.getToken().getLine() + ":" + node.getToken().getCharPositionInLine());
+        }
+        out.write('\n');
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            write(out, node.getChild(i), depth + 1);
+        }
+    }
+
+    private String getPath(File file) {
+        String path = file.getAbsolutePath();
+        if (basePath != null && path.startsWith(basePath)) {
+            path = path.substring(basePath.length());
+        }
+        return StringUtils.removeStart(path.replace(File.separatorChar, '/'), "/");
+    }
+}
@@ -9,10 +9,40 @@ public interface XQueryConstants {
     static String FILE_EXTENSIONS_KEY = "sonar.xquery.fileExtensions";
     static String SOURCE_DIRECTORY_KEY = "sonar.xquery.sourceDirectory";
     static String XQTEST_REPORTS_DIRECTORY_KEY = "sonar.xqtest.reportsPath";
+    static String THREADS_KEY = "sonar.xquery.threads";
+    static String TREE_CACHE_SIZE_KEY = "sonar.xquery.treeCacheSize";
+    static String DECLARATIONS_ONLY_MAPPING_KEY = "sonar.xquery.mapDeclarationsOnly";
+    static String ANALYSIS_CACHE_KEY = "sonar.xquery.analysisCache";
+    static String SYMBOL_INDEX_KEY = "sonar.xquery.symbolIndex";
+    static String COMPACT_TOKENS_KEY = "sonar.xquery.compactTokens";
+    static String TREE_DUMP_FILES_KEY = "sonar.xquery.treeDumpFiles";
+    static String PARSE_ERROR_LIMIT_KEY = "sonar.xquery.parseErrorLimit";
+    static String PARSE_RECOVERY_TIMEOUT_KEY = "sonar.xquery.parseRecoveryTimeout";
+    static String FILE_TIME_BUDGET_KEY = "sonar.xquery.fileTimeBudget";
+    static String FILE_MEMORY_BUDGET_KEY = "sonar.xquery.fileMemoryBudget";
+    static String PROFILE_KEY = "sonar.xquery.profile";
+    static String STREAMING_KEY = "sonar.xquery.streaming";
+    static String PIPELINE_KEY = "sonar.xquery.pipeline";
+    static String SCHEDULE_KEY = "sonar.xquery.schedule";
 
     static String XQUERY_LANGUAGE_NAME = "XQuery";
     static String[] DEFAULT_FILE_EXTENSIONS = {"xqy", "xquery", "xq", "xqi", "xql", "xqm", "xqws"};
     static String DEFAULT_FILE_EXTENSIONS_STRING = "xqy, xquery, xq, xqi, xql, xqm, xqws";
     static String DEFAULT_SOURCE_DIRECTORY = "src/main/xquery";
     static String DEFAULT_XQTEST_DIRECTORY = "target/xqtest-reports";
+    static String DEFAULT_THREADS = "0";
+    static String DEFAULT_TREE_CACHE_SIZE = "256";
+    static String DEFAULT_DECLARATIONS_ONLY_MAPPING = "true";
+    static String DEFAULT_ANALYSIS_CACHE = "true";
+    static String DEFAULT_SYMBOL_INDEX = "true";
+    static String DEFAULT_COMPACT_TOKENS = "true";
+    static String DEFAULT_TREE_DUMP_FILES = "";
+    static String DEFAULT_PARSE_ERROR_LIMIT = "1000";
+    static String DEFAULT_PARSE_RECOVERY_TIMEOUT = "10000";
+    static String DEFAULT_FILE_TIME_BUDGET = "120000";
+    static String DEFAULT_FILE_MEMORY_BUDGET = "0";
+    static String DEFAULT_PROFILE = "false";
+    static String DEFAULT_STREAMING = "false";
+    static String DEFAULT_PIPELINE = "true";
+    static String DEFAULT_SCHEDULE = "true";
 }
@@ -6,6 +6,7 @@ package org.sonar.plugins.xquery.checks;
 
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 
 /**
  * Abstract class for checking rules inside of XQuery predicates. Keeps track of
@@ -14,6 +15,7 @@ import org.sonar.plugins.xquery.parser.XQueryTree;
  * 
  * @since 1.0
  */
+@NodeTypes({ XQueryParser.Predicate })
 public class AbstractPredicateCheck extends AbstractCheck {
 
     protected int level = 0;
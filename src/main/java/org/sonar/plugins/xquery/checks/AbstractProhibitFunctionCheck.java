@@ -7,10 +7,12 @@ package org.sonar.plugins.xquery.checks;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 
 import java.util.HashMap;
 import java.util.Map;
 
+@NodeTypes({ XQueryParser.ModuleImport, XQueryParser.FunctionCall })
 public abstract class AbstractProhibitFunctionCheck extends AbstractCheck {
 
     public Map<String, String> imports = new HashMap<String, String>();
@@ -6,7 +6,9 @@ package org.sonar.plugins.xquery.checks;
 
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 
+@NodeTypes({ XQueryParser.ModuleNamespace })
 public abstract class AbstractProhibitLibraryCheck extends AbstractCheck {
 
     @Override
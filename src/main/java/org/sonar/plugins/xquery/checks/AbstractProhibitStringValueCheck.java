@@ -6,9 +6,11 @@ package org.sonar.plugins.xquery.checks;
 
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 
 import java.util.regex.Pattern;
 
+@NodeTypes({ XQueryParser.StringLiteral })
 public abstract class AbstractProhibitStringValueCheck extends AbstractCheck {
       
     @Override
@@ -7,9 +7,17 @@ package org.sonar.plugins.xquery.checks;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 
 import java.util.regex.Pattern;
 
+@NodeTypes({
+    XQueryParser.ParamName,
+    XQueryParser.VarDecl,
+    XQueryParser.ForName,
+    XQueryParser.ForAt,
+    XQueryParser.LetName
+})
 public abstract class AbstractProhibitVariableCheck extends AbstractCheck {
       
     @Override
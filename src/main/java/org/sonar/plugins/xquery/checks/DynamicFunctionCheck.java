@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -24,6 +25,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "or if possible assign functions to variables to dynamically evaluate code logic.\n" +
             "Please note that this check is Marklogic specific.",
     priority = Priority.MAJOR)
+@NodeTypes({ XQueryParser.FunctionCall })
 public class DynamicFunctionCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "DynamicFunction";
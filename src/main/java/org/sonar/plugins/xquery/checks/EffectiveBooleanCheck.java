@@ -12,6 +12,7 @@ import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
 import org.sonar.plugins.xquery.parser.node.Declaration;
 import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -26,6 +27,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "fn:exists(), fn:empty(), or other boolean functions inside of conditional predicates to check values.",
     priority = Priority.MINOR
 )
+@NodeTypes({ XQueryParser.IfPredicate })
 public class EffectiveBooleanCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "EffectiveBoolean";
@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -26,6 +27,12 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "Please note that this check is Marklogic specific.",
 	priority = Priority.MAJOR
 )
+@NodeTypes({
+    XQueryParser.MainModule,
+    XQueryParser.LibraryModule,
+    XQueryParser.VersionValue,
+    XQueryParser.OptionDecl
+})
 public class FunctionMappingCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "FunctionMapping";
@@ -10,6 +10,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -24,6 +25,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "try assigning the results to a variable before the predicate.",
     priority = Priority.MAJOR
 )
+@NodeTypes({ XQueryParser.FunctionCall })
 public class OperationsInPredicateCheck extends AbstractPredicateCheck {
     // TODO: Either create a new check for or add to this checks for operations in xdmp:directory()
     // TODO: Support for fn:local-name(), fn:name(), fn:node-name()?
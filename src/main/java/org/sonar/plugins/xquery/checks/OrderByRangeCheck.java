@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -22,6 +23,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
         description = "Order bys or gt/lt checks on large numbers of documents " +
                 "might achieve better performance with a range index.",
         priority = Priority.INFO)
+@NodeTypes({ XQueryParser.OrderSpec })
 public class OrderByRangeCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "OrderByRange";
@@ -10,6 +10,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.reporter.Problem;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 @Rule(
@@ -19,6 +20,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "There may be a potential syntax error, or the parser just may not be able to process certain syntax.",
     priority = Priority.INFO
 )
+@NodeTypes({})
 public class ParseErrorCheck extends AbstractCheck {
     
     private static String[] MESSAGES = new String[] {"no viable alternative at character 'D'"};
@@ -28,6 +30,14 @@ public class ParseErrorCheck extends AbstractCheck {
 
     @Override
     public void checkReport(ProblemReporter reporter) {
+        // A file that wasn't parsed gets one issue instead of its cascade of
+        // errors, on the line where they start
+        if (reporter.isCancelled()) {
+            int line = reporter.getProblems().isEmpty() ? 0 : reporter.getProblems().get(0).getLine();
+            createIssue(RULE, line > 0 ? line : 1, reporter.getCancelledMessage());
+            return;
+        }
+
         boolean allowed = false;
         
         for (Problem problem : reporter.getProblems()) {
@@ -45,5 +55,12 @@ public class ParseErrorCheck extends AbstractCheck {
                 createIssue(RULE, line, problem.getMessage());
             }
         }
+
+        // The errors past the ones the reporter keeps are summed up on the
+        // line where they start, or the first line if that isn't known
+        if (reporter.getSuppressedCount() > 0) {
+            int line = reporter.getFirstSuppressedLine();
+            createIssue(RULE, line > 0 ? line : 1, reporter.getSuppressedMessage());
+        }
     }
 }
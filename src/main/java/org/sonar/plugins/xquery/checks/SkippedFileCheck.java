@@ -0,0 +1,37 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.checks;
+
+import org.sonar.api.rule.RuleKey;
+import org.sonar.check.BelongsToProfile;
+import org.sonar.check.Priority;
+import org.sonar.check.Rule;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+import org.sonar.plugins.xquery.rules.XQueryProfile;
+
+/**
+ * Marks the files the analysis gave up on. The issues are created by the
+ * project analyzer when a file goes over its time or memory budget, the check
+ * itself doesn't look at the code. It is in the default profile, so a skipped
+ * file isn't only mentioned in the log.
+ *
+ * @since 2.1
+ */
+@Rule(
+    key = SkippedFileCheck.RULE_KEY,
+    name = "Skipped File",
+    description = "The file took too long or used too much memory to be analyzed, so it was skipped. " +
+            "Only its line metrics are available. Very large or generated modules can be split, " +
+            "or the budget can be raised with the sonar.xquery.fileTimeBudget and sonar.xquery.fileMemoryBudget properties.",
+    priority = Priority.INFO
+)
+@BelongsToProfile(title = XQueryProfile.NAME, priority = Priority.INFO)
+@NodeTypes({})
+public class SkippedFileCheck extends AbstractCheck {
+
+    public static final String RULE_KEY = "SkippedFile";
+    public static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+}
@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -26,6 +27,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and include quantifiers on each type.",
     priority = Priority.CRITICAL
 )
+@NodeTypes({ XQueryParser.FunctionDecl })
 public class StrongTypingInFunctionDeclarationCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "StrongTypingInFunctionDeclaration";
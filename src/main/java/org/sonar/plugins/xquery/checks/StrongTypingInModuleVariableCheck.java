@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -25,6 +26,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and include quantifiers on each type.",
     priority = Priority.CRITICAL
 )
+@NodeTypes({ XQueryParser.VarDecl })
 public class StrongTypingInModuleVariableCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "StrongTypingInModuleVariables";
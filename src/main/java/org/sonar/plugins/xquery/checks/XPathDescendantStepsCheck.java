@@ -10,6 +10,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -23,6 +24,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
         description = "Favor fully-qualified paths in XPath " +
                 "for readability and to avoid potential performance problems.",
         priority = Priority.MINOR)
+@NodeTypes({ XQueryParser.PathExpr })
 public class XPathDescendantStepsCheck extends AbstractPathCheck {
 
     public static final String RULE_KEY = "XpathDescendantSteps";
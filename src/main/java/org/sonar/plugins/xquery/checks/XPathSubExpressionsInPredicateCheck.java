@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -24,6 +25,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "If the result is static it can be bound to a variable.",
     priority = Priority.INFO
 )
+@NodeTypes({ XQueryParser.PathExpr })
 public class XPathSubExpressionsInPredicateCheck extends AbstractPredicateCheck {
     // TODO: Maybe change this so it only catches nested predicates - unless
     // alternate ways to do sub-expressions is found
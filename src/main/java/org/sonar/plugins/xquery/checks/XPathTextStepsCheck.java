@@ -10,6 +10,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -24,6 +25,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "(through strong typing or default atomization).",
     priority = Priority.MINOR
 )
+@NodeTypes({ XQueryParser.PathExpr })
 public class XPathTextStepsCheck extends AbstractPathCheck {
 
     public static final String RULE_KEY = "XpathTextSteps";
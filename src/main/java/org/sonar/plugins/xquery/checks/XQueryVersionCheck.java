@@ -10,6 +10,7 @@ import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.language.XQuery;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -27,6 +28,7 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and consistent behavior in XQuery processing.",
     priority = Priority.MINOR
 )
+@NodeTypes({ XQueryParser.MainModule, XQueryParser.LibraryModule, XQueryParser.VersionValue })
 public class XQueryVersionCheck extends AbstractCheck {
 
     private boolean hasVersion = false;
@@ -0,0 +1,165 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.language;
+
+import org.apache.commons.io.IOUtils;
+import org.sonar.plugins.xquery.parser.LineIndex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The code of a file, decoded once into a single character array with the
+ * offsets where its lines start. The lines and the code string are read from
+ * the array instead of being kept as strings of their own, and the lexers read
+ * the array directly.
+ *
+ * The code is the same as reading the lines of the file and joining them with
+ * "\n": "\r\n" and "\r" are changed to "\n" and a newline at the end of the
+ * file is left out.
+ *
+ * @since 2.1
+ */
+public class SourceBuffer {
+
+    /**
+     * Files bigger than this are mapped into memory instead of being read
+     * into a byte array before they are decoded.
+     */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private final char[] chars;
+    private final int length;
+    private final boolean terminated;
+    private final LineIndex lines;
+    private final List<String> lineList = new Lines();
+
+    public SourceBuffer(String code) {
+        this(code.toCharArray(), code.length(), false);
+    }
+
+    private SourceBuffer(char[] chars, int length, boolean terminated) {
+        this.chars = chars;
+        this.length = length;
+        this.terminated = terminated;
+        this.lines = new LineIndex(CharBuffer.wrap(chars, 0, length));
+    }
+
+    /**
+     * Reads and decodes a file.
+     *
+     * @param file
+     *            The file to read
+     * @param encoding
+     *            The encoding of the file, characters that can't be decoded
+     *            are replaced
+     * @return The code of the file
+     */
+    public static SourceBuffer read(File file, String encoding) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer bytes;
+            if (size > MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0) {
+                        break;
+                    }
+                }
+                bytes.flip();
+            }
+
+            CharBuffer decoded = Charset.forName(encoding).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(bytes);
+            return normalize(decoded.array(), decoded.limit());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /*
+     * Changes the line breaks to "\n" in place and leaves out the last one.
+     */
+    private static SourceBuffer normalize(char[] chars, int length) {
+        int written = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c == '\r') {
+                c = '\n';
+                if (i + 1 < length && chars[i + 1] == '\n') {
+                    i++;
+                }
+            }
+            chars[written++] = c;
+        }
+
+        boolean terminated = written > 0 && chars[written - 1] == '\n';
+        return new SourceBuffer(chars, terminated ? written - 1 : written, terminated);
+    }
+
+    /**
+     * Gets the array with the code. Only the first length() characters are
+     * code, and the array must not be changed.
+     */
+    public char[] getChars() {
+        return chars;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * Gets the lines of the code. The strings are only created when a line is
+     * read, so reading a line more than once creates a new string each time.
+     */
+    public List<String> getLines() {
+        return lineList;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private class Lines extends AbstractList<String> implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Line " + index + " of " + size());
+            }
+            int start = lines.getLineStart(index + 1);
+            int end = index + 1 < lines.getLineCount() ? lines.getLineStart(index + 2) - 1 : length;
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public int size() {
+            // An empty file has no lines, but a file with just a newline has
+            // one empty line
+            return length > 0 || terminated ? lines.getLineCount() : 0;
+        }
+    }
+}
@@ -17,6 +17,18 @@ public interface SourceCode {
 
     public List<String> getCode();
 
+    /**
+     * Gets the code in a single buffer, for reading it without copying the
+     * lines into a string.
+     */
+    public SourceBuffer getSource();
+
+    /**
+     * Lets go of the code read from the file once it is no longer needed. It
+     * is read again if it is asked for after that.
+     */
+    public void releaseSource();
+
     public List<Issue> getIssues();
 
     public List<Dependency> getDependencies();
@@ -27,6 +39,8 @@ public interface SourceCode {
 
     public void addMeasure(Metric metric, double value);
 
+    public void addMeasure(Measure measure);
+
     public void addDependency(File dependencyResource);
 
     public File getResource();
@@ -9,7 +9,8 @@ import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.xquery.checks.AbstractCheck;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -33,9 +34,11 @@ public class XQueryLineCountParser extends AbstractCheck {
     }
 
     public void count() {
-        logger.fine("Count comment in " + sourceCode.getResource().getLongName());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Count comment in " + sourceCode.getResource().getLongName());
+        }
         
-        ArrayList<String> code = (ArrayList<String>) sourceCode.getCode();
+        List<String> code = sourceCode.getCode();
 
         if (code != null && code.size() > 0) {
             try {
@@ -8,7 +8,6 @@
 
 package org.sonar.plugins.xquery.language;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.design.Dependency;
 import org.sonar.api.measures.Measure;
@@ -26,6 +25,7 @@ public class XQuerySourceCode implements SourceCode {
 
     private final File inputFile;
     private List<String> code = new ArrayList<String>();
+    private SourceBuffer source;
     private final org.sonar.api.resources.File resource;
     private final List<Measure> measures = new ArrayList<Measure>();
     private final List<Dependency> dependencies = new ArrayList<Dependency>();
@@ -65,21 +65,45 @@ public class XQuerySourceCode implements SourceCode {
 
     @Override
     public String getCodeString() {
-        return StringUtils.join(getCode(), "\n");
+        if (isFile()) {
+            return getSource().toString();
+        }
+        return StringUtils.join(code, "\n");
     }
 
     @Override
     public List<String> getCode() {
-        if (inputFile != null && code.size() == 0) {
+        if (isFile()) {
+            return getSource().getLines();
+        }
+        return code;
+    }
+
+    @Override
+    public SourceBuffer getSource() {
+        if (!isFile()) {
+            return new SourceBuffer(getCodeString());
+        }
+        if (source == null) {
             try {
-                code = FileUtils.readLines(inputFile, "UTF-8");
-                return code;
+                source = SourceBuffer.read(inputFile, "UTF-8");
             } catch (IOException e) {
                 throw new SonarException(e);
             }
-        } else {
-            return code;
         }
+        return source;
+    }
+
+    @Override
+    public void releaseSource() {
+        source = null;
+    }
+
+    /*
+     * The code is read from the file unless the lines were passed in.
+     */
+    private boolean isFile() {
+        return inputFile != null && code.isEmpty();
     }
 
     public org.sonar.api.resources.File getResource() {
@@ -112,6 +136,11 @@ public class XQuerySourceCode implements SourceCode {
         this.measures.add(measure);
     }
 
+    @Override
+    public void addMeasure(Measure measure) {
+        this.measures.add(measure);
+    }
+
     @Override
     public void addDependency(org.sonar.api.resources.File dependencyResource) {
         Dependency dependency = new Dependency(resource, dependencyResource);
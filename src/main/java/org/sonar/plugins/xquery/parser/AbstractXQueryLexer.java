@@ -66,15 +66,7 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
     @Override
     public void reportError(RecognitionException e) {
         if (reporter != null) {
-            reporter.reportError(getSourceName(), getErrorMessage(e, this.getTokenNames()), e.token);
-        }
-    }
-
-    public void rewindLine() {
-        ANTLRStringStream stream = (ANTLRStringStream)input;
-        int line = stream.getLine() - 1;
-        if (line >= 1) {
-            stream.setLine(stream.getLine() - 1);
+            reporter.reportError(getSourceName(), this, e);
         }
     }
 
@@ -83,6 +75,23 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
         stream.seek(index);
     }
 
+    /**
+     * Moves the input back to a character that was already read, with the line
+     * and position in the line of that character. Seeking back alone keeps the
+     * line and position the input has after the last character it read.
+     *
+     * @param index
+     *            The index of the character to continue from
+     * @param lines
+     *            The line index of the input
+     */
+    public void rewindToIndex(int index, LineIndex lines) {
+        rewindToIndex(index);
+        int line = lines.getLine(index);
+        input.setLine(line);
+        input.setCharPositionInLine(index - lines.getLineStart(line));
+    }
+
     public void setIsWsExplicit(boolean wsExplicit) {
         fIsWsExplicit = wsExplicit;
     }
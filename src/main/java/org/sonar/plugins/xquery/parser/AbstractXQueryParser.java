@@ -22,13 +22,19 @@ import org.antlr.runtime.*;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class AbstractXQueryParser extends Parser implements XQueryLanguageConstants {
 
-    private final LazyTokenStream stream;
+    // The most lexers of each type that are kept for reuse
+    private static final int FREE_LEXERS = 4;
+
+    private LazyTokenStream stream;
     private ANTLRStringStream source;
     private ArrayList<AbstractXQueryLexer> lexerStack;
+    private final Map<Class<?>, List<AbstractXQueryLexer>> freeLexers = new HashMap<Class<?>, List<AbstractXQueryLexer>>();
     private int language;
     private ProblemReporter reporter;
 
@@ -83,6 +89,7 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
         AbstractXQueryLexer newLexer = lexerStack.remove(lexerStack.size() - 1);
         stream.setTokenSource(newLexer);
         oldLexer.postErrors();
+        freeLexer(oldLexer);
     }
 
     public void postErrors() {
@@ -100,20 +107,71 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
     }
 
     public void pushStringLexer(boolean isAposStr) {
-        StringLexer stringLexer = new StringLexer(source, isAposStr);        
+        StringLexer stringLexer = takeLexer(StringLexer.class);
+        if (stringLexer == null) {
+            stringLexer = new StringLexer(source, isAposStr);
+        } else {
+            stringLexer.setAposStr(isAposStr);
+        }
         pushLexer(stringLexer);
     }
 
     public void pushXMLLexer() {
-        XMLLexer xmlLexer = new XMLLexer(source);
+        XMLLexer xmlLexer = takeLexer(XMLLexer.class);
+        if (xmlLexer == null) {
+            xmlLexer = new XMLLexer(source);
+        }
         xmlLexer.setIsWsExplicit(true);
         pushLexer(xmlLexer);
     }
 
     public void pushXQueryLexer() {
-        XQueryLexer xqueryLexer = new XQueryLexer(source);
+        XQueryLexer xqueryLexer = takeLexer(XQueryLexer.class);
+        if (xqueryLexer == null) {
+            xqueryLexer = new XQueryLexer(source);
+        }
         pushLexer(xqueryLexer);
     }
+
+    /**
+     * Drops everything about the code that was parsed, so a parser that is
+     * kept to parse the next file doesn't hold on to the code and tokens of
+     * the last one. The lexers that were freed are kept.
+     */
+    public void release() {
+        lexerStack.clear();
+        input = null;
+        stream = null;
+        source = null;
+        reporter = null;
+    }
+
+    /*
+     * Gets a lexer that was popped earlier, ready to read from the current
+     * source, or null if there is none.
+     */
+    private <T extends AbstractXQueryLexer> T takeLexer(Class<T> type) {
+        List<AbstractXQueryLexer> lexers = freeLexers.get(type);
+        if (lexers == null || lexers.isEmpty()) {
+            return null;
+        }
+        AbstractXQueryLexer lexer = lexers.remove(lexers.size() - 1);
+        lexer.setCharStream(source);
+        return type.cast(lexer);
+    }
+
+    private void freeLexer(AbstractXQueryLexer lexer) {
+        List<AbstractXQueryLexer> lexers = freeLexers.get(lexer.getClass());
+        if (lexers == null) {
+            lexers = new ArrayList<AbstractXQueryLexer>(FREE_LEXERS);
+            freeLexers.put(lexer.getClass(), lexers);
+        }
+        if (lexers.size() < FREE_LEXERS) {
+            // Don't keep the source, it belongs to the file being parsed
+            lexer.setCharStream(null);
+            lexers.add(lexer);
+        }
+    }
     
     // The following methods are used form the generated parser
     // The short names help keeping the grammar source file smaller and readable
@@ -121,19 +179,27 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
     @Override
     public void reportError(RecognitionException e) {
         if (reporter != null) {
-            reporter.reportError(getSourceName(), getErrorMessage(e, this.getTokenNames()), e.token);
+            reporter.reportError(getSourceName(), this, e);
         }
     }
     
     @Override
     public void reset() {
         super.reset();
+        language = 0;
         if (lexerStack != null) {
             lexerStack.clear();
             stream.setWsExplicit(false);
         }
     }
 
+    @Override
+    public void setTokenStream(TokenStream input) {
+        // The stream has to be replaced first, reset() uses it
+        stream = (LazyTokenStream) input;
+        super.setTokenStream(input);
+    }
+
     public void setCharSource(ANTLRStringStream source) {
         this.source = source;
     }
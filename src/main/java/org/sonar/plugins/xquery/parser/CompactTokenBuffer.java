@@ -0,0 +1,198 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the tokens in parallel arrays instead of as token objects, about 12
+ * bytes per token instead of a token object each. Token objects are created
+ * when the parser asks for a token (the ones that end up in the tree are kept
+ * by the tree, the hidden whitespace and comment tokens usually never need
+ * one).
+ * 
+ * Only what can't be worked out from the other tokens is stored: the type
+ * and channel, the start index and the column. A token ends where the next
+ * one starts (the lexers never skip any characters) and the line only changes
+ * every few tokens, so lines are kept as runs. The text of a token is read
+ * from the character stream all the lexers share, so the lexers must not set
+ * the text of their tokens. Tokens that don't fit this (from another stream,
+ * or not right after the previous token) are kept as they are.
+ * 
+ * @since 2.1
+ */
+class CompactTokenBuffer extends TokenBuffer {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // Recently created token objects, so asking for the same token again
+    // (the parser looks at the next token many times) doesn't create a new
+    // one
+    private static final int RECENT_TOKENS = 64;
+
+    private static final int TYPE_MASK = 0xffff;
+    private static final int CHANNEL_SHIFT = 16;
+
+    private CharStream input;
+    private int size;
+    private int[] kinds = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] columns = new int[INITIAL_CAPACITY];
+    private int lastStop = -1;
+
+    // The line of the tokens from each index up to the next one
+    private int runs;
+    private int[] runStarts = new int[INITIAL_CAPACITY / 4];
+    private int[] runLines = new int[INITIAL_CAPACITY / 4];
+
+    private final Map<Integer, Token> pinned = new HashMap<Integer, Token>();
+    private final Token[] recent = new Token[RECENT_TOKENS];
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    Token get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        Token token = recent[i % RECENT_TOKENS];
+        if (token != null && token.getTokenIndex() == i) {
+            return token;
+        }
+        token = pinned.isEmpty() ? null : pinned.get(i);
+        if (token == null) {
+            CommonToken view = new CommonToken(input, getType(i), getChannel(i), starts[i], getStopIndex(i));
+            view.setLine(getLine(i));
+            view.setCharPositionInLine(columns[i]);
+            view.setTokenIndex(i);
+            token = view;
+        }
+        recent[i % RECENT_TOKENS] = token;
+        return token;
+    }
+
+    @Override
+    int getType(int i) {
+        return kinds[i] & TYPE_MASK;
+    }
+
+    @Override
+    int getChannel(int i) {
+        return kinds[i] >>> CHANNEL_SHIFT;
+    }
+
+    @Override
+    int getStopIndex(int i) {
+        Token token = pinned.isEmpty() ? null : pinned.get(i);
+        if (token != null) {
+            return ((CommonToken) token).getStopIndex();
+        }
+        return i == size - 1 ? lastStop : starts[i + 1] - 1;
+    }
+
+    @Override
+    String getText(int i) {
+        Token token = pinned.isEmpty() ? null : pinned.get(i);
+        if (token != null) {
+            return token.getText();
+        }
+        return input.substring(starts[i], getStopIndex(i));
+    }
+
+    @Override
+    void add(Token token) {
+        if (size == kinds.length) {
+            grow();
+        }
+
+        CommonToken common = (CommonToken) token;
+        if (input == null) {
+            input = common.getInputStream();
+        }
+
+        // Keep the previous token as it is if this one doesn't start right
+        // after it, since its end can't be worked out from this one
+        if (size > 0 && common.getStartIndex() != lastStop + 1 && !pinned.containsKey(size - 1)) {
+            pinned.put(size - 1, get(size - 1));
+        }
+
+        int type = common.getType();
+        int channel = common.getChannel();
+        if (common.getInputStream() != input || type < 0 || type > TYPE_MASK || channel < 0 || channel > TYPE_MASK) {
+            pinned.put(size, token);
+        }
+        kinds[size] = (type & TYPE_MASK) | (channel << CHANNEL_SHIFT);
+        starts[size] = common.getStartIndex();
+        columns[size] = common.getCharPositionInLine();
+        lastStop = common.getStopIndex();
+
+        if (runs == 0 || runLines[runs - 1] != common.getLine()) {
+            if (runs == runStarts.length) {
+                runStarts = copy(runStarts, runs * 2);
+                runLines = copy(runLines, runs * 2);
+            }
+            runStarts[runs] = size;
+            runLines[runs] = common.getLine();
+            runs++;
+        }
+
+        recent[size % RECENT_TOKENS] = null;
+        size++;
+    }
+
+    @Override
+    void truncate(int size) {
+        if (size >= this.size) {
+            return;
+        }
+        for (int i = size; i < this.size; i++) {
+            pinned.remove(i);
+            if (recent[i % RECENT_TOKENS] != null && recent[i % RECENT_TOKENS].getTokenIndex() == i) {
+                recent[i % RECENT_TOKENS] = null;
+            }
+        }
+        while (runs > 0 && runStarts[runs - 1] >= size) {
+            runs--;
+        }
+        lastStop = size > 0 ? getStopIndex(size - 1) : -1;
+        this.size = size;
+    }
+
+    private int getLine(int i) {
+        // Find the last run that starts at or before the token
+        int low = 0;
+        int high = runs - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (runStarts[middle] <= i) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return runLines[low];
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = copy(kinds, capacity);
+        starts = copy(starts, capacity);
+        columns = copy(columns, capacity);
+    }
+
+    private static int[] copy(int[] values, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(values, 0, copy, 0, values.length);
+        return copy;
+    }
+}
@@ -18,31 +18,57 @@
 
 package org.sonar.plugins.xquery.parser;
 
-import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.TokenSource;
 import org.antlr.runtime.TokenStream;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 public class LazyTokenStream implements TokenStream {
 
     private AbstractXQueryLexer tokenSource;
-    private List<Token> tokens;
+    private TokenBuffer tokens;
+    private LineIndex lines;
+
+    // The indexes of the buffered tokens that are on the channel, so looking
+    // ahead or back doesn't have to step over all the hidden tokens
+    private int[] good = new int[256];
+    private int goodCount = 0;
+    private int rankIndex = -1;
+    private int rank;
     private boolean isWsExplicit = false;
     private int p = 0;
+
+    // Checks the error budget of the source for each token, null for none
+    private ProblemReporter reporter;
+
+    // The wall time spent in the lexers, only measured when timed
+    private boolean timed;
+    private long lexTime;
     protected int channel = Token.DEFAULT_CHANNEL;
     protected int lastMarker;
 
     public LazyTokenStream() {
-        tokens = new ArrayList<Token>(500);
+        this(false);
+    }
+
+    /**
+     * @param compact
+     *            Whether to keep the tokens in compact arrays and only create
+     *            token objects for the tokens the parser asks for
+     */
+    public LazyTokenStream(boolean compact) {
+        tokens = compact ? new CompactTokenBuffer() : new TokenBuffer.ListTokenBuffer();
     }
 
     public LazyTokenStream(AbstractXQueryLexer tokenSource) {
-        this();
+        this(tokenSource, false);
+    }
+
+    public LazyTokenStream(AbstractXQueryLexer tokenSource, boolean compact) {
+        this(compact);
         this.tokenSource = tokenSource;
     }
 
@@ -61,15 +87,8 @@ public class LazyTokenStream implements TokenStream {
         if (k < 0)
             return readReverseNthGoodToken(-k);
 
-        Token t = readNthGoodToken(k);
-        
-        // If we are just starting out make sure the pointer to the stream is on
-        // a valid token (similar to what the CommonTokenStream does when it
-        // fills it's buffer)
-        if (p == 0) {
-            p = t.getTokenIndex();
-        }
-        return t;
+        int index = lookAhead(k);
+        return index < 0 ? Token.EOF_TOKEN : tokens.get(index);
     }
 
     public Token get(int i) {
@@ -91,7 +110,7 @@ public class LazyTokenStream implements TokenStream {
 
         StringBuilder sb = new StringBuilder();
         for (int i = start; i <= stop && i < tokens.size(); i++) {
-            sb.append(((Token) tokens.get(i)).getText());
+            sb.append(tokens.getText(i));
         }
         return sb.toString();
 
@@ -102,7 +121,13 @@ public class LazyTokenStream implements TokenStream {
     }
 
     public int LA(int i) {
-        return LT(i).getType();
+        if (i <= 0) {
+            return LT(i).getType();
+        }
+
+        // Look at the type without creating the token
+        int index = lookAhead(i);
+        return index < 0 ? Token.EOF : tokens.getType(index);
     }
 
     boolean done = false;
@@ -110,6 +135,9 @@ public class LazyTokenStream implements TokenStream {
     public void consume() {
         if (done)
             return;
+        if (reporter != null) {
+            reporter.checkRecovery(getSourceName());
+        }
         p++;
         if (!isWsExplicit) {
             jumpToFirstValidToken();
@@ -161,21 +189,16 @@ public class LazyTokenStream implements TokenStream {
         // un-read the unused tokens
         // they are different for the new source
         if (p < tokens.size()) {
-            int rIndex = p > 0 ? ((CommonToken) tokens.get(p - 1)).getStopIndex() : 0;
-            tokenSource.rewindToIndex(rIndex + 1);
-            for (int i = tokens.size() - 1; i >= p; i--) {
-                Token removed = tokens.remove(i);
-
-                // If the token source has read new lines and we are removing
-                // those, we should update the line numbers. Use a matcher to
-                // rewind one line for each newline character in the token, if
-                // any.
-                Pattern p = Pattern.compile("\\n");
-                Matcher m = p.matcher(removed.getText());
-                while (m.find()) {
-                    tokenSource.rewindLine();
-                }
+            int rIndex = p > 0 ? tokens.getStopIndex(p - 1) : 0;
+            // The lines of the input are only indexed the first time,
+            // all the lexers read the same input
+            if (lines == null) {
+                lines = LineIndex.create(tokenSource.getCharStream());
             }
+            tokenSource.rewindToIndex(rIndex + 1, lines);
+            goodCount = rank(p);
+            rankIndex = -1;
+            tokens.truncate(p);
         }
 
         // if we ignore WS, jump to next token
@@ -184,6 +207,31 @@ public class LazyTokenStream implements TokenStream {
         }
     }
 
+    /**
+     * @return The nanoseconds the lexers took to read the tokens, if the
+     *         stream is timed
+     */
+    public long getLexTime() {
+        return lexTime;
+    }
+
+    /**
+     * Sets the reporter whose recovery timeout is checked for each token that
+     * is read or consumed, so the parser can't spin in error recovery
+     * without ever reporting another error. There is none by default.
+     */
+    public void setReporter(ProblemReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Sets whether the time spent in the lexers is measured, it isn't by
+     * default.
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
     public void setWsExplicit(boolean explicit) {
         isWsExplicit = explicit;
         if (!explicit) {
@@ -191,72 +239,125 @@ public class LazyTokenStream implements TokenStream {
         }
     }
 
-    private Token readNthGoodToken(int n) {
-        int count = tokens.size();
-        // number of buffered tokens available
-        int avt = count - p;
-        // i counts good tokens, j counts all tokens
-        int i = 1, j = 0;
-        Token t = null;
-        while (i <= n) {
-            if (j < avt) // read from buffer
-                t = (Token) tokens.get(p + j);
-            else { // read from source
-                t = tokenSource.nextToken();
-                if (t == Token.EOF_TOKEN) {
-                    return t;
+    /*
+     * Finds the index of the nth good token ahead, or -1 for the end of the
+     * input.
+     */
+    private int lookAhead(int n) {
+        int index = readNthGoodToken(n);
+
+        // If we are just starting out make sure the pointer to the stream is on
+        // a valid token (similar to what the CommonTokenStream does when it
+        // fills it's buffer)
+        if (p == 0) {
+            p = index < 0 ? Token.EOF_TOKEN.getTokenIndex() : index;
+        }
+        return index;
+    }
+
+    private int readNthGoodToken(int n) {
+        if (isWsExplicit) {
+            int index = p + n - 1;
+            while (index >= tokens.size()) {
+                if (!readToken()) {
+                    return -1;
                 }
-                t.setTokenIndex(count++);
-                tokens.add(t);
             }
+            return index;
+        }
 
-            if (isWsExplicit || t.getChannel() == channel) {
-                i++;
+        int next = rank(p) + n - 1;
+        while (next >= goodCount) {
+            if (!readToken()) {
+                return -1;
             }
-            j++;
         }
-        return t;
+        return good[next];
     }
 
     private Token readReverseNthGoodToken(int n) {
         if (n == 0 || (p - n) < 0)
             return null;
 
-        // i counts good tokens, j counts all tokens
-        int i = 1, j = 0;
-        Token t = null;
-        while (p - 1 - j >= 0) {
-            t = get(p - 1 - j);
+        // Past the end of the buffer is the EOF token, which is on the
+        // default channel
+        int end = Math.min(p, tokens.size());
+        if (isWsExplicit || Token.EOF_TOKEN.getChannel() == channel) {
+            if (n <= p - end)
+                return Token.EOF_TOKEN;
+            n -= p - end;
+        }
+
+        if (isWsExplicit)
+            return end - n >= 0 ? tokens.get(end - n) : null;
 
-            if (isWsExplicit || t.getChannel() == channel) {
-                if (i++ == n)
-                    return t;
-            }
-            j++;
+        int previous = rank(end) - n;
+        return previous >= 0 ? tokens.get(good[previous]) : null;
+    }
+
+    /*
+     * Counts the buffered tokens on the channel before the index. The parser
+     * looks ahead many times from the same token, so the last count is kept.
+     */
+    private int rank(int index) {
+        if (index != rankIndex) {
+            int found = Arrays.binarySearch(good, 0, goodCount, index);
+            rank = found >= 0 ? found : -found - 1;
+            // The count can only change for indexes past the buffer
+            rankIndex = index <= tokens.size() ? index : -1;
         }
-        return null;
+        return rank;
     }
 
-    private void readNTokens(int n) {
-        Token t = null;
-        for (int i = 0; i < n; i++) {
-            if (tokens.size() > p + i)
-                continue;
+    /*
+     * Reads the next token from the source, returns false at the end of the
+     * input.
+     */
+    private boolean readToken() {
+        // Stop lexing when the analysis gives up on the file
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted while reading the tokens");
+        }
+        if (reporter != null) {
+            reporter.checkRecovery(getSourceName());
+        }
 
+        Token t;
+        if (timed) {
+            long start = System.nanoTime();
             t = tokenSource.nextToken();
-            if (t == Token.EOF_TOKEN)
-                return;
+            lexTime += System.nanoTime() - start;
+        } else {
+            t = tokenSource.nextToken();
+        }
+        if (t == Token.EOF_TOKEN) {
+            return false;
+        }
 
-            t.setTokenIndex(p + i);
-            tokens.add(t);
+        int index = tokens.size();
+        t.setTokenIndex(index);
+        tokens.add(t);
+        if (t.getChannel() == channel) {
+            if (goodCount == good.length) {
+                good = Arrays.copyOf(good, goodCount * 2);
+            }
+            good[goodCount++] = index;
+        }
+        return true;
+    }
+
+    private void readNTokens(int n) {
+        while (tokens.size() < p + n) {
+            if (!readToken())
+                return;
         }
     }
 
     public void jumpToFirstValidToken() {
-        Token t = LT(1);
-        if (t != Token.EOF_TOKEN) {
+        int index = lookAhead(1);
+        if (index >= 0) {
             done = false;
-            p = t.getTokenIndex();
+            p = index;
         }
     }  
 }
@@ -0,0 +1,86 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CharStream;
+
+import java.util.Arrays;
+
+/**
+ * The offsets where the lines of a piece of code start, so the line and column
+ * of any character can be found with a binary search instead of counting the
+ * newlines before it. Lines are counted the same way the character streams of
+ * the lexers count them: the first line is 1, the first column is 0 and only
+ * "\n" starts a new line.
+ *
+ * @since 2.1
+ */
+public final class LineIndex {
+
+    private final int[] starts;
+    private final int lines;
+
+    public LineIndex(CharSequence code) {
+        int[] starts = new int[64];
+        int lines = 1;
+        for (int i = 0; i < code.length(); i++) {
+            if (code.charAt(i) == '\n') {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = i + 1;
+            }
+        }
+        this.starts = starts;
+        this.lines = lines;
+    }
+
+    /**
+     * Creates the index of everything in a character stream, or gets the
+     * index the stream already has.
+     *
+     * @param input
+     *            The stream to index, its position isn't changed
+     * @return The index of the stream
+     */
+    public static LineIndex create(CharStream input) {
+        if (input instanceof SourceCharStream) {
+            return ((SourceCharStream) input).getLineIndex();
+        }
+        return new LineIndex(input.size() > 0 ? input.substring(0, input.size() - 1) : "");
+    }
+
+    public int getLineCount() {
+        return lines;
+    }
+
+    /**
+     * @param index
+     *            The index of a character
+     * @return The line of the character, starting at 1
+     */
+    public int getLine(int index) {
+        int line = Arrays.binarySearch(starts, 0, lines, index);
+        return line >= 0 ? line + 1 : -line - 1;
+    }
+
+    /**
+     * @param index
+     *            The index of a character
+     * @return The position of the character in its line, starting at 0
+     */
+    public int getCharPositionInLine(int index) {
+        return index - getLineStart(getLine(index));
+    }
+
+    /**
+     * @param line
+     *            A line, starting at 1
+     * @return The index of the first character of the line
+     */
+    public int getLineStart(int line) {
+        return starts[line - 1];
+    }
+}
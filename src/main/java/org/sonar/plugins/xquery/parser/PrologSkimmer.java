@@ -0,0 +1,350 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reduces a library module to the declarations that are needed to map its
+ * global dependencies. The bodies of the functions are replaced with "()" and
+ * so are the values of the variables, everything else (module declaration,
+ * imports, function signatures, variable names and types) is kept as it is.
+ * Newlines are kept as well, so the declarations are on the same lines as in
+ * the original code.
+ *
+ * The code is only scanned, not parsed: strings, comments and direct XML
+ * constructors are skipped by balancing the braces, quotes and tags. This
+ * isn't always right (a "less than" comparison can look like an element
+ * constructor), so the reduced code should be checked by parsing it.
+ *
+ * @since 2.1
+ */
+public class PrologSkimmer {
+
+    // Words that can come right before an expression, so a "<" after them
+    // starts an element constructor instead of being a comparison
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(new String[] {
+        "return", "then", "else", "satisfies", "in", "at", "and", "or", "to", "div", "idiv", "mod",
+        "eq", "ne", "lt", "le", "gt", "ge", "is", "union", "intersect", "except", "where", "by",
+        "case", "default", "of", "as", "collation", "ascending", "descending", "empty", "greatest",
+        "least", "stable", "order", "typeswitch", "some", "every", "let", "for", "if"
+    }));
+
+    private final char[] code;
+    private final int length;
+
+    private PrologSkimmer(String code) {
+        this.code = code.toCharArray();
+        this.length = this.code.length;
+    }
+
+    /**
+     * Reduces the code of a library module to its declarations.
+     *
+     * @param code
+     *            The code of a module
+     * @return The reduced code, or null if the code is not a library module
+     *         (main modules have no global declarations)
+     */
+    public static String skim(String code) {
+        return new PrologSkimmer(code).skim();
+    }
+
+    private String skim() {
+        if (!isLibraryModule()) {
+            return null;
+        }
+
+        int i = 0;
+        while (i < length) {
+            char c = code[i];
+            if (c == '(' && charAt(i + 1) == ':') {
+                i = skipComment(i);
+            } else if (c == '"' || c == '\'') {
+                i = skipString(i);
+            } else if (c == ':' && charAt(i + 1) == '=') {
+                // A variable value, up to the semicolon at the end of the
+                // declaration
+                int end = skipExpression(i + 2, true);
+                blank(i + 2, end);
+                i = end;
+            } else if (c == '{') {
+                // A function body
+                int end = skipExpression(i + 1, false);
+                blank(i + 1, end);
+                i = end + 1;
+            } else {
+                i++;
+            }
+        }
+        return new String(code);
+    }
+
+    /*
+     * Checks that the first thing in the code (after an optional version
+     * declaration) is a module declaration.
+     */
+    private boolean isLibraryModule() {
+        int i = skipSpace(0);
+        if ("xquery".equals(wordAt(i))) {
+            i += "xquery".length();
+            while (i < length && code[i] != ';') {
+                i = code[i] == '"' || code[i] == '\'' ? skipString(i) : i + 1;
+            }
+            i = skipSpace(i + 1);
+        }
+        if (!"module".equals(wordAt(i))) {
+            return false;
+        }
+        return "namespace".equals(wordAt(skipSpace(i + "module".length())));
+    }
+
+    /*
+     * Skips an expression and returns the position of the closing brace that
+     * ends it (or the semicolon, if the expression can end with one).
+     */
+    private int skipExpression(int i, boolean semicolon) {
+        while (i < length) {
+            char c = code[i];
+            if (c == '}' || (semicolon && c == ';')) {
+                return i;
+            } else if (c == '{') {
+                i = skipExpression(i + 1, false) + 1;
+            } else if (c == '(' && charAt(i + 1) == ':') {
+                i = skipComment(i);
+            } else if (c == '"' || c == '\'') {
+                i = skipString(i);
+            } else if (c == '<' && startsWith(i, "<!--")) {
+                i = skipTo(i + 4, "-->");
+            } else if (c == '<' && charAt(i + 1) == '?' && isNameStart(charAt(i + 2))) {
+                i = skipTo(i + 2, "?>");
+            } else if (c == '<' && isNameStart(charAt(i + 1)) && isConstructor(i)) {
+                i = skipElement(i);
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /*
+     * Skips a direct element constructor, including its attributes and
+     * content.
+     */
+    private int skipElement(int i) {
+        i++;
+        while (i < length && isNameChar(code[i])) {
+            i++;
+        }
+        while (i < length) {
+            char c = code[i];
+            if (c == '/' && charAt(i + 1) == '>') {
+                return i + 2;
+            } else if (c == '>') {
+                return skipContent(i + 1);
+            } else if (c == '"' || c == '\'') {
+                i = skipAttributeValue(i);
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private int skipAttributeValue(int i) {
+        char quote = code[i++];
+        while (i < length) {
+            char c = code[i];
+            if (c == quote) {
+                if (charAt(i + 1) != quote) {
+                    return i + 1;
+                }
+                i += 2;
+            } else {
+                i = skipEnclosed(i);
+            }
+        }
+        return length;
+    }
+
+    private int skipContent(int i) {
+        while (i < length) {
+            char c = code[i];
+            if (c == '<') {
+                if (charAt(i + 1) == '/') {
+                    return skipTo(i + 2, ">");
+                } else if (startsWith(i, "<!--")) {
+                    i = skipTo(i + 4, "-->");
+                } else if (startsWith(i, "<![CDATA[")) {
+                    i = skipTo(i + 9, "]]>");
+                } else if (charAt(i + 1) == '?') {
+                    i = skipTo(i + 2, "?>");
+                } else {
+                    i = skipElement(i);
+                }
+            } else {
+                i = skipEnclosed(i);
+            }
+        }
+        return length;
+    }
+
+    /*
+     * Skips a character of XML content or of an attribute value, or a whole
+     * enclosed expression.
+     */
+    private int skipEnclosed(int i) {
+        char c = code[i];
+        if ((c == '{' || c == '}') && charAt(i + 1) == c) {
+            return i + 2;
+        } else if (c == '{') {
+            return skipExpression(i + 1, false) + 1;
+        }
+        return i + 1;
+    }
+
+    private int skipComment(int i) {
+        int depth = 0;
+        while (i < length) {
+            if (code[i] == '(' && charAt(i + 1) == ':') {
+                depth++;
+                i += 2;
+            } else if (code[i] == ':' && charAt(i + 1) == ')') {
+                i += 2;
+                if (--depth == 0) {
+                    return i;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private int skipString(int i) {
+        char quote = code[i++];
+        while (i < length) {
+            if (code[i] == quote) {
+                if (charAt(i + 1) != quote) {
+                    return i + 1;
+                }
+                i++;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    private int skipSpace(int i) {
+        while (i < length) {
+            if (Character.isWhitespace(code[i])) {
+                i++;
+            } else if (code[i] == '(' && charAt(i + 1) == ':') {
+                i = skipComment(i);
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private int skipTo(int i, String end) {
+        while (i < length && !startsWith(i, end)) {
+            i++;
+        }
+        return Math.min(i + end.length(), length);
+    }
+
+    /*
+     * Decides whether the "<" at the specified position starts an element
+     * constructor by looking at what comes before it. After an operand (a
+     * variable, a name, a literal or a closing parenthesis) it is a
+     * comparison.
+     */
+    private boolean isConstructor(int i) {
+        int j = i - 1;
+        while (j >= 0 && Character.isWhitespace(code[j])) {
+            j--;
+        }
+        if (j < 0) {
+            return true;
+        }
+
+        char c = code[j];
+        if (isNameChar(c)) {
+            int start = j;
+            while (start > 0 && isNameChar(code[start - 1])) {
+                start--;
+            }
+            if (start > 0 && code[start - 1] == '$') {
+                return false;
+            }
+            return KEYWORDS.contains(new String(code, start, j - start + 1));
+        }
+        return c != ')' && c != ']' && c != '"' && c != '\'' && c != '.';
+    }
+
+    /*
+     * Replaces the code between the positions with an empty sequence,
+     * keeping the newlines.
+     */
+    private void blank(int start, int end) {
+        int written = 0;
+        for (int i = start; i < end && written < 2; i++) {
+            if (!isLineBreak(code[i])) {
+                written++;
+            }
+        }
+        if (written < 2) {
+            return;
+        }
+
+        written = 0;
+        for (int i = start; i < end; i++) {
+            if (!isLineBreak(code[i])) {
+                code[i] = written == 0 ? '(' : written == 1 ? ')' : ' ';
+                written++;
+            }
+        }
+    }
+
+    private String wordAt(int i) {
+        int end = i;
+        while (end < length && isNameChar(code[end]) && code[end] != ':') {
+            end++;
+        }
+        return new String(code, i, end - i);
+    }
+
+    private boolean startsWith(int i, String value) {
+        if (i + value.length() > length) {
+            return false;
+        }
+        for (int j = 0; j < value.length(); j++) {
+            if (code[i + j] != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char charAt(int i) {
+        return i < length ? code[i] : 0;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.sonar.plugins.xquery.language.SourceBuffer;
+
+/**
+ * A character stream that reads the array of a source buffer directly
+ * instead of a copy of it. The line index of the buffer is used when the
+ * lexers are rewound, so it doesn't have to be built again.
+ *
+ * @since 2.1
+ */
+public class SourceCharStream extends ANTLRStringStream {
+
+    private final LineIndex lines;
+
+    public SourceCharStream(SourceBuffer buffer) {
+        super(buffer.getChars(), buffer.length());
+        this.lines = buffer.getLineIndex();
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+}
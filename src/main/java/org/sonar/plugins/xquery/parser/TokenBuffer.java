@@ -0,0 +1,97 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tokens that were read by a LazyTokenStream. The type, channel and
+ * position of a buffered token can be read without getting the token itself.
+ * 
+ * @since 2.1
+ */
+abstract class TokenBuffer {
+
+    abstract int size();
+
+    /**
+     * Gets the token at the index, always the same object for the same index
+     * (as long as the token isn't removed).
+     */
+    abstract Token get(int i);
+
+    abstract int getType(int i);
+
+    abstract int getChannel(int i);
+
+    abstract int getStopIndex(int i);
+
+    abstract String getText(int i);
+
+    /**
+     * Adds a token, its token index has to be the current size of the
+     * buffer.
+     */
+    abstract void add(Token token);
+
+    /**
+     * Removes all the tokens from the index to the end of the buffer.
+     */
+    abstract void truncate(int size);
+
+    /**
+     * Keeps the token objects as they come from the lexer.
+     */
+    static class ListTokenBuffer extends TokenBuffer {
+
+        private final List<Token> tokens = new ArrayList<Token>(500);
+
+        @Override
+        int size() {
+            return tokens.size();
+        }
+
+        @Override
+        Token get(int i) {
+            return tokens.get(i);
+        }
+
+        @Override
+        int getType(int i) {
+            return tokens.get(i).getType();
+        }
+
+        @Override
+        int getChannel(int i) {
+            return tokens.get(i).getChannel();
+        }
+
+        @Override
+        int getStopIndex(int i) {
+            return ((CommonToken) tokens.get(i)).getStopIndex();
+        }
+
+        @Override
+        String getText(int i) {
+            return tokens.get(i).getText();
+        }
+
+        @Override
+        void add(Token token) {
+            tokens.add(token);
+        }
+
+        @Override
+        void truncate(int size) {
+            for (int i = tokens.size() - 1; i >= size; i--) {
+                tokens.remove(i);
+            }
+        }
+    }
+}
@@ -51,6 +51,8 @@ public class XQueryErrorNode extends XQueryTree {
     public Token stop;
     public RecognitionException trappedException;
 
+    private String text;
+
     public XQueryErrorNode(TokenStream input, Token start, Token stop, RecognitionException e) {
         if (stop == null || (stop.getTokenIndex() < start.getTokenIndex() && stop.getType() != Token.EOF)) {
             // sometimes resync does not consume a token (when LT(1) is
@@ -73,23 +75,37 @@ public class XQueryErrorNode extends XQueryTree {
         return Token.INVALID_TOKEN_TYPE;
     }
 
+    /**
+     * Gets the text of the tokens in the erroneous range the first time it is
+     * asked for. It is read from the source in one piece when the tokens know
+     * their characters, instead of joining the tokens of the stream.
+     */
     public String getText() {
-        String badText = null;
-        if (start instanceof Token) {
+        if (text == null) {
+            text = readText();
+        }
+        return text;
+    }
+
+    private String readText() {
+        if (start instanceof CommonToken && stop instanceof CommonToken && ((CommonToken) start).getInputStream() != null) {
+            CharStream source = ((CommonToken) start).getInputStream();
+            int stopIndex = stop.getType() == Token.EOF ? source.size() - 1 : ((CommonToken) stop).getStopIndex();
+            int startIndex = ((CommonToken) start).getStartIndex();
+            return stopIndex >= startIndex ? source.substring(startIndex, stopIndex) : "";
+        } else if (start instanceof Token) {
             int i = (start).getTokenIndex();
             int j = (stop).getTokenIndex();
             if ((stop).getType() == Token.EOF) {
                 j = ((TokenStream) input).size();
             }
-            badText = ((TokenStream) input).toString(i, j);
+            return ((TokenStream) input).toString(i, j);
         } else if (start instanceof Tree) {
-            badText = ((TreeNodeStream) input).toString(start, stop);
-        } else {
-            // people should subclass if they alter the tree type so this
-            // next one is for sure correct.
-            badText = "<unknown>";
+            return ((TreeNodeStream) input).toString(start, stop);
         }
-        return badText;
+        // people should subclass if they alter the tree type so this
+        // next one is for sure correct.
+        return "<unknown>";
     }
 
     public String toString() {
@@ -0,0 +1,104 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled node path like "FunctionName.QName", as used by XQueryTree.find().
+ * Each part of the path is turned into a token type once, so nodes are matched
+ * by type instead of by comparing their text. A part that isn't the name of a
+ * token type is matched against the text of the nodes like before.
+ * 
+ * Paths are compiled once and cached by their string.
+ * 
+ * @since 2.1
+ */
+public final class XQueryPath {
+
+    private static final Map<String, Integer> TYPES = new HashMap<String, Integer>();
+    private static final Map<String, XQueryPath> CACHE = new ConcurrentHashMap<String, XQueryPath>();
+
+    static {
+        for (int type = 0; type < XQueryParser.tokenNames.length; type++) {
+            TYPES.put(XQueryParser.tokenNames[type], type);
+        }
+    }
+
+    // Parts that aren't a token type are matched by their text, and empty
+    // parts never match
+    private static final int NO_TYPE = -1;
+    private static final int EMPTY = -2;
+
+    private final String path;
+    private final String[] names;
+    private final int[] types;
+
+    private XQueryPath(String path) {
+        this.path = path;
+        this.names = StringUtils.isBlank(path) ? new String[0] : StringUtils.splitPreserveAllTokens(path, '.');
+        this.types = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == 0) {
+                types[i] = EMPTY;
+                continue;
+            }
+            Integer type = TYPES.get(names[i]);
+            types[i] = type != null ? type : NO_TYPE;
+        }
+    }
+
+    /**
+     * Gets the compiled version of a path.
+     * 
+     * @param path
+     *            The names of the nodes, separated by a "."
+     * @return The compiled path
+     */
+    public static XQueryPath compile(String path) {
+        if (path == null) {
+            path = "";
+        }
+        XQueryPath compiled = CACHE.get(path);
+        if (compiled == null) {
+            compiled = new XQueryPath(path);
+            CACHE.put(path, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * The number of parts in the path, 0 for an empty path.
+     */
+    public int length() {
+        return names.length;
+    }
+
+    /**
+     * Checks whether a node matches a part of the path.
+     * 
+     * @param node
+     *            The node to check
+     * @param part
+     *            The index of the part of the path
+     */
+    public boolean matches(XQueryTree node, int part) {
+        if (types[part] >= 0) {
+            return !node.isNil() && node.getType() == types[part];
+        } else if (types[part] == EMPTY) {
+            return false;
+        }
+        return StringUtils.equals(names[part], node.getText());
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
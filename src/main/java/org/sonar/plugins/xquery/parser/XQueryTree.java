@@ -7,9 +7,11 @@ package org.sonar.plugins.xquery.parser;
 import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class XQueryTree extends CommonTree {
@@ -20,6 +22,18 @@ public class XQueryTree extends CommonTree {
 
     private boolean stacked;
 
+    // The nodes of the tree by type, only set on the root
+    private List<XQueryTree>[] index;
+
+    // Computed from the children the first time they are needed, and reset
+    // whenever the children of this node (or of a node below it) change
+    private static final String UNKNOWN = new String("unknown");
+    private static final int UNKNOWN_POSITION = Integer.MIN_VALUE;
+    private String value = UNKNOWN;
+    private String textValue = UNKNOWN;
+    private int line = UNKNOWN_POSITION;
+    private int charPositionInLine = UNKNOWN_POSITION;
+
     public XQueryTree() {
     }
 
@@ -39,7 +53,7 @@ public class XQueryTree extends CommonTree {
      * @return The node tree
      */
     public XQueryTree find(String name) {
-        return find(this, name, true);
+        return find(XQueryPath.compile(name), true);
     }
 
     /**
@@ -54,31 +68,40 @@ public class XQueryTree extends CommonTree {
      * @return The node tree
      */
     public XQueryTree find(String name, boolean skipNodes) {
-        return find(this, name, skipNodes);
+        return find(XQueryPath.compile(name), skipNodes);
     }
 
-    /*
-     * Internal method that allows us to pass in the root of where to search for
-     * the node.
+    /**
+     * See documentation for find(name). Takes a path that was already
+     * compiled.
+     * 
+     * @param path
+     *            The compiled name of the node to find
+     * @param skipNodes
+     *            Whether or not to skip nodes when searching for the name
+     *            parts.
+     * @return The node tree
      */
-    private XQueryTree find(XQueryTree root, String name, boolean skipNodes) {
-        String checkName = StringUtils.substringBefore(name, ".");
-
-        // If we don't have a root or a name then don't go further
-        if (root == null || StringUtils.isBlank(name)) {
+    public XQueryTree find(XQueryPath path, boolean skipNodes) {
+        if (path.length() == 0) {
             return null;
+        }
+        return find(this, path, 0, skipNodes);
+    }
 
-            // If we are at the "end" of the name we can just return where we
-            // are
-        } else if (StringUtils.equals(name, root.getText())) {
-            return root;
-
-            // Check the current name in the node, if we match then go to the
-            // next
-            // part of the name
-        } else if (StringUtils.equals(checkName, root.getText())) {
-            for (XQueryTree child : root.getChildren()) {
-                XQueryTree tree = find(child, StringUtils.substringAfter(name, "."), skipNodes);
+    /*
+     * Internal method that allows us to pass in the root of where to search for
+     * the node and the part of the path that is being matched.
+     */
+    private static XQueryTree find(XQueryTree root, XQueryPath path, int part, boolean skipNodes) {
+        // Check the current part of the path against the node, if we match
+        // then we are either at the end or go to the next part of the path
+        if (path.matches(root, part)) {
+            if (part == path.length() - 1) {
+                return root;
+            }
+            for (int i = 0; i < root.getChildCount(); i++) {
+                XQueryTree tree = find(root.getChild(i), path, part + 1, skipNodes);
                 if (tree != null) {
                     return tree;
                 }
@@ -88,13 +111,12 @@ public class XQueryTree extends CommonTree {
             // If we didn't find anything at the current "level" then only
             // continue if we are able to skip nodes of the tree
         } else if (skipNodes) {
-            for (XQueryTree child : root.getChildren()) {
-                XQueryTree tree = find(child, name, skipNodes);
+            for (int i = 0; i < root.getChildCount(); i++) {
+                XQueryTree tree = find(root.getChild(i), path, part, skipNodes);
                 if (tree != null) {
                     return tree;
                 }
             }
-            return null;
         }
         return null;
     }
@@ -106,6 +128,13 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public int getCharPositionInLine() {
+        if (charPositionInLine == UNKNOWN_POSITION) {
+            charPositionInLine = findCharPositionInLine();
+        }
+        return charPositionInLine;
+    }
+
+    private int findCharPositionInLine() {
         if (token == null || token.getCharPositionInLine() == -1) {
             for (XQueryTree child : getChildren()) {
                 int pos = child.getCharPositionInLine();
@@ -158,7 +187,7 @@ public class XQueryTree extends CommonTree {
      * @return String "text" value for the node
      */
     public String getChildTextValue(String name) {
-        XQueryTree node = find(this, name, false);
+        XQueryTree node = find(name, false);
         if (node != null) {
             return node.getTextValue();
         }
@@ -176,7 +205,7 @@ public class XQueryTree extends CommonTree {
      * @return String value for the node
      */
     public String getChildValue(String name) {
-        XQueryTree node = find(this, name, false);
+        XQueryTree node = find(name, false);
         if (node != null) {
             return node.getValue();
         }
@@ -190,11 +219,18 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public int getLine() {
+        if (line == UNKNOWN_POSITION) {
+            line = findLine();
+        }
+        return line;
+    }
+
+    private int findLine() {
         if (token == null || token.getLine() == 0) {
             for (XQueryTree child : getChildren()) {
-                int line = child.getLine();
-                if (line > 0) {
-                    return line;
+                int childLine = child.getLine();
+                if (childLine > 0) {
+                    return childLine;
                 }
             }
             return 0;
@@ -202,6 +238,45 @@ public class XQueryTree extends CommonTree {
         return token.getLine();
     }
 
+    /**
+     * Gets all the nodes of the specified type in this tree (including this
+     * node), in document order. On the root of a tree that was indexed by the
+     * tree adaptor the nodes come straight from the index, otherwise the tree
+     * is searched.
+     * 
+     * @param type
+     *            The type of the nodes (token type)
+     * @return The nodes, or an empty list if there are none
+     */
+    public List<XQueryTree> getNodes(int type) {
+        if (index != null) {
+            if (type < 0 || type >= index.length || index[type] == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(index[type]);
+        }
+        List<XQueryTree> nodes = new ArrayList<XQueryTree>();
+        findNodes(this, type, nodes);
+        return nodes;
+    }
+
+    private void findNodes(XQueryTree node, int type, List<XQueryTree> nodes) {
+        if (!node.isNil() && node.getType() == type) {
+            nodes.add(node);
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            findNodes(node.getChild(i), type, nodes);
+        }
+    }
+
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    void setIndex(List<XQueryTree>[] index) {
+        this.index = index;
+    }
+
     public int getStart() {
         return start;
     }
@@ -218,11 +293,14 @@ public class XQueryTree extends CommonTree {
      * @return String "text" value of the node
      */
     public String getTextValue() {
-        String value = getValue();
-        if (StringUtils.isNotBlank(value)) {
-            value = value.replaceAll(" ", "");
+        if (textValue == UNKNOWN) {
+            String value = getValue();
+            if (StringUtils.isNotBlank(value)) {
+                value = StringUtils.remove(value, ' ');
+            }
+            textValue = value;
         }
-        return value;
+        return textValue;
     }
 
     /**
@@ -236,7 +314,7 @@ public class XQueryTree extends CommonTree {
      * @return String "text" value of the node
      */
     public String getTextValue(String name) {
-        XQueryTree node = find(this, name, true);
+        XQueryTree node = find(name, true);
         if (node != null) {
             return node.getTextValue();
         }
@@ -262,7 +340,7 @@ public class XQueryTree extends CommonTree {
      * @return The value of the type, if any
      */
     public String getTypeValue(String name) {
-        XQueryTree node = find(this, name, true);
+        XQueryTree node = find(name, true);
         String value = null;
         if (node != null) {
             value = node.getTextValue("KindTest");
@@ -289,6 +367,13 @@ public class XQueryTree extends CommonTree {
      * @return String value for the node
      */
     public String getValue() {
+        if (value == UNKNOWN) {
+            value = findValue();
+        }
+        return value;
+    }
+
+    private String findValue() {
         StringBuffer value = new StringBuffer();
         for (XQueryTree child : getChildren()) {
             String text = (child).getText();
@@ -317,13 +402,59 @@ public class XQueryTree extends CommonTree {
      * @return String value for the node
      */
     public String getValue(String name) {
-        XQueryTree node = find(this, name, true);
+        XQueryTree node = find(name, true);
         if (node != null) {
             return node.getValue();
         }
         return null;
     }
 
+    @Override
+    public void addChild(Tree t) {
+        super.addChild(t);
+        resetValues();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void addChildren(List kids) {
+        super.addChildren(kids);
+        resetValues();
+    }
+
+    @Override
+    public void setChild(int i, Tree t) {
+        super.setChild(i, t);
+        resetValues();
+    }
+
+    @Override
+    public Object deleteChild(int i) {
+        Object deleted = super.deleteChild(i);
+        resetValues();
+        return deleted;
+    }
+
+    @Override
+    public void replaceChildren(int startChildIndex, int stopChildIndex, Object t) {
+        super.replaceChildren(startChildIndex, stopChildIndex, t);
+        resetValues();
+    }
+
+    /*
+     * Forgets the computed values of this node and of the nodes above it,
+     * since they all depend on the children.
+     */
+    private void resetValues() {
+        for (Tree node = this; node instanceof XQueryTree; node = node.getParent()) {
+            XQueryTree tree = (XQueryTree) node;
+            tree.value = UNKNOWN;
+            tree.textValue = UNKNOWN;
+            tree.line = UNKNOWN_POSITION;
+            tree.charPositionInLine = UNKNOWN_POSITION;
+        }
+    }
+
     public boolean isError() {
         return false;
     }
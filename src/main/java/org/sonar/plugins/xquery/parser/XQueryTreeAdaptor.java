@@ -25,6 +25,9 @@ import org.antlr.runtime.TokenStream;
 import org.antlr.runtime.tree.CommonTreeAdaptor;
 import org.antlr.runtime.tree.Tree;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class XQueryTreeAdaptor extends CommonTreeAdaptor {
 
     private boolean failOnError;
@@ -40,6 +43,42 @@ public class XQueryTreeAdaptor extends CommonTreeAdaptor {
     public Object create(Token payload) {
         return new XQueryTree(payload);
     }
+
+    /**
+     * Indexes the nodes of a finished tree by their type, in document order,
+     * so the nodes of a type can be found without going through the whole
+     * tree (see XQueryTree.getNodes()). This has to be done once the tree is
+     * complete since the parser creates the root of a rewritten rule after its
+     * children and throws away some of the nodes it creates.
+     * 
+     * @param root
+     *            The root of the tree
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void index(XQueryTree root) {
+        if (root == null) {
+            return;
+        }
+        List<XQueryTree>[] index = new List[XQueryParser.tokenNames.length];
+
+        // Walk the tree without recursion since some trees are very deep
+        List<XQueryTree> stack = new ArrayList<XQueryTree>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            XQueryTree node = stack.remove(stack.size() - 1);
+            int type = node.isNil() ? -1 : node.getType();
+            if (type >= 0 && type < index.length) {
+                if (index[type] == null) {
+                    index[type] = new ArrayList<XQueryTree>();
+                }
+                index[type].add(node);
+            }
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                stack.add(node.getChild(i));
+            }
+        }
+        root.setIndex(index);
+    }
     
     @Override
     public void setTokenBoundaries(Object t, Token startToken, Token stopToken) {
@@ -10,6 +10,7 @@ import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypes;
 import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
 
 import java.util.HashMap;
@@ -28,6 +29,16 @@ import java.util.Stack;
  * @author cieslinskice
  * 
  */
+@NodeTypes({
+    XQueryParser.MainModule,
+    XQueryParser.ModuleDecl,
+    XQueryParser.ModuleImport,
+    XQueryParser.VarDecl,
+    XQueryParser.FunctionDecl,
+    XQueryParser.FunctionBody,
+    XQueryParser.FLOWRExpr,
+    XQueryParser.LetClause
+})
 public class DependencyMapper implements XQueryAstVisitor {
 
     private Stack<HashMap<Integer, Declaration>> declarations;
@@ -185,6 +196,36 @@ public class DependencyMapper implements XQueryAstVisitor {
 
     }
 
+    /**
+     * Adds the global declarations that were mapped by another mapper to the
+     * global declarations of this mapper. Declarations with the same key
+     * replace the ones that already exist, the same as if the files had been
+     * mapped by this mapper in the same order.
+     * 
+     * @param other
+     *            The mapper with the global declarations to add
+     */
+    public void addGlobalDeclarations(DependencyMapper other) {
+        getGlobalDeclarations().putAll(other.getGlobalDeclarations());
+    }
+
+    /**
+     * Creates a mapper in "local" mode that shares the global declarations of
+     * this mapper. Global declarations are only read in "local" mode, so each
+     * analysis thread can use its own local mapper on the same set of global
+     * declarations.
+     * 
+     * @return A new "local" mapper
+     */
+    public DependencyMapper createLocalMapper() {
+        Stack<HashMap<Integer, Declaration>> stack = new Stack<HashMap<Integer, Declaration>>();
+        stack.push(getGlobalDeclarations());
+
+        DependencyMapper mapper = new DependencyMapper("local");
+        mapper.setDeclarations(stack);
+        return mapper;
+    }
+
     /**
      * Adds another level to the declarations stack
      */
@@ -207,9 +248,12 @@ public class DependencyMapper implements XQueryAstVisitor {
                 break;      
                 
             // In order to support multiple transactions in a main module we 
-            // have to reset the stack after exiting a main module
+            // have to reset the stack after exiting a main module. A new local
+            // stack is added so the following transactions don't add their
+            // declarations to the "global" stack.
             case XQueryParser.MainModule:
                 resetStack();
+                enterStack();
                 break;
             }
         }
@@ -255,6 +299,10 @@ public class DependencyMapper implements XQueryAstVisitor {
         return declarations;
     }
 
+    public HashMap<Integer, Declaration> getGlobalDeclarations() {
+        return declarations.get(0);
+    }
+
     public Function getFunctionCall(String name, String namespace) {
         // Variable key = new Variable(name, namespace);
         return null;
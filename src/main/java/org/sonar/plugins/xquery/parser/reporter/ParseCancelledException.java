@@ -0,0 +1,20 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.reporter;
+
+/**
+ * Thrown from the reporter to stop the lexers and the parser when a source
+ * has used up its error budget.
+ *
+ * @since 2.1
+ */
+public class ParseCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ParseCancelledException(String message) {
+        super(message);
+    }
+}
@@ -4,6 +4,8 @@
 
 package org.sonar.plugins.xquery.parser.reporter;
 
+import org.antlr.runtime.BaseRecognizer;
+import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 
 public class Problem {
@@ -17,6 +19,27 @@ public class Problem {
         this.message = message;
         this.token = token;
     }
+
+    /**
+     * Creates a problem for a recognition error. The message is formatted
+     * right away: the recognizer goes on with the next tokens, or with
+     * another source once it is reused, while the problem is read later on
+     * other threads. Only the problems the reporter keeps are created, so
+     * the suppressed ones are never formatted.
+     *
+     * @param id
+     *            The name of the source
+     * @param recognizer
+     *            The lexer or parser that found the error, it formats the
+     *            message
+     * @param exception
+     *            The error
+     */
+    public Problem(String id, BaseRecognizer recognizer, RecognitionException exception) {
+        this.id = id;
+        this.message = recognizer.getErrorMessage(exception, recognizer.getTokenNames());
+        this.token = exception.token;
+    }
     public int getCharPositionInLine() {
         if (token != null) {
             return token.getCharPositionInLine();
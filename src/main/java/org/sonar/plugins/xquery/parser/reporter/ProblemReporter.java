@@ -4,17 +4,37 @@
 
 package org.sonar.plugins.xquery.parser.reporter;
 
+import org.antlr.runtime.BaseRecognizer;
+import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ProblemReporter {
-    
+
+    private static final Logger logger = Logger.getLogger(ProblemReporter.class.getName());
+
+    /**
+     * The number of problems kept for a source by default. Code the grammar
+     * can't handle causes errors that cascade into thousands more, only the
+     * first ones are worth reading.
+     */
+    public static final int MAX_PROBLEMS = 100;
+
     private boolean failOnError;
     private boolean outputError;
+    private int maxProblems;
+    private int errorLimit;
+    private long recoveryTimeout;
 
     private List<Problem> problems;
+    private int suppressed;
+    private int firstSuppressedLine;
+    private long firstErrorTime;
+    private String cancelledMessage;
 
     public ProblemReporter() {
         this(false);
@@ -23,36 +43,206 @@ public class ProblemReporter {
     public ProblemReporter(boolean failOnError) {
         this.failOnError = failOnError;
         this.outputError = true;
+        this.maxProblems = MAX_PROBLEMS;
         problems = new ArrayList<Problem>();
     }
 
+    /**
+     * @return Why the parse was stopped, null if it wasn't
+     */
+    public String getCancelledMessage() {
+        return cancelledMessage;
+    }
+
+    /**
+     * @return The number of problems reported, including the ones that
+     *         weren't kept
+     */
+    public int getErrorCount() {
+        return problems.size() + suppressed;
+    }
+
+    public int getErrorLimit() {
+        return errorLimit;
+    }
+
+    /**
+     * @return The line of the first problem that wasn't kept, 0 if all of
+     *         them were or its line isn't known
+     */
+    public int getFirstSuppressedLine() {
+        return firstSuppressedLine;
+    }
+
+    public int getMaxProblems() {
+        return maxProblems;
+    }
+
+    /**
+     * @return The problems that were kept, at most the maximum number of
+     *         problems
+     */
     public List<Problem> getProblems() {
         return problems;
     }
 
+    public long getRecoveryTimeout() {
+        return recoveryTimeout;
+    }
+
+    /**
+     * @return The number of problems reported after the maximum was reached
+     */
+    public int getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * @return A description of the problems that weren't kept, null if there
+     *         weren't any
+     */
+    public String getSuppressedMessage() {
+        if (suppressed == 0) {
+            return null;
+        }
+        return suppressed + " more " + (suppressed == 1 ? "problem was" : "problems were") + " suppressed";
+    }
+
+    /**
+     * @return True if the parse was stopped because the source used up its
+     *         error budget
+     */
+    public boolean isCancelled() {
+        return cancelledMessage != null;
+    }
+
     public boolean isFailOnError() {
         return failOnError;
     }
-    
+
     public boolean isOutputError() {
         return outputError;
     }
-    
+
+    /**
+     * Reports an error found by a lexer or parser, the message is only
+     * formatted for the problems that are kept.
+     */
+    public void reportError(String id, BaseRecognizer recognizer, RecognitionException e) {
+        checkBudget(id);
+        if (problems.size() < maxProblems || failOnError) {
+            report(new Problem(id, recognizer, e));
+        } else {
+            // Lexer errors have no token, only a line
+            suppress(id, e.token != null ? e.token.getLine() : e.line);
+        }
+    }
+
     public void reportError(String id, String message, Token token) {
-        Problem problem = new Problem(id, message, token);
-        problems.add(problem);
-        if (failOnError) {
-            throw new RuntimeException(problem.getMessageString());
-        } else if (outputError) {
-            System.err.println(problem.getId() + problem.getMessageString());
+        checkBudget(id);
+        if (problems.size() < maxProblems || failOnError) {
+            report(new Problem(id, message, token));
+        } else {
+            suppress(id, token != null ? token.getLine() : 0);
         }
     }
-        
+
+    /**
+     * Checks that the error recovery of a source hasn't gone on longer than
+     * the timeout, called for each token the parser reads. Recovery can spin
+     * over the tokens for a long time without reporting anything, so the
+     * timeout can't only be checked when an error is reported.
+     *
+     * @throws ParseCancelledException
+     *             If the source went over its error budget
+     */
+    public void checkRecovery(String id) {
+        if (cancelledMessage != null) {
+            throw new ParseCancelledException(cancelledMessage);
+        }
+        if (recoveryTimeout > 0 && getErrorCount() > 0) {
+            checkRecoveryTime(id);
+        }
+    }
+
+    /**
+     * Sets how broken a source can be before it stops being parsed. Once
+     * more errors than the limit are reported, or the parser is still
+     * recovering longer than the timeout after the first error, the next
+     * report or token read throws a ParseCancelledException. Error recovery
+     * of code the grammar can't handle can otherwise take very long for
+     * large files. There is no budget by default.
+     *
+     * @param errorLimit
+     *            The number of errors, 0 for no limit
+     * @param recoveryTimeout
+     *            The milliseconds since the first error, 0 for no limit
+     */
+    public void setErrorBudget(int errorLimit, long recoveryTimeout) {
+        this.errorLimit = errorLimit;
+        this.recoveryTimeout = recoveryTimeout;
+    }
+
     public void setFailOnError(boolean failOnError) {
         this.failOnError = failOnError;
     }
-    
+
+    /**
+     * Sets how many problems are kept, the ones after that are only counted.
+     */
+    public void setMaxProblems(int maxProblems) {
+        this.maxProblems = maxProblems;
+    }
+
     public void setOutputError(boolean outputError) {
         this.outputError = outputError;
     }
+
+    private void checkBudget(String id) {
+        if (cancelledMessage != null) {
+            throw new ParseCancelledException(cancelledMessage);
+        }
+
+        int errors = getErrorCount();
+        if (errors == 0) {
+            firstErrorTime = System.nanoTime();
+        } else if (errorLimit > 0 && errors >= errorLimit) {
+            cancel(id, "Parsing stopped after " + errors + " errors");
+        } else if (recoveryTimeout > 0) {
+            checkRecoveryTime(id);
+        }
+    }
+
+    private void checkRecoveryTime(String id) {
+        long elapsed = (System.nanoTime() - firstErrorTime) / 1000000;
+        if (elapsed > recoveryTimeout) {
+            cancel(id, "Parsing stopped after " + elapsed + " ms of error recovery (" + getErrorCount() + " errors)");
+        }
+    }
+
+    private void cancel(String id, String message) {
+        cancelledMessage = message;
+        if (outputError) {
+            logger.info(message + " in " + id);
+        }
+        throw new ParseCancelledException(message);
+    }
+
+    private void report(Problem problem) {
+        problems.add(problem);
+        if (failOnError) {
+            throw new RuntimeException(problem.getMessageString());
+        } else if (outputError && logger.isLoggable(Level.FINE)) {
+            logger.fine(problem.getId() + problem.getMessageString());
+        }
+    }
+
+    private void suppress(String id, int line) {
+        if (suppressed++ == 0) {
+            firstSuppressedLine = line;
+            if (outputError) {
+                logger.info("More than " + maxProblems + " problems in " + id + ", only the first ones are kept");
+            }
+        }
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the types of nodes (the token types from XQueryParser) that a
+ * visitor needs to see. The visitor's enterExpression() and exitExpression()
+ * are then only called for nodes of these types. The types declared on a
+ * class and on all of its super classes are combined, so a subclass only has
+ * to declare the types it adds.
+ * 
+ * Visitors without this annotation are called for every node.
+ * 
+ * @since 2.1
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NodeTypes {
+
+    /**
+     * The node types the visitor handles, an empty list means that the
+     * visitor doesn't look at the nodes at all.
+     */
+    int[] value();
+}
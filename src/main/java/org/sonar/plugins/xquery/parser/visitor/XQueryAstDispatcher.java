@@ -0,0 +1,156 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.sonar.plugins.xquery.parser.XQueryParser;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Walks a tree and calls each visitor only for the types of nodes it has
+ * declared with {@link NodeTypes}. Visitors that don't declare any types are
+ * called for every node. For each node the visitors are called in the same
+ * order as they were in the list, just like when every visitor sees every
+ * node.
+ * 
+ * The dispatch table is built once for a list of visitors, so a dispatcher
+ * should be kept for as long as the same visitors are used.
+ * 
+ * @since 2.1
+ */
+public class XQueryAstDispatcher {
+
+    // The declared types of each visitor class, or null for the ones that
+    // need every node
+    private static final Map<Class<?>, int[]> TYPES = new ConcurrentHashMap<Class<?>, int[]>();
+    private static final int[] ALL_TYPES = new int[0];
+
+    private final List<XQueryAstVisitor> visitors;
+    private final XQueryAstVisitor[][] table;
+    private final XQueryAstVisitor[] others;
+
+    public XQueryAstDispatcher(List<XQueryAstVisitor> visitors) {
+        this.visitors = Collections.unmodifiableList(new ArrayList<XQueryAstVisitor>(visitors));
+
+        int[][] types = new int[this.visitors.size()][];
+        List<XQueryAstVisitor> all = new ArrayList<XQueryAstVisitor>();
+        for (int i = 0; i < types.length; i++) {
+            types[i] = getTypes(this.visitors.get(i).getClass());
+            if (types[i] == ALL_TYPES) {
+                all.add(this.visitors.get(i));
+            }
+        }
+        this.others = all.toArray(new XQueryAstVisitor[all.size()]);
+
+        // Go through the visitors in order for each type so the calling order
+        // for a node stays the same
+        this.table = new XQueryAstVisitor[XQueryParser.tokenNames.length][];
+        List<XQueryAstVisitor> handlers = new ArrayList<XQueryAstVisitor>();
+        for (int type = 0; type < table.length; type++) {
+            handlers.clear();
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == ALL_TYPES || contains(types[i], type)) {
+                    handlers.add(this.visitors.get(i));
+                }
+            }
+            table[type] = handlers.size() == others.length ? others : handlers.toArray(new XQueryAstVisitor[handlers.size()]);
+        }
+    }
+
+    public List<XQueryAstVisitor> getVisitors() {
+        return visitors;
+    }
+
+    /**
+     * Gets the visitors that are called for nodes of the specified type.
+     */
+    public XQueryAstVisitor[] getVisitors(int type) {
+        return type >= 0 && type < table.length ? table[type] : others;
+    }
+
+    /**
+     * Visits the tree, calling enterExpression() and exitExpression() of the
+     * visitors that handle each node.
+     */
+    public void visit(XQueryTree root) {
+        // Stop visiting when the analysis gives up on the file
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted while visiting the tree");
+        }
+        XQueryAstVisitor[] nodeVisitors = getVisitors(root.getType());
+        for (XQueryAstVisitor visitor : nodeVisitors) {
+            enterExpression(visitor, root);
+        }
+        for (int i = 0; i < root.getChildCount(); i++) {
+            visit(root.getChild(i));
+        }
+        for (XQueryAstVisitor visitor : nodeVisitors) {
+            exitExpression(visitor, root);
+        }
+    }
+
+    /**
+     * Calls a visitor for a node it handles. Can be overridden to measure
+     * the visitors.
+     */
+    protected void enterExpression(XQueryAstVisitor visitor, XQueryTree node) {
+        visitor.enterExpression(node);
+    }
+
+    /**
+     * Calls a visitor when leaving a node it handles.
+     */
+    protected void exitExpression(XQueryAstVisitor visitor, XQueryTree node) {
+        visitor.exitExpression(node);
+    }
+
+    private static boolean contains(int[] types, int type) {
+        for (int t : types) {
+            if (t == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Combines the types declared on the class and its super classes. Returns
+     * ALL_TYPES if none of them declares any.
+     */
+    private static int[] getTypes(Class<?> visitorClass) {
+        int[] types = TYPES.get(visitorClass);
+        if (types == null) {
+            List<Integer> declared = null;
+            for (Class<?> c = visitorClass; c != null; c = c.getSuperclass()) {
+                NodeTypes annotation = c.getAnnotation(NodeTypes.class);
+                if (annotation != null) {
+                    if (declared == null) {
+                        declared = new ArrayList<Integer>();
+                    }
+                    for (int type : annotation.value()) {
+                        declared.add(type);
+                    }
+                }
+            }
+
+            if (declared == null) {
+                types = ALL_TYPES;
+            } else {
+                types = new int[declared.size()];
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = declared.get(i);
+                }
+            }
+            TYPES.put(visitorClass, types);
+        }
+        return types;
+    }
+}
@@ -9,43 +9,170 @@ import org.antlr.runtime.RecognitionException;
 import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.*;
 import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ParseCancelledException;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class XQueryAstParser {
 
     private static final Logger logger = Logger.getLogger(XQueryAstParser.class.getName());
 
+    // The lexer and parser of each thread, the same ones are used for every
+    // file the thread parses instead of creating new ones each time
+    private static final ThreadLocal<Recognizers> RECOGNIZERS = new ThreadLocal<Recognizers>() {
+        @Override
+        protected Recognizers initialValue() {
+            return new Recognizers();
+        }
+    };
+
     private SourceCode sourceCode;
     private List<XQueryAstVisitor> visitors;
+    private XQueryAstDispatcher dispatcher;
+    private boolean compactTokens = true;
+    private boolean reuseParsers = true;
+    private boolean timeLexers;
+    private long lexTime;
 
     public XQueryAstParser(SourceCode code, List<XQueryAstVisitor> visitors) {
         this.sourceCode = code;
         this.visitors = visitors;
     }
 
+    /**
+     * Uses the visitors of a dispatcher (instead of the visitors passed to
+     * the constructor) so the dispatch table can be reused for many files.
+     */
+    public void setDispatcher(XQueryAstDispatcher dispatcher) {
+        this.visitors = dispatcher.getVisitors();
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Sets whether the token stream keeps its tokens in compact arrays (the
+     * default) or as token objects.
+     */
+    public void setCompactTokens(boolean compactTokens) {
+        this.compactTokens = compactTokens;
+    }
+
+    /**
+     * Sets whether the lexer and parser of the thread are used (the default)
+     * or new ones are created for each parse.
+     */
+    public void setReuseParsers(boolean reuseParsers) {
+        this.reuseParsers = reuseParsers;
+    }
+
+    /**
+     * Sets whether the time spent in the lexers is measured, it isn't by
+     * default.
+     */
+    public void setTimeLexers(boolean timeLexers) {
+        this.timeLexers = timeLexers;
+    }
+
+    /**
+     * @return The nanoseconds the lexers took in the parses done so far, if
+     *         they are timed
+     */
+    public long getLexTime() {
+        return lexTime;
+    }
+
     public XQueryTree parse() throws RecognitionException {
         return parse(new ProblemReporter());
     }
 
+    /**
+     * Parses the code and reports its problems.
+     *
+     * @return The tree of the code, or null if the reporter stopped the parse
+     *         because the code went over its error budget
+     */
     public XQueryTree parse(ProblemReporter reporter) throws RecognitionException {
-        logger.fine("Parsing " + sourceCode + ":");
-        ANTLRStringStream source = new ANTLRStringStream(sourceCode.getCodeString());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Parsing " + sourceCode);
+        }
+        return parse(new SourceCharStream(sourceCode.getSource()), reporter);
+    }
+
+    /**
+     * Parses just enough of the code to map the global declarations: the
+     * module declaration, the imports, the function signatures and the
+     * variable declarations. The function bodies and variable values are left
+     * out of the tree. If the reduced code can't be parsed cleanly (the code
+     * has errors, or the bodies could not be skipped) then the complete code
+     * is parsed instead, so the declarations are always the same as with
+     * parse().
+     * 
+     * @return The tree with the declarations, or null if the code is a main
+     *         module (which has no global declarations) or went over its
+     *         error budget
+     */
+    public XQueryTree parseDeclarations(ProblemReporter reporter) throws RecognitionException {
+        String code = sourceCode.getCodeString();
+        String declarations = PrologSkimmer.skim(code);
+        if (declarations == null) {
+            return null;
+        }
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Parsing the declarations of " + sourceCode);
+        }
+        ProblemReporter declarationsReporter = new ProblemReporter();
+        declarationsReporter.setOutputError(false);
+        declarationsReporter.setErrorBudget(reporter.getErrorLimit(), reporter.getRecoveryTimeout());
+        XQueryTree tree = parse(new ANTLRStringStream(declarations), declarationsReporter);
+        if (declarationsReporter.getProblems().isEmpty()) {
+            return tree;
+        }
+        if (declarationsReporter.isCancelled()) {
+            // The complete code would only be worse
+            return null;
+        }
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Could not parse just the declarations of " + sourceCode + ", parsing all of it");
+        }
+        return parse(new SourceCharStream(sourceCode.getSource()), reporter);
+    }
+
+    private XQueryTree parse(ANTLRStringStream source, ProblemReporter reporter) throws RecognitionException {
         source.name = sourceCode.toString();
-        XQueryLexer lexer = new XQueryLexer(source);
-        lexer.setReporter(reporter);
-        LazyTokenStream tokenStream = new LazyTokenStream(lexer);
-        XQueryParser parser = new XQueryParser(tokenStream);
-        parser.setReporter(reporter);
-        parser.setCharSource(source);
-        parser.setTreeAdaptor(new XQueryTreeAdaptor(reporter.isFailOnError()));
-        XQueryTree tree = (XQueryTree) parser.p_Module().getTree();
-
-        logger.fine(tree.toStringTree());
-        return tree;
+        Recognizers recognizers = reuseParsers ? RECOGNIZERS.get() : new Recognizers();
+        XQueryLexer lexer = recognizers.lexer;
+        XQueryParser parser = recognizers.parser;
+        LazyTokenStream tokenStream = null;
+        try {
+            lexer.setCharStream(source);
+            lexer.setReporter(reporter);
+            tokenStream = new LazyTokenStream(lexer, compactTokens);
+            tokenStream.setTimed(timeLexers);
+            tokenStream.setReporter(reporter);
+            parser.setTokenStream(tokenStream);
+            parser.setReporter(reporter);
+            parser.setCharSource(source);
+            XQueryTreeAdaptor adaptor = new XQueryTreeAdaptor(reporter.isFailOnError());
+            parser.setTreeAdaptor(adaptor);
+            XQueryTree tree = (XQueryTree) parser.p_Module().getTree();
+            adaptor.index(tree);
+            return tree;
+        } catch (ParseCancelledException e) {
+            // The reporter knows why, there is no tree
+            return null;
+        } finally {
+            if (tokenStream != null) {
+                lexTime += tokenStream.getLexTime();
+            }
+            parser.release();
+            lexer.setCharStream(null);
+            lexer.setReporter(null);
+        }
     }
 
     /**
@@ -56,31 +183,33 @@ public class XQueryAstParser {
         // Since the mapper doesn't use any of the parameters, just pass in
         // nulls
         mapper.enterSource(null, null, null);
-        visit(tree, Arrays.asList(new XQueryAstVisitor[] { mapper }));
+        new XQueryAstDispatcher(Arrays.asList(new XQueryAstVisitor[] { mapper })).visit(tree);
         mapper.exitSource(null);
     }
 
     public void process(XQueryTree tree, DependencyMapper mapper, ProblemReporter reporter) {
+        if (dispatcher == null) {
+            dispatcher = new XQueryAstDispatcher(visitors);
+        }
         for (XQueryAstVisitor visitor : visitors) {
             visitor.enterSource(sourceCode, tree, mapper);
         }
-        visit(tree, visitors);
+        // Files that weren't parsed only get their problems reported
+        if (tree != null) {
+            dispatcher.visit(tree);
+        }
         for (XQueryAstVisitor visitor : visitors) {
             visitor.exitSource(tree);
             visitor.checkReport(reporter);
         }
     }
 
-    private void visit(XQueryTree root, List<XQueryAstVisitor> visitors) {
-        for (XQueryAstVisitor visitor : visitors) {
-            visitor.enterExpression(root);
-        }
-        for (int i = 0; i < root.getChildCount(); i++) {
-            XQueryTree child = root.getChild(i);
-            visit(child, visitors);
-        }
-        for (XQueryAstVisitor visitor : visitors) {
-            visitor.exitExpression(root);
-        }
+    /*
+     * A lexer and parser that are used together, they are given the source
+     * and token stream of each file they parse.
+     */
+    private static class Recognizers {
+        private final XQueryLexer lexer = new XQueryLexer();
+        private final XQueryParser parser = new XQueryParser(new LazyTokenStream());
     }
 }
@@ -30,6 +30,7 @@ public final class CheckClasses {
             OperationsInPredicateCheck.class,
             OrderByRangeCheck.class,
             ParseErrorCheck.class,
+            SkippedFileCheck.class,
             StrongTypingInFLWORCheck.class,
             StrongTypingInFunctionDeclarationCheck.class,
             StrongTypingInModuleVariableCheck.class,
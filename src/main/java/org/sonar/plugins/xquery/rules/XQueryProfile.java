@@ -21,6 +21,8 @@ import java.util.List;
  */
 public final class XQueryProfile extends ProfileDefinition {
 
+    public static final String NAME = "Default Profile";
+
     private final AnnotationProfileParser annotationProfileParser;
 
     public XQueryProfile(AnnotationProfileParser annotationProfileParser) {
@@ -29,6 +31,6 @@ public final class XQueryProfile extends ProfileDefinition {
 
     @Override
     public RulesProfile createProfile(ValidationMessages messages) {
-        return annotationProfileParser.parse(CheckClasses.REPOSITORY_KEY, "Default Profile", XQueryConstants.XQUERY_LANGUAGE_KEY, CheckClasses.getChecks(), messages);
+        return annotationProfileParser.parse(CheckClasses.REPOSITORY_KEY, NAME, XQueryConstants.XQUERY_LANGUAGE_KEY, CheckClasses.getChecks(), messages);
     }
 }
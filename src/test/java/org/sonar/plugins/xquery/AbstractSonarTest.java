@@ -105,11 +105,15 @@ public class AbstractSonarTest {
             // Create the AST for the code
             logger.fine(code.getCodeString());
             XQueryTree tree = parser.parse(getReporter());
-            logger.fine(tree.toStringTree());
 
-            // Map the dependencies first so we have any "global" declarations
-            // in the stack
-            parser.mapDependencies(tree, mapper);
+            // There is no tree when the reporter stopped the parse
+            if (tree != null) {
+                logger.fine(tree.toStringTree());
+
+                // Map the dependencies first so we have any "global" declarations
+                // in the stack
+                parser.mapDependencies(tree, mapper);
+            }
             mapper.setMode("local");
 
             // Process the check using the supplied check
@@ -0,0 +1,484 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a project of generated XQuery modules for scale and stress tests.
+ * The same seed and settings always give the same files, so problems found
+ * with a generated project can be reproduced.
+ *
+ * The library modules import other libraries, mostly the first few "core"
+ * ones like real projects do, and the main modules import a few libraries
+ * and call their functions. The code has nested FLWOR expressions, direct XML
+ * constructors, long string literals and comment blocks, and some of the
+ * things the checks look for.
+ */
+public class CorpusGenerator {
+
+    private static final String[] WORDS = {
+        "article", "book", "chapter", "content", "date", "entry", "field", "group", "index", "item", "label", "link",
+        "list", "name", "node", "page", "part", "record", "result", "section", "status", "summary", "title", "value"
+    };
+
+    private final long seed;
+    private int libraryPercent = 30;
+    private int maxImports = 5;
+    private int maxFunctions = 8;
+    private int maxDepth = 4;
+    private int maxElements = 12;
+    private int maxStringLength = 2000;
+
+    // The state of the module being written
+    private Random random;
+    private StringBuffer code;
+    private List<String> variables;
+    private List<Integer> imports;
+    private int libraries;
+    private int names;
+
+    public CorpusGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the percentage of the files that are library modules, the others
+     * are main modules. 30 by default.
+     */
+    public CorpusGenerator setLibraryPercent(int libraryPercent) {
+        this.libraryPercent = libraryPercent;
+        return this;
+    }
+
+    /**
+     * Sets how many libraries a module imports at most, 5 by default.
+     */
+    public CorpusGenerator setMaxImports(int maxImports) {
+        this.maxImports = maxImports;
+        return this;
+    }
+
+    /**
+     * Sets how many functions a library declares at most, 8 by default.
+     */
+    public CorpusGenerator setMaxFunctions(int maxFunctions) {
+        this.maxFunctions = maxFunctions;
+        return this;
+    }
+
+    /**
+     * Sets how deeply the FLWOR expressions and XML constructors are nested
+     * at most, 4 by default.
+     */
+    public CorpusGenerator setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Sets how many child elements an XML constructor has at most, 12 by
+     * default.
+     */
+    public CorpusGenerator setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+        return this;
+    }
+
+    /**
+     * Sets how long the long string literals are at most, 2000 characters by
+     * default.
+     */
+    public CorpusGenerator setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = maxStringLength;
+        return this;
+    }
+
+    /**
+     * Writes the modules to the lib and main directories of a directory.
+     *
+     * @param directory
+     *            The directory of the project
+     * @param count
+     *            The number of files, from a hundred to a hundred thousand or
+     *            more
+     * @return The files, the libraries first
+     */
+    public List<File> generate(File directory, int count) throws IOException {
+        libraries = Math.max(1, count * libraryPercent / 100);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            File file = i < libraries ? new File(directory, "lib/lib" + i + ".xqy") : new File(directory, "main/main" + (i - libraries) + ".xqy");
+            FileUtils.writeStringToFile(file, i < libraries ? library(i) : main(i), "UTF-8");
+            files.add(file);
+        }
+        return files;
+    }
+
+    private String library(int index) {
+        start(index);
+        line("xquery version '1.0-ml';");
+        line("");
+        comment("Library module " + index + ".", 1 + random.nextInt(4));
+        line("module namespace lib" + index + " = '" + namespace(index) + "';");
+        line("");
+        importLibraries(index);
+        line("declare namespace xh = 'http://www.w3.org/1999/xhtml';");
+        line("");
+        line("declare variable $lib" + index + ":name as xs:string := '" + sentence(3) + "';");
+        if (random.nextBoolean()) {
+            // Untyped, for the strong typing check
+            line("declare variable $lib" + index + ":limit := " + random.nextInt(100) + ";");
+        } else {
+            line("declare variable $lib" + index + ":limit as xs:integer := " + random.nextInt(100) + ";");
+        }
+        line("");
+
+        for (int function = 0; function < getFunctionCount(index); function++) {
+            comment("Function " + function + " of library " + index + ".", 1 + random.nextInt(3));
+            variables.clear();
+            code.append("declare function lib" + index + ":f" + function + "(");
+            for (int parameter = 0; parameter < getParameterCount(function); parameter++) {
+                String name = "p" + parameter;
+                variables.add(name);
+                code.append(parameter > 0 ? ", $" : "$").append(name).append(random.nextInt(4) > 0 ? " as item()*" : "");
+            }
+            line(")");
+            line("as item()*");
+            line("{");
+            indent(1);
+            expression(1, 1);
+            line("");
+            line("};");
+            line("");
+        }
+        return code.toString();
+    }
+
+    private String main(int index) {
+        start(index);
+        line("xquery version '1.0-ml';");
+        line("");
+        comment("Main module " + index + ".", 1 + random.nextInt(3));
+        importLibraries(index);
+        line("declare variable $page as xs:integer := " + (1 + random.nextInt(10)) + ";");
+        line("");
+        line("declare function local:render($items as item()*) as element()*");
+        line("{");
+        variables.clear();
+        variables.add("items");
+        indent(1);
+        expression(1, 1);
+        line("");
+        line("};");
+        line("");
+        variables.clear();
+        variables.add("page");
+        code.append("local:render(");
+        expression(1, 1);
+        line(")");
+        return code.toString();
+    }
+
+    private void start(int index) {
+        // Each file gets its own sequence, so it only depends on the seed,
+        // its index and the number of libraries
+        random = new Random(seed * 1000003 + index);
+        code = new StringBuffer();
+        variables = new ArrayList<String>();
+        imports = new ArrayList<Integer>();
+        names = 0;
+    }
+
+    /*
+     * Imports some of the libraries before the module, favoring the first
+     * ones so that a few libraries are imported by most modules.
+     */
+    private void importLibraries(int index) {
+        int available = Math.min(index, libraries);
+        int count = available == 0 ? 0 : random.nextInt(Math.min(maxImports, available) + 1);
+        for (int i = 0; i < count; i++) {
+            double r = random.nextDouble();
+            int library = (int) (available * r * r);
+            if (!imports.contains(library)) {
+                imports.add(library);
+                line("import module namespace lib" + library + " = '" + namespace(library) + "' at '/lib/lib" + library + ".xqy';");
+            }
+        }
+        if (count > 0) {
+            line("");
+        }
+    }
+
+    private void expression(int depth, int indent) {
+        if (depth >= maxDepth) {
+            simpleExpression();
+            return;
+        }
+        switch (random.nextInt(7)) {
+        case 0:
+        case 1:
+            flwor(depth, indent);
+            break;
+        case 2:
+        case 3:
+            element(depth, indent, true);
+            break;
+        case 4:
+            code.append("if (");
+            condition();
+            code.append(") then\n");
+            indent(indent + 1);
+            expression(depth + 1, indent + 1);
+            code.append("\n");
+            indent(indent);
+            code.append("else\n");
+            indent(indent + 1);
+            expression(depth + 1, indent + 1);
+            break;
+        case 5:
+            code.append("(: ").append(sentence(5 + random.nextInt(20))).append(" :)\n");
+            indent(indent);
+            expression(depth + 1, indent);
+            break;
+        default:
+            code.append("(");
+            expression(depth + 1, indent);
+            code.append(", ");
+            call();
+            code.append(")");
+            break;
+        }
+    }
+
+    private void flwor(int depth, int indent) {
+        int added = 0;
+        for (int clause = 1 + random.nextInt(3); clause > 0; clause--) {
+            String name = "v" + names++;
+            if (random.nextBoolean()) {
+                code.append("for $").append(name).append(" in ");
+                source();
+            } else {
+                code.append("let $").append(name).append(random.nextBoolean() ? " as item()* := " : " := ");
+                simpleExpression();
+            }
+            code.append("\n");
+            indent(indent);
+            variables.add(name);
+            added++;
+        }
+        if (random.nextInt(3) == 0) {
+            code.append("where ");
+            condition();
+            code.append("\n");
+            indent(indent);
+        }
+        if (random.nextInt(3) == 0) {
+            code.append("order by ").append(variable()).append(random.nextBoolean() ? " descending" : "").append("\n");
+            indent(indent);
+        }
+        code.append("return\n");
+        indent(indent + 1);
+        expression(depth + 1, indent + 1);
+        for (int i = 0; i < added; i++) {
+            variables.remove(variables.size() - 1);
+        }
+    }
+
+    private void element(int depth, int indent, boolean root) {
+        String name = word();
+        code.append("<").append(name);
+        if (root && random.nextBoolean()) {
+            code.append(" xmlns=\"http://www.w3.org/1999/xhtml\"");
+        }
+        for (int attribute = random.nextInt(4); attribute > 0; attribute--) {
+            code.append(" ").append(word()).append(attribute).append("=\"");
+            if (random.nextBoolean()) {
+                code.append("{").append(variable()).append("}");
+            } else {
+                code.append(sentence(1 + random.nextInt(3)));
+            }
+            code.append("\"");
+        }
+        code.append(">");
+
+        int children = depth >= maxDepth ? 0 : random.nextInt(root ? maxElements + 1 : 4);
+        for (int child = 0; child < children; child++) {
+            code.append("\n");
+            indent(indent + 1);
+            switch (random.nextInt(4)) {
+            case 0:
+                code.append(sentence(2 + random.nextInt(12)));
+                break;
+            case 1:
+                code.append("{ ");
+                expression(depth + 1, indent + 2);
+                code.append(" }");
+                break;
+            default:
+                element(depth + 1, indent + 1, false);
+                break;
+            }
+        }
+        if (children > 0) {
+            code.append("\n");
+            indent(indent);
+        } else {
+            code.append("{ ").append(variable()).append(" }");
+        }
+        code.append("</").append(name).append(">");
+    }
+
+    private void simpleExpression() {
+        switch (random.nextInt(6)) {
+        case 0:
+            code.append("'").append(longString()).append("'");
+            break;
+        case 1:
+            call();
+            break;
+        case 2:
+            path();
+            break;
+        case 3:
+            code.append("fn:concat(").append(variable()).append(", '").append(sentence(2)).append("')");
+            break;
+        case 4:
+            code.append("fn:count(").append(variable()).append(") + ").append(random.nextInt(10));
+            break;
+        default:
+            code.append(variable());
+            break;
+        }
+    }
+
+    private void source() {
+        switch (random.nextInt(3)) {
+        case 0:
+            code.append("(1 to ").append(1 + random.nextInt(100)).append(")");
+            break;
+        case 1:
+            path();
+            break;
+        default:
+            code.append(variable());
+            break;
+        }
+    }
+
+    private void condition() {
+        switch (random.nextInt(3)) {
+        case 0:
+            code.append("fn:exists(").append(variable()).append(")");
+            break;
+        case 1:
+            // Not a boolean, for the effective boolean check
+            code.append(variable());
+            break;
+        default:
+            code.append(variable()).append(" eq '").append(word()).append("'");
+            break;
+        }
+    }
+
+    private void path() {
+        code.append(random.nextBoolean() ? "/" : "//").append(word());
+        for (int step = random.nextInt(3); step > 0; step--) {
+            code.append(random.nextInt(4) == 0 ? "//" : "/").append(word());
+        }
+        if (random.nextBoolean()) {
+            code.append("[@").append(word()).append(" eq ").append(variable()).append("]");
+        }
+        if (random.nextInt(4) == 0) {
+            code.append("/text()");
+        }
+    }
+
+    private void call() {
+        if (imports.isEmpty() || random.nextInt(4) == 0) {
+            code.append(random.nextInt(10) == 0 ? "xdmp:eval('" + sentence(2) + "')" : "fn:string(" + variable() + ")");
+            return;
+        }
+        int library = imports.get(random.nextInt(imports.size()));
+        int function = random.nextInt(getFunctionCount(library));
+        code.append("lib").append(library).append(":f").append(function).append("(");
+        for (int parameter = 0; parameter < getParameterCount(function); parameter++) {
+            code.append(parameter > 0 ? ", " : "").append(random.nextBoolean() ? variable() : "'" + word() + "'");
+        }
+        code.append(")");
+    }
+
+    private String variable() {
+        if (variables.isEmpty()) {
+            return "()";
+        }
+        return "$" + variables.get(random.nextInt(variables.size()));
+    }
+
+    private String longString() {
+        int length = random.nextInt(5) == 0 ? maxStringLength / 2 + random.nextInt(maxStringLength / 2 + 1) : 20;
+        StringBuffer string = new StringBuffer();
+        while (string.length() < length) {
+            string.append(word()).append(' ');
+        }
+        return string.toString().trim();
+    }
+
+    private String sentence(int words) {
+        StringBuffer sentence = new StringBuffer(word());
+        for (int i = 1; i < words; i++) {
+            sentence.append(' ').append(word());
+        }
+        return sentence.toString();
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private void comment(String title, int paragraphs) {
+        line("(:~");
+        line(" : " + title);
+        for (int i = 0; i < paragraphs; i++) {
+            line(" :");
+            for (int lines = 1 + random.nextInt(4); lines > 0; lines--) {
+                line(" : " + sentence(6 + random.nextInt(8)));
+            }
+        }
+        line(" :)");
+    }
+
+    private void indent(int indent) {
+        for (int i = 0; i < indent; i++) {
+            code.append("    ");
+        }
+    }
+
+    private void line(String line) {
+        code.append(line).append('\n');
+    }
+
+    /*
+     * The number of functions of a library and the parameters of each are
+     * known to every module that calls them, so they only depend on the seed.
+     */
+    private int getFunctionCount(int library) {
+        return 1 + new Random(seed * 31 + library).nextInt(maxFunctions);
+    }
+
+    private static int getParameterCount(int function) {
+        return function % 3;
+    }
+
+    private static String namespace(int library) {
+        return "http://example.org/lib" + library;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.CorpusGenerator;
+import org.sonar.plugins.xquery.api.XQueryConstants;
+import org.sonar.plugins.xquery.checks.ParseErrorCheck;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Runs both passes of the analysis over a generated project and records the
+ * throughput and the peak heap. The project has 100 files by default, set
+ * the xquery.scale.files system property (up to 100000) and xquery.scale.seed
+ * to reproduce a problem at scale.
+ *
+ * In streaming mode the heap that is left after a garbage collection must
+ * stay flat through the analysis of a larger project, since nothing of a
+ * file is kept once it is saved. Keeping only the source code object of each
+ * file already makes it grow by about 1 KB per file.
+ */
+public class ProjectAnalyzerScaleTest extends AbstractSonarTest {
+
+    private static final Logger logger = Logger.getLogger(ProjectAnalyzerScaleTest.class.getName());
+
+    private static final int FILES = Integer.getInteger("xquery.scale.files", 100);
+    private static final long SEED = Long.getLong("xquery.scale.seed", 42);
+
+    private static final int STREAMING_FILES = 500;
+    private static final int SAMPLES = 10;
+    // How much the heap can grow for each file in streaming mode
+    private static final double STREAMING_GROWTH_PER_FILE = 256;
+
+    private File directory;
+    private List<File> files;
+
+    @BeforeClass
+    public void generate() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "project-analyzer-scale-test");
+        FileUtils.mkdir(directory.getAbsolutePath());
+        FileUtils.cleanDirectory(directory);
+        files = new CorpusGenerator(SEED).generate(directory, FILES);
+    }
+
+    @AfterClass
+    public void deleteFiles() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testGeneratorIsDeterministic() throws IOException {
+        List<File> generated = new CorpusGenerator(SEED).generate(new File(directory, "first"), 20);
+        List<File> again = new CorpusGenerator(SEED).generate(new File(directory, "again"), 20);
+        List<File> other = new CorpusGenerator(SEED + 1).generate(new File(directory, "other"), 20);
+        for (int i = 0; i < generated.size(); i++) {
+            Assert.assertEquals(FileUtils.fileRead(again.get(i), "UTF-8"), FileUtils.fileRead(generated.get(i), "UTF-8"),
+                "Content of " + generated.get(i).getName());
+        }
+        Assert.assertFalse(FileUtils.fileRead(other.get(0), "UTF-8").equals(FileUtils.fileRead(generated.get(0), "UTF-8")),
+            "Another seed should generate other code");
+    }
+
+    @Test
+    public void testScale() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+
+        Settings settings = new Settings();
+        settings.setProperty(XQueryConstants.THREADS_KEY, 0);
+        settings.setProperty(XQueryConstants.TREE_CACHE_SIZE_KEY, XQueryConstants.DEFAULT_TREE_CACHE_SIZE);
+        ScaleAnalyzer analyzer = new ScaleAnalyzer(settings);
+        long start = System.nanoTime();
+        analyzer.analyze(files, analyzer.mapDependencies(files));
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+        // The sum of the peaks of the heap pools, they may not all have
+        // peaked at the same time
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        String result = String.format(Locale.ENGLISH,
+            "Analyzed %d files (%d KB) with %d threads in %.1f s: %.0f files/s, %.0f KB/s, peak heap %d MB, %d issues",
+            files.size(), bytes / 1024, analyzer.getThreads(), seconds, files.size() / seconds, bytes / 1024 / seconds,
+            peak / (1024 * 1024), analyzer.issues);
+        logger.info(result);
+        Reporter.log(result);
+
+        Assert.assertEquals(analyzer.saved, files.size(), "Files saved");
+        Assert.assertEquals(analyzer.parseErrors, 0, "The generated code should parse, " + analyzer.firstParseError);
+        Assert.assertTrue(analyzer.issues > 0, "Checks should find issues in the generated code");
+    }
+
+    @Test
+    public void testStreamingHeapIsFlat() throws IOException {
+        List<File> streamingFiles = new CorpusGenerator(SEED).generate(new File(directory, "streaming"), STREAMING_FILES);
+
+        Settings settings = new Settings();
+        settings.setProperty(XQueryConstants.THREADS_KEY, 2);
+        settings.setProperty(XQueryConstants.TREE_CACHE_SIZE_KEY, XQueryConstants.DEFAULT_TREE_CACHE_SIZE);
+        settings.setProperty(XQueryConstants.STREAMING_KEY, true);
+        ScaleAnalyzer analyzer = new ScaleAnalyzer(settings);
+        analyzer.sampleEvery = STREAMING_FILES / SAMPLES;
+        analyzer.analyze(streamingFiles, analyzer.mapDependencies(streamingFiles));
+
+        Assert.assertEquals(analyzer.saved, streamingFiles.size(), "Files saved");
+        Assert.assertEquals(analyzer.samples.size(), SAMPLES, "Heap samples");
+
+        // The first sample is taken while the analysis is still warming up,
+        // the slope of the others is the median of the slopes between each
+        // two of them so a few noisy samples don't decide
+        List<Long> samples = analyzer.samples.subList(1, SAMPLES);
+        double growth = slope(samples) / analyzer.sampleEvery;
+        String result = String.format(Locale.ENGLISH, "Heap after every %d files in streaming mode: %s, %.0f bytes per file",
+            analyzer.sampleEvery, analyzer.samples, growth);
+        logger.info(result);
+        Reporter.log(result);
+        Assert.assertTrue(growth < STREAMING_GROWTH_PER_FILE, result);
+    }
+
+    /*
+     * The median of the slopes between each two of the evenly spaced samples.
+     */
+    private static double slope(List<Long> samples) {
+        List<Double> slopes = new ArrayList<Double>();
+        for (int i = 0; i < samples.size(); i++) {
+            for (int j = i + 1; j < samples.size(); j++) {
+                slopes.add((double) (samples.get(j) - samples.get(i)) / (j - i));
+            }
+        }
+        Collections.sort(slopes);
+        int middle = slopes.size() / 2;
+        return slopes.size() % 2 == 1 ? slopes.get(middle) : (slopes.get(middle - 1) + slopes.get(middle)) / 2;
+    }
+
+    /*
+     * Gets the heap that is used after a full collection.
+     */
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /*
+     * Analyzer with all the checks that only counts what is saved, so the
+     * results don't add to the heap.
+     */
+    private static class ScaleAnalyzer extends ProjectAnalyzer {
+        private int saved;
+        private int issues;
+        private int parseErrors;
+        private String firstParseError;
+        private int sampleEvery;
+        private final List<Long> samples = new ArrayList<Long>();
+
+        private ScaleAnalyzer(Settings settings) {
+            super(settings);
+        }
+
+        @Override
+        protected SourceCode createSourceCode(File file) {
+            return new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+        }
+
+        @Override
+        protected List<XQueryAstVisitor> createChecks() {
+            List<XQueryAstVisitor> checks = new ArrayList<XQueryAstVisitor>();
+            for (Class<?> checkClass : CheckClasses.getChecks()) {
+                try {
+                    checks.add((XQueryAstVisitor) checkClass.newInstance());
+                } catch (Exception e) {
+                    throw new SonarException(e);
+                }
+            }
+            return checks;
+        }
+
+        @Override
+        protected void save(SourceCode sourceCode) {
+            saved++;
+            for (Issue issue : sourceCode.getIssues()) {
+                issues++;
+                if (issue.rule().rule().equals(ParseErrorCheck.RULE_KEY) && parseErrors++ == 0) {
+                    firstParseError = sourceCode.getResource().getName() + ":" + issue.line() + " " + issue.message();
+                }
+            }
+            if (sampleEvery > 0 && saved % sampleEvery == 0) {
+                samples.add(usedHeap());
+            }
+        }
+    }
+}
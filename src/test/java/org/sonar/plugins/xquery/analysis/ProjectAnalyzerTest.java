@@ -0,0 +1,792 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.analysis;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.sonar.api.config.Settings;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.api.XQueryConstants;
+import org.sonar.plugins.xquery.checks.AbstractCheck;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class ProjectAnalyzerTest extends AbstractSonarTest {
+
+    private static final int MODULES = 12;
+
+    private File directory;
+    private List<File> files;
+
+    @BeforeClass
+    public void createFiles() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "project-analyzer-test");
+        FileUtils.mkdir(directory.getAbsolutePath());
+        FileUtils.cleanDirectory(directory);
+
+        files = new ArrayList<File>();
+        for (int i = 0; i < MODULES; i++) {
+            files.add(write("lib" + i + ".xqy",
+                "xquery version '1.0-ml';",
+                "module namespace lib" + i + " = 'http://lds.org/code/lib" + i + "';",
+                "declare variable $lib" + i + ":enabled as xs:boolean := fn:true();",
+                "declare function lib" + i + ":valid($id) as xs:boolean",
+                "{",
+                "    fn:exists(/article[@id eq $id])",
+                "};",
+                "declare function lib" + i + ":title($id as xs:string) as xs:string",
+                "{",
+                "    /article[fn:lower-case(@id) eq $id]//title/text()",
+                "};"
+            ));
+            files.add(write("main" + i + ".xqy",
+                "xquery version '" + (i % 2 == 0 ? "1.0-ml" : "0.9-ml") + "';",
+                "import module namespace lib" + i + " = 'http://lds.org/code/lib" + i + "' at '/lib" + i + ".xqy';",
+                "for $article in /article",
+                "let $id := $article/@id",
+                "order by $article/title",
+                "return",
+                "    if (lib" + i + ":valid($id)) then",
+                "        lib" + i + ":title($id)",
+                "    else if ($lib" + i + ":enabled) then",
+                "        xdmp:eval('fn:current-dateTime()')",
+                "    else if ($article/title) then",
+                "        $article[xs:integer(@order) + 1]",
+                "    else",
+                "        ()"
+            ));
+        }
+        files.add(write("broken.xqy",
+            "xquery version '1.0-ml';",
+            "declare variable $year := try { xs:int('2000') } catch ($e) { };",
+            "$year"
+        ));
+    }
+
+    @AfterClass
+    public void deleteFiles() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        List<String> sequential = analyze(settings(1, 0));
+        Assert.assertTrue(sequential.size() > MODULES, "Sequential analysis should find issues");
+
+        for (int threads : new int[] { 2, 4, 8 }) {
+            Assert.assertEquals(analyze(settings(threads, 0)), sequential, "Issues with " + threads + " threads");
+        }
+    }
+
+    @Test
+    public void testPipelineMatchesSequential() throws IOException {
+        List<String> sequential = analyze(settings(1, 0));
+
+        for (int threads : new int[] { 1, 2, 4 }) {
+            for (int treeCacheSize : new int[] { 0, 64 }) {
+                Settings settings = settings(threads, treeCacheSize);
+                settings.setProperty(XQueryConstants.PIPELINE_KEY, true);
+                TestAnalyzer analyzer = new TestAnalyzer(settings, new ArrayList<String>());
+                Assert.assertEquals(analyzer.isPipelined(), threads > 1, "Pipelined with " + threads + " threads");
+                Assert.assertEquals(analyze(analyzer), sequential, "Issues with " + threads + " threads and a cache of " + treeCacheSize + " MB");
+                Assert.assertEquals(analyzer.saveThreads, Collections.singleton(Thread.currentThread()), "Threads that saved the results");
+            }
+        }
+
+        // Files replayed from the cache skip the parse and check stages
+        File cacheFile = new File(directory, "work/pipeline-" + ResultCache.FILE_NAME);
+        for (int run = 0; run < 2; run++) {
+            TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64, true), new ArrayList<String>());
+            analyzer.setResultCache(new ResultCache(cacheFile, directory, "rules"));
+            Assert.assertEquals(analyze(analyzer), sequential, "Results of run " + (run + 1));
+            Assert.assertEquals(analyzer.getResultCache().getHits(), run == 0 ? 0 : files.size(), "Files replayed in run " + (run + 1));
+        }
+        FileUtils.forceDelete(cacheFile);
+    }
+
+    @Test
+    public void testDefaultThreads() {
+        Assert.assertEquals(new TestAnalyzer(settings(0, 0), null).getThreads(), Runtime.getRuntime().availableProcessors(), "Default number of threads");
+    }
+
+    @Test
+    public void testTreeCache() {
+        List<String> parsed = analyze(settings(1, 0));
+
+        TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64), new ArrayList<String>());
+        Assert.assertEquals(analyze(analyzer), parsed, "Issues from cached trees");
+        Assert.assertEquals(analyzer.getTreeCache().getHits(), files.size(), "Cache hits");
+        Assert.assertEquals(analyzer.getTreeCache().getMisses(), 0, "Cache misses");
+        Assert.assertEquals(analyzer.getTreeCache().getEvictions(), 0, "Cache evictions");
+    }
+
+    @Test
+    public void testTreeCacheBudget() {
+        // Only room for the trees of the first few files, the files after
+        // that are dropped instead of the ones the analysis needs first
+        TreeCache cache = new TreeCache(4 * 1024 * TreeCache.BYTES_PER_CHAR);
+        for (File file : files) {
+            cache.put(file, new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file), null, null);
+        }
+        int cached = files.size() - cache.getEvictions();
+        Assert.assertTrue(cached > 0 && cached < files.size(), "Some trees should be evicted");
+
+        for (File file : files) {
+            cache.take(file);
+        }
+        Assert.assertEquals(cache.getHits(), cached, "Cache hits");
+        Assert.assertEquals(cache.getMisses(), files.size() - cached, "Cache misses");
+        Assert.assertNotNull(cache.toString(), "Cache statistics");
+    }
+
+    @Test
+    public void testDeclarationsOnlyMapping() {
+        List<String> mapped = declarations(new TestAnalyzer(settings(4, 0), null).mapDependencies(files));
+
+        Settings settings = settings(4, 64);
+        settings.setProperty(XQueryConstants.DECLARATIONS_ONLY_MAPPING_KEY, true);
+        TestAnalyzer analyzer = new TestAnalyzer(settings, new ArrayList<String>());
+        Assert.assertFalse(analyzer.getTreeCache().isEnabled(), "Trees can't be kept when only declarations are parsed");
+
+        DependencyMapper mapper = analyzer.mapDependencies(files);
+        Assert.assertEquals(declarations(mapper), mapped, "Declarations");
+        analyzer.analyze(files, mapper);
+        Assert.assertEquals(analyzer.issues, analyze(settings(1, 0)), "Results with only declarations mapped");
+    }
+
+    @Test
+    public void testResultCache() throws IOException {
+        File cacheFile = new File(directory, "work/" + ResultCache.FILE_NAME);
+        List<String> analyzed = analyze(settings(1, 0));
+
+        // The first run has nothing to replay
+        TestAnalyzer analyzer = cachedAnalyzer(cacheFile, "rules");
+        Assert.assertEquals(analyze(analyzer), analyzed, "Results of the first run");
+        Assert.assertEquals(analyzer.getResultCache().getHits(), 0, "Files replayed in the first run");
+        Assert.assertTrue(cacheFile.isFile(), "Cache should be written");
+
+        // Nothing changed so all the files are replayed
+        analyzer = cachedAnalyzer(cacheFile, "rules");
+        Assert.assertEquals(analyze(analyzer), analyzed, "Replayed results");
+        Assert.assertEquals(analyzer.getResultCache().getHits(), files.size(), "Files replayed");
+        Assert.assertEquals(analyzer.getResultCache().getMisses(), 0, "Files analyzed");
+
+        // Other rules invalidate the whole cache
+        analyzer = cachedAnalyzer(cacheFile, "other rules");
+        Assert.assertEquals(analyze(analyzer), analyzed, "Results with other rules");
+        Assert.assertEquals(analyzer.getResultCache().getHits(), 0, "Files replayed with other rules");
+
+        // Changing the declarations of a library module analyzes the library
+        // and the main module that imports it again
+        File library = files.get(0);
+        String code = FileUtils.fileRead(library, "UTF-8");
+        try {
+            FileUtils.fileWrite(library.getAbsolutePath(), "UTF-8", code.replace("($id) as xs:boolean", "($id) as xs:string"));
+            List<String> changed = analyze(settings(1, 0));
+            Assert.assertFalse(changed.equals(analyzed), "Changing the library should change the issues");
+
+            analyzer = cachedAnalyzer(cacheFile, "other rules");
+            Assert.assertEquals(analyze(analyzer), changed, "Results after changing the library");
+            Assert.assertEquals(analyzer.getResultCache().getMisses(), 2, "Files analyzed after changing the library");
+        } finally {
+            FileUtils.fileWrite(library.getAbsolutePath(), "UTF-8", code);
+        }
+    }
+
+    @Test
+    public void testResultCacheKeepsDataMeasures() throws IOException {
+        File cacheFile = new File(directory, "work/data-" + ResultCache.FILE_NAME);
+        List<String> analyzed = null;
+        for (int run = 0; run < 2; run++) {
+            TestAnalyzer analyzer = new TestAnalyzer(settings(1, 0), new ArrayList<String>()) {
+                @Override
+                protected List<XQueryAstVisitor> createChecks() {
+                    List<XQueryAstVisitor> checks = super.createChecks();
+                    checks.add(new DataCheck());
+                    return checks;
+                }
+            };
+            analyzer.setResultCache(new ResultCache(cacheFile, directory, "rules"));
+            List<String> results = analyze(analyzer);
+            if (run == 0) {
+                analyzed = results;
+                int data = 0;
+                for (String result : analyzed) {
+                    data += result.endsWith(" " + CoreMetrics.FUNCTION_COMPLEXITY_DISTRIBUTION_KEY + "=null data=1=0") ? 1 : 0;
+                }
+                Assert.assertEquals(data, files.size(), "Data measures in " + analyzed);
+            } else {
+                Assert.assertEquals(analyzer.getResultCache().getHits(), files.size(), "Files replayed");
+                Assert.assertEquals(results, analyzed, "Replayed data measures");
+            }
+        }
+        FileUtils.forceDelete(cacheFile);
+    }
+
+    @Test
+    public void testSymbolIndex() throws IOException {
+        File indexFile = new File(directory, "work/" + SymbolIndex.FILE_NAME);
+        List<String> mapped = declarations(new TestAnalyzer(settings(4, 0), null).mapDependencies(files));
+        List<String> analyzed = analyze(settings(1, 0));
+
+        // The first run maps all the files
+        TestAnalyzer analyzer = indexedAnalyzer(indexFile);
+        Assert.assertEquals(declarations(analyzer.mapDependencies(files)), mapped, "Declarations of the first run");
+        Assert.assertEquals(analyzer.getSymbolIndex().getHits(), 0, "Files restored in the first run");
+
+        // Nothing changed so all the declarations come from the index
+        analyzer = indexedAnalyzer(indexFile);
+        DependencyMapper mapper = analyzer.mapDependencies(files);
+        Assert.assertEquals(declarations(mapper), mapped, "Restored declarations");
+        Assert.assertEquals(analyzer.getSymbolIndex().getHits(), files.size(), "Files restored");
+        Assert.assertEquals(analyzer.getSymbolIndex().getMisses(), 0, "Files mapped");
+        analyzer.analyze(files, mapper);
+        Assert.assertEquals(analyzer.issues, analyzed, "Results with restored declarations");
+
+        // Only the changed file is mapped again
+        File library = files.get(2);
+        String code = FileUtils.fileRead(library, "UTF-8");
+        try {
+            FileUtils.fileWrite(library.getAbsolutePath(), "UTF-8", code.replace("$id as xs:string", "$id as xs:integer"));
+            List<String> changed = declarations(new TestAnalyzer(settings(4, 0), null).mapDependencies(files));
+            Assert.assertFalse(changed.equals(mapped), "Changing the library should change the declarations");
+
+            analyzer = indexedAnalyzer(indexFile);
+            Assert.assertEquals(declarations(analyzer.mapDependencies(files)), changed, "Declarations after changing the library");
+            Assert.assertEquals(analyzer.getSymbolIndex().getMisses(), 1, "Files mapped after changing the library");
+        } finally {
+            FileUtils.fileWrite(library.getAbsolutePath(), "UTF-8", code);
+        }
+    }
+
+    @Test
+    public void testTreeDumps() throws IOException {
+        File dumps = new File(directory, "work/" + TreeDumps.DIRECTORY_NAME);
+        List<String> analyzed = analyze(settings(1, 0));
+
+        TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64), new ArrayList<String>());
+        analyzer.setTreeDumps(new TreeDumps(dumps, directory, new String[] { "**/main1.xqy", "broken.*" }));
+        Assert.assertEquals(analyze(analyzer), analyzed, "Results with dumps");
+
+        File[] written = dumps.listFiles();
+        Assert.assertNotNull(written, "Dumps should be written");
+        List<String> names = new ArrayList<String>();
+        for (File file : written) {
+            names.add(file.getName());
+        }
+        Collections.sort(names);
+        Assert.assertEquals(names.toString(), "[broken.xqy.txt, main1.xqy.txt]", "Dumped files");
+
+        List<String> lines = org.apache.commons.io.FileUtils.readLines(new File(dumps, "main1.xqy.txt"), "UTF-8");
+        Assert.assertEquals(lines.get(0), "XQuery", "Root");
+        Assert.assertTrue(lines.contains("          L_AposStringLiteralChar '0.9-ml' 1:16"), "Version with its position");
+        Assert.assertTrue(lines.contains("        ForClause"), "Nested clause");
+    }
+
+    @Test
+    public void testParseErrorLimit() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add("xquery version '1.0-ml';");
+        for (int i = 0; i < 10; i++) {
+            lines.add("declare variable $a" + i + " := try { xs:int('" + i + "') } catch ($e) { };");
+        }
+        lines.add("$a0");
+        File cascade = write("cascade.xqy", lines.toArray(new String[lines.size()]));
+
+        try {
+            Settings settings = settings(2, 64);
+            settings.setProperty(XQueryConstants.PARSE_ERROR_LIMIT_KEY, 3);
+            TestAnalyzer analyzer = new TestAnalyzer(settings, new ArrayList<String>());
+            List<File> all = new ArrayList<File>(files);
+            all.add(cascade);
+            List<String> results = analyze(analyzer, all);
+
+            // The other files are analyzed as always, the broken one gets
+            // one issue and its line metrics
+            List<String> others = analyze(settings(1, 0));
+            Assert.assertEquals(results.subList(0, others.size()), others, "Other files");
+            List<String> cascaded = results.subList(others.size(), results.size());
+            Assert.assertEquals(cascaded.size(), 5, "Results of " + cascaded);
+            Assert.assertTrue(cascaded.get(0).endsWith(":2 xquery:ParseError Parsing stopped after 3 errors"), "Summary issue " + cascaded.get(0));
+            Assert.assertTrue(cascaded.contains(cascaded.get(0).replaceAll(":.*", " lines=12.0")), "Lines in " + cascaded);
+
+            // The cut off results are never cached, only the other files are
+            // replayed
+            File cacheFile = new File(directory, "work/cascade-" + ResultCache.FILE_NAME);
+            for (int run = 0; run < 2; run++) {
+                analyzer = new TestAnalyzer(settings, new ArrayList<String>());
+                analyzer.setResultCache(new ResultCache(cacheFile, directory, "rules"));
+                Assert.assertEquals(analyze(analyzer, all), results, "Results of run " + (run + 1));
+                Assert.assertEquals(analyzer.getResultCache().getHits(), run == 0 ? 0 : files.size(), "Files replayed in run " + (run + 1));
+            }
+            FileUtils.forceDelete(cacheFile);
+        } finally {
+            FileUtils.forceDelete(cascade);
+        }
+    }
+
+    @Test
+    public void testWatchdog() throws IOException {
+        File slow = write("slow.xqy",
+            "xquery version '1.0-ml';",
+            "(: slow :)",
+            "for $i in (1 to 10)",
+            "return fn:concat('item ', $i, ' of ', 10)"
+        );
+
+        try {
+            List<File> all = new ArrayList<File>(files);
+            all.add(slow);
+            List<String> others = analyze(settings(1, 0));
+            for (int run = 0; run < 4; run++) {
+                // With and without the pipeline
+                int threads = run % 2 == 0 ? 1 : 4;
+                Settings settings = settings(threads, 0, run >= 2);
+                settings.setProperty(XQueryConstants.FILE_TIME_BUDGET_KEY, 200);
+                TestAnalyzer analyzer = new TestAnalyzer(settings, new ArrayList<String>()) {
+                    @Override
+                    protected List<XQueryAstVisitor> createChecks() {
+                        List<XQueryAstVisitor> checks = super.createChecks();
+                        checks.add(new SlowCheck());
+                        return checks;
+                    }
+                };
+                long start = System.currentTimeMillis();
+                List<String> results = analyze(analyzer, all);
+                long elapsed = System.currentTimeMillis() - start;
+
+                // The slow file is skipped, the others are analyzed as always
+                Assert.assertEquals(results.subList(0, others.size()), others, "Other files with " + threads + " threads");
+                List<String> skipped = results.subList(others.size(), results.size());
+                Assert.assertTrue(skipped.get(0).contains(":1 xquery:SkippedFile Skipped "), "Skipped issue " + skipped);
+                Assert.assertTrue(skipped.get(0).endsWith("took more than 200 ms in the check phase"), "Skipped issue " + skipped);
+                Assert.assertTrue(skipped.contains(skipped.get(0).replaceAll(":.*", " lines=4.0")), "Lines in " + skipped);
+                Assert.assertTrue(elapsed < 5000, "Analysis with " + threads + " threads took " + elapsed + " ms");
+            }
+        } finally {
+            FileUtils.forceDelete(slow);
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testWatchdogReplacesStuckThreads() throws IOException {
+        // More stuck files than threads
+        List<File> stuck = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            stuck.add(write("stuck" + i + ".xqy",
+                "xquery version '1.0-ml';",
+                "(: stuck :)",
+                "fn:true()"
+            ));
+        }
+
+        try {
+            List<File> all = new ArrayList<File>(files);
+            all.addAll(stuck);
+            List<String> others = analyze(settings(1, 0));
+            for (int run = 0; run < 3; run++) {
+                int threads = run == 0 ? 1 : 2;
+                Settings settings = settings(threads, 0, run == 2);
+                settings.setProperty(XQueryConstants.FILE_TIME_BUDGET_KEY, 200);
+                TestAnalyzer analyzer = new TestAnalyzer(settings, new ArrayList<String>()) {
+                    @Override
+                    protected List<XQueryAstVisitor> createChecks() {
+                        List<XQueryAstVisitor> checks = super.createChecks();
+                        checks.add(new StuckCheck());
+                        return checks;
+                    }
+                };
+                String description = " with " + threads + " threads" + (run == 2 ? " and the pipeline" : "");
+                List<String> results = analyze(analyzer, all);
+
+                // The stuck files are skipped and the others are analyzed by
+                // the threads that replaced them
+                Assert.assertEquals(results.subList(0, others.size()), others, "Other files" + description);
+                List<String> skipped = results.subList(others.size(), results.size());
+                for (File file : stuck) {
+                    String issue = ":1 xquery:SkippedFile Skipped " + file + " (1 KB), it took more than 200 ms in the check phase";
+                    boolean found = false;
+                    for (String result : skipped) {
+                        found |= result.endsWith(issue);
+                    }
+                    Assert.assertTrue(found, "Skipped issue of " + file.getName() + description + " in " + skipped);
+                }
+            }
+        } finally {
+            StuckCheck.RELEASE.countDown();
+            for (File file : stuck) {
+                FileUtils.forceDelete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testSchedule() throws IOException {
+        // The smallest file, but the slowest
+        File slow = write("slow.xqy",
+            "xquery version '1.0-ml';",
+            "(: slow :)",
+            "fn:true()"
+        );
+
+        try {
+            List<File> all = new ArrayList<File>(files);
+            all.add(slow);
+            List<String> mapped = declarations(new TestAnalyzer(settings(1, 0), null).mapDependencies(all));
+            List<String> analyzed = analyze(new TestAnalyzer(settings(1, 0), new ArrayList<String>()), all);
+            Collections.sort(analyzed);
+
+            // The largest file is started first when there are no durations
+            File largest = all.get(0);
+            for (File file : all) {
+                if (file.length() > largest.length()) {
+                    largest = file;
+                }
+            }
+
+            for (boolean pipelined : new boolean[] { false, true }) {
+                File scheduleFile = new File(directory, "work/" + FileSchedule.FILE_NAME);
+                File indexFile = new File(directory, "work/schedule-" + SymbolIndex.FILE_NAME);
+                File cacheFile = new File(directory, "work/schedule-" + ResultCache.FILE_NAME);
+                List<File> previousOrder = null;
+                for (int run = 0; run < 3; run++) {
+                    final List<File> started = new ArrayList<File>();
+                    TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64, pipelined), new ArrayList<String>()) {
+                        @Override
+                        protected SourceCode createSourceCode(File file) {
+                            started.add(file);
+                            return super.createSourceCode(file);
+                        }
+
+                        @Override
+                        protected List<XQueryAstVisitor> createChecks() {
+                            List<XQueryAstVisitor> checks = super.createChecks();
+                            checks.add(new SlowCheck());
+                            checks.add(new MeetingCheck());
+                            return checks;
+                        }
+                    };
+                    MeetingCheck.reset();
+                    FileSchedule schedule = new FileSchedule(scheduleFile, directory);
+                    analyzer.setSchedule(schedule);
+                    analyzer.setSymbolIndex(new SymbolIndex(indexFile, directory));
+                    analyzer.setResultCache(new ResultCache(cacheFile, directory, "rules"));
+                    String description = " of run " + (run + 1) + (pipelined ? " with the pipeline" : "");
+
+                    DependencyMapper mapper = analyzer.mapDependencies(all);
+                    Assert.assertEquals(declarations(mapper), mapped, "Declarations" + description);
+                    analyzer.analyze(all, mapper);
+                    List<String> results = new ArrayList<String>(analyzer.issues);
+                    Collections.sort(results);
+                    Assert.assertEquals(results, analyzed, "Results" + description);
+                    Assert.assertEquals(analyzer.saveThreads, Collections.singleton(Thread.currentThread()), "Threads that saved the results");
+
+                    // Then the slow file is, since it took the longest, even
+                    // once its results come from the cache
+                    List<File> analysisOrder = started.subList(all.size(), started.size());
+                    Assert.assertEquals(analysisOrder.get(0), run == 0 ? largest : slow, "First file" + description);
+                    Assert.assertEquals(analyzer.getResultCache().getHits(), run == 0 ? 0 : all.size(), "Files replayed" + description);
+                    if (run == 2) {
+                        // The replayed files kept their durations
+                        Assert.assertEquals(analysisOrder, previousOrder, "Order" + description);
+                    }
+                    previousOrder = new ArrayList<File>(analysisOrder);
+
+                    if (run > 0) {
+                        continue;
+                    }
+                    // With the pipeline half of the threads run the checks
+                    FileSchedule.Pass pass = schedule.getLastPass();
+                    Assert.assertEquals(pass.getName(), "analysis", "Last pass" + description);
+                    Assert.assertTrue(pass.getThreads() > 1, "Threads" + description);
+                    Assert.assertEquals(pass.getThreads(), MeetingCheck.getThreads(), "Threads that ran the checks" + description);
+                    Assert.assertTrue(pass.getThreads() <= (pipelined ? 2 : 4), "Threads" + description);
+                    Assert.assertTrue(pass.getBusyTime() > 0, "Busy time" + description);
+                    Assert.assertTrue(pass.getIdleTime() >= 0 && pass.getTailTime() >= 0, "Idle time" + description);
+                    Assert.assertNotNull(pass.getCriticalFile(), "Critical file" + description);
+                    Assert.assertTrue(pass.getCriticalTime() > 0, "Critical time" + description);
+                }
+                FileUtils.forceDelete(scheduleFile);
+                FileUtils.forceDelete(indexFile);
+                FileUtils.forceDelete(cacheFile);
+            }
+        } finally {
+            FileUtils.forceDelete(slow);
+        }
+    }
+
+    @Test
+    public void testProfile() throws IOException {
+        profile(false);
+    }
+
+    @Test
+    public void testPipelineProfile() throws IOException {
+        profile(true);
+    }
+
+    private void profile(boolean pipelined) throws IOException {
+        List<String> analyzed = analyze(settings(1, 0));
+
+        TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64, pipelined), new ArrayList<String>());
+        AnalysisProfile profile = new AnalysisProfile();
+        analyzer.setProfile(profile);
+        Assert.assertEquals(analyze(analyzer), analyzed, "Results with a profile");
+
+        // Each file is read by both passes, and parsed once since its tree
+        // is kept for the analysis
+        Assert.assertEquals(profile.getPhase(FileWatchdog.Phase.READ).getCount(), files.size() * 2, "Files read");
+        Assert.assertEquals(profile.getPhase(FileWatchdog.Phase.PARSE).getCount(), files.size(), "Files parsed");
+        Assert.assertEquals(profile.getLexers().getCount(), files.size(), "Files lexed");
+        Assert.assertEquals(profile.getPhase(FileWatchdog.Phase.CHECK).getCount(), files.size(), "Files checked");
+        Assert.assertEquals(profile.getPhase(FileWatchdog.Phase.PERSIST).getCount(), files.size(), "Files saved");
+        Assert.assertTrue(profile.getPhase(FileWatchdog.Phase.PARSE).getWallTime() > 0, "Parse time");
+        Assert.assertEquals(profile.getSlowestFiles(AnalysisProfile.TOP).size(), Math.min(files.size(), AnalysisProfile.TOP), "Slowest files");
+
+        List<String> visitors = new ArrayList<String>();
+        for (AnalysisProfile.Totals totals : profile.getVisitors()) {
+            Assert.assertTrue(totals.getCount() > 0, "Calls to " + totals.getName());
+            visitors.add(totals.getName());
+        }
+        Assert.assertTrue(visitors.contains("DependencyMapper"), "Visitors " + visitors);
+        Assert.assertTrue(visitors.contains("XQueryVersionCheck"), "Visitors " + visitors);
+
+        File report = new File(directory, "work/" + AnalysisProfile.FILE_NAME);
+        profile.write(report);
+        String json = FileUtils.fileRead(report, "UTF-8");
+        Assert.assertTrue(json.contains("\"phases\": ["), "Phases in " + json);
+        Assert.assertTrue(json.contains("{\"name\": \"check\", \"count\": " + files.size() + ","), "Check phase in " + json);
+        Assert.assertTrue(json.contains("\"slowestFiles\": ["), "Files in " + json);
+        Assert.assertTrue(json.contains("\"analysis\": "), "Passes in " + json);
+    }
+
+    private TestAnalyzer indexedAnalyzer(File indexFile) {
+        TestAnalyzer analyzer = new TestAnalyzer(settings(4, 0), new ArrayList<String>());
+        analyzer.setSymbolIndex(new SymbolIndex(indexFile, directory));
+        return analyzer;
+    }
+
+    /*
+     * Describes each of the global declarations with the key it is looked up
+     * with.
+     */
+    private List<String> declarations(DependencyMapper mapper) {
+        List<String> declarations = new ArrayList<String>();
+        for (Map.Entry<Integer, Declaration> entry : mapper.getGlobalDeclarations().entrySet()) {
+            Declaration declaration = entry.getValue();
+            String description = entry.getKey() + " " + declaration + " " + declaration.getClass().getSimpleName();
+            if (declaration instanceof Function) {
+                List<String> parameters = new ArrayList<String>();
+                for (Declaration parameter : ((Function) declaration).getParameters().values()) {
+                    parameters.add(parameter.toString());
+                }
+                Collections.sort(parameters);
+                description += " " + parameters;
+            }
+            declarations.add(description);
+        }
+        Collections.sort(declarations);
+        return declarations;
+    }
+
+    private TestAnalyzer cachedAnalyzer(File cacheFile, String rules) {
+        TestAnalyzer analyzer = new TestAnalyzer(settings(4, 64), new ArrayList<String>());
+        analyzer.setResultCache(new ResultCache(cacheFile, directory, rules));
+        return analyzer;
+    }
+
+    private List<String> analyze(Settings settings) {
+        return analyze(new TestAnalyzer(settings, new ArrayList<String>()));
+    }
+
+    private List<String> analyze(TestAnalyzer analyzer) {
+        return analyze(analyzer, files);
+    }
+
+    private List<String> analyze(TestAnalyzer analyzer, List<File> files) {
+        analyzer.analyze(files, analyzer.mapDependencies(files));
+        return analyzer.issues;
+    }
+
+    private Settings settings(int threads, int treeCacheSize) {
+        return settings(threads, treeCacheSize, false);
+    }
+
+    private Settings settings(int threads, int treeCacheSize, boolean pipelined) {
+        Settings settings = new Settings();
+        settings.setProperty(XQueryConstants.THREADS_KEY, threads);
+        settings.setProperty(XQueryConstants.TREE_CACHE_SIZE_KEY, treeCacheSize);
+        settings.setProperty(XQueryConstants.PIPELINE_KEY, pipelined);
+        return settings;
+    }
+
+    private File write(String name, String... lines) throws IOException {
+        File file = new File(directory, name);
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", join(lines));
+        return file;
+    }
+
+    private String join(String... lines) {
+        StringBuffer code = new StringBuffer();
+        for (String line : lines) {
+            code.append(line).append('\n');
+        }
+        return code.toString();
+    }
+
+    /*
+     * Check that takes 50 ms for each node of the files with a "slow" comment,
+     * without ever looking at the interrupt of its thread.
+     */
+    private static class SlowCheck extends AbstractCheck {
+        private boolean slow;
+
+        @Override
+        public void enterSource(XQueryTree node) {
+            slow = getSourceCode().getCodeString().contains("(: slow :)");
+        }
+
+        @Override
+        public void enterExpression(XQueryTree node) {
+            long end = System.nanoTime() + 50 * 1000000L;
+            while (slow && System.nanoTime() < end) {
+                // Busy
+            }
+        }
+    }
+
+    /*
+     * Check that holds up the first file until another thread starts one, so
+     * a pass always uses more than one thread, and counts the threads.
+     */
+    private static class MeetingCheck extends AbstractCheck {
+        private static final Set<Thread> THREADS = new HashSet<Thread>();
+
+        private static void reset() {
+            synchronized (THREADS) {
+                THREADS.clear();
+            }
+        }
+
+        private static int getThreads() {
+            synchronized (THREADS) {
+                return THREADS.size();
+            }
+        }
+
+        @Override
+        public void enterSource(XQueryTree node) {
+            synchronized (THREADS) {
+                THREADS.add(Thread.currentThread());
+                THREADS.notifyAll();
+                long end = System.currentTimeMillis() + 10000;
+                while (THREADS.size() < 2 && System.currentTimeMillis() < end) {
+                    try {
+                        THREADS.wait(end - System.currentTimeMillis());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Check that adds a data measure to every file.
+     */
+    private static class DataCheck extends AbstractCheck {
+        @Override
+        public void enterSource(XQueryTree node) {
+            getSourceCode().addMeasure(new Measure(CoreMetrics.FUNCTION_COMPLEXITY_DISTRIBUTION, "1=0"));
+        }
+    }
+
+    /*
+     * Check that never returns from the first node of the files with a "stuck"
+     * comment until the test is over, whether its thread is interrupted or not.
+     */
+    private static class StuckCheck extends AbstractCheck {
+        private static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+        @Override
+        public void enterSource(XQueryTree node) {
+            while (getSourceCode().getCodeString().contains("(: stuck :)") && RELEASE.getCount() > 0) {
+                try {
+                    RELEASE.await();
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    /*
+     * Analyzer that creates all the checks and records the issues and
+     * measures in the order the files are saved.
+     */
+    private static class TestAnalyzer extends ProjectAnalyzer {
+        private final List<String> issues;
+        private final Set<Thread> saveThreads = new HashSet<Thread>();
+
+        private TestAnalyzer(Settings settings, List<String> issues) {
+            super(settings);
+            this.issues = issues;
+        }
+
+        @Override
+        protected SourceCode createSourceCode(File file) {
+            return new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+        }
+
+        @Override
+        protected List<XQueryAstVisitor> createChecks() {
+            List<XQueryAstVisitor> checks = new ArrayList<XQueryAstVisitor>();
+            for (Class<?> checkClass : CheckClasses.getChecks()) {
+                try {
+                    checks.add((XQueryAstVisitor) checkClass.newInstance());
+                } catch (Exception e) {
+                    throw new SonarException(e);
+                }
+            }
+            return checks;
+        }
+
+        @Override
+        protected void save(SourceCode sourceCode) {
+            saveThreads.add(Thread.currentThread());
+            for (Issue issue : sourceCode.getIssues()) {
+                issues.add(sourceCode.getResource().getName() + ":" + issue.line() + " " + issue.rule() + " " + issue.message());
+            }
+            for (Measure measure : sourceCode.getMeasures()) {
+                issues.add(sourceCode.getResource().getName() + " " + measure.getMetricKey() + "=" + measure.getValue()
+                    + (measure.getData() != null ? " data=" + measure.getData() : ""));
+            }
+        }
+    }
+}
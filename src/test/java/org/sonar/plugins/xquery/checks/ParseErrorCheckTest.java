@@ -5,7 +5,9 @@
 package org.sonar.plugins.xquery.checks;
 
 import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 public class ParseErrorCheckTest extends AbstractSonarTest {
@@ -29,6 +31,79 @@ public class ParseErrorCheckTest extends AbstractSonarTest {
         assertIssueLine(check, 2);
     }
 
+    @Test
+    public void testSuppressed() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setFailOnError(false);
+        reporter.setMaxProblems(2);
+        setReporter(reporter);
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "declare variable $a := try { xs:int('1') } catch ($e) { };",
+            "declare variable $b := try { xs:int('2') } catch ($e) { };",
+            "declare variable $c := try { xs:int('3') } catch ($e) { };",
+            "declare variable $d := try { xs:int('4') } catch ($e) { };",
+            "$a"
+        );
+        checkInvalid(check, code, 3);
+        setReporter(null);
+
+        Assert.assertEquals(reporter.getProblems().size(), 2, "Kept problems");
+        Assert.assertEquals(reporter.getSuppressedCount(), 2, "Suppressed problems");
+        assertIssueLines(check, new int[] { 2, 3, 4 });
+        Assert.assertEquals(code.getIssues().get(2).message(), "2 more problems were suppressed", "Summary");
+    }
+
+    @Test
+    public void testSuppressedLexerErrors() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setMaxProblems(1);
+        setReporter(reporter);
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "<a>&#xZZ;</a>,",
+            "<b>&#xZZ;</b>,",
+            "<c>&#xZZ;</c>"
+        );
+        checkInvalid(check, code);
+        setReporter(null);
+
+        // Lexer errors have no token, the summary still gets their line
+        Assert.assertEquals(reporter.getSuppressedCount(), 2, "Suppressed problems");
+        Assert.assertEquals(reporter.getFirstSuppressedLine(), 3, "Line of the first suppressed problem");
+        assertIssueLine(check, 3);
+        Assert.assertEquals(code.getIssues().get(0).message(), "2 more problems were suppressed", "Summary");
+    }
+
+    @Test
+    public void testErrorLimit() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setErrorBudget(2, 0);
+        setReporter(reporter);
+        checkInvalid(check, brokenCode(4), 1);
+        setReporter(null);
+
+        Assert.assertTrue(reporter.isCancelled(), "Parse stopped");
+        Assert.assertEquals(reporter.getErrorCount(), 2, "Reported problems");
+        assertIssueLine(check, 2);
+        Assert.assertEquals(getIssues(check, 1).get(0).message(), "Parsing stopped after 2 errors", "Summary");
+    }
+
+    @Test
+    public void testRecoveryTimeout() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setErrorBudget(0, 1);
+        setReporter(reporter);
+        checkInvalid(check, brokenCode(5000), 1);
+        setReporter(null);
+
+        Assert.assertTrue(reporter.isCancelled(), "Parse stopped");
+        Assert.assertTrue(reporter.getErrorCount() < 5000, "Parse stopped before the end");
+        Assert.assertTrue(reporter.getCancelledMessage().contains("ms of error recovery"), "Summary " + reporter.getCancelledMessage());
+    }
+
     @Test
     public void testFalsePositive() {
         ProblemReporter reporter = new ProblemReporter();
@@ -60,4 +135,14 @@ public class ParseErrorCheckTest extends AbstractSonarTest {
         );
         setReporter(null);
     }
+
+    private SourceCode brokenCode(int declarations) {
+        String[] lines = new String[declarations + 2];
+        lines[0] = "xquery version '1.0-ml';";
+        for (int i = 0; i < declarations; i++) {
+            lines[i + 1] = "declare variable $a" + i + " := try { xs:int('" + i + "') } catch ($e) { };";
+        }
+        lines[declarations + 1] = "$a0";
+        return code(lines);
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.language;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.parser.SourceCharStream;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SourceBufferTest extends AbstractSonarTest {
+
+    private File directory;
+
+    @BeforeClass
+    public void createDirectory() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "source-buffer-test");
+        FileUtils.forceMkdir(directory);
+        FileUtils.cleanDirectory(directory);
+    }
+
+    @AfterClass
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testSameAsLines() throws IOException {
+        log("testSameAsLines():");
+        String[] contents = new String[] {
+            "",
+            "\n",
+            "\n\n",
+            "xquery version '1.0-ml';",
+            "xquery version '1.0-ml';\nfn:true()\n",
+            "xquery version '1.0-ml';\r\nfn:true()\r\n\r\n",
+            "(: old mac :)\rfn:true()\r",
+            "let $a := 'schön 中文'\r\n\n\rreturn $a"
+        };
+
+        for (int i = 0; i < contents.length; i++) {
+            File file = new File(directory, "test" + i + ".xqy");
+            FileUtils.writeStringToFile(file, contents[i], "UTF-8");
+            assertSameAsLines(file);
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        log("testMappedFile():");
+        File file = new File(directory, "large.xqy");
+        StringBuffer code = new StringBuffer("xquery version '1.0-ml';\r\n");
+        while (code.length() <= SourceBuffer.MAP_THRESHOLD) {
+            code.append("let $text := 'été' (: ").append(code.length()).append(" :)\r\n");
+        }
+        code.append("return $text\n");
+        FileUtils.writeStringToFile(file, code.toString(), "UTF-8");
+        Assert.assertTrue(file.length() > SourceBuffer.MAP_THRESHOLD, "File should be mapped");
+        assertSameAsLines(file);
+    }
+
+    @Test
+    public void testCharStream() {
+        log("testCharStream():");
+        String code = "xquery version '1.0-ml';\nfn:true()";
+        SourceCharStream stream = new SourceCharStream(new SourceBuffer(code));
+        ANTLRStringStream copy = new ANTLRStringStream(code);
+
+        Assert.assertEquals(stream.size(), copy.size(), "Size");
+        Assert.assertEquals(stream.substring(0, stream.size() - 1), code, "Text");
+        Assert.assertEquals(stream.getLineIndex().getLineCount(), 2, "Lines");
+        for (int i = 0; i < code.length(); i++) {
+            Assert.assertEquals(stream.LA(1), copy.LA(1), "Character " + i);
+            stream.consume();
+            copy.consume();
+        }
+        Assert.assertEquals(stream.getLine(), copy.getLine(), "Line");
+        Assert.assertEquals(stream.getCharPositionInLine(), copy.getCharPositionInLine(), "Position in line");
+    }
+
+    private void assertSameAsLines(File file) throws IOException {
+        List<String> lines = FileUtils.readLines(file, "UTF-8");
+        SourceCode sourceCode = new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+
+        String name = StringUtils.abbreviate(StringUtils.replaceChars(FileUtils.readFileToString(file, "UTF-8"), "\r\n", "RN"), 40);
+        Assert.assertEquals(sourceCode.getCodeString(), StringUtils.join(lines, "\n"), "Code of " + name);
+        Assert.assertEquals(new ArrayList<String>(sourceCode.getCode()), lines, "Lines of " + name);
+        Assert.assertEquals(sourceCode.getCode().size(), lines.size(), "Number of lines of " + name);
+    }
+}
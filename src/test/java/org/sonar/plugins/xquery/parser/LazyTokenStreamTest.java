@@ -0,0 +1,173 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.reporter.ParseCancelledException;
+import org.sonar.plugins.xquery.parser.reporter.Problem;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LazyTokenStreamTest extends AbstractSonarTest {
+
+    private static final String[] CODE = new String[] {
+        "xquery version '1.0-ml';",
+        "(: A comment :)",
+        "declare variable $name as xs:string := \"it's {{escaped}}\";",
+        "declare function local:render($items as element()*) {",
+        "    <ul class='list' data-name=\"{$name}\">{",
+        "        for $item at $i in $items",
+        "        where $i lt 10",
+        "        return <li><!-- item -->{ fn:string($item/@id) }<![CDATA[ < ]]></li>",
+        "    }</ul>",
+        "};",
+        "local:render(/item[fn:exists(.)])",
+        ";",
+        "xdmp:log(\"second",
+        "transaction\")"
+    };
+
+    @Test
+    public void testCompactTokens() throws RecognitionException {
+        log("testCompactTokens():");
+        SourceCode code = code(CODE);
+        Assert.assertEquals(describe(code, true), describe(code, false), "Tree");
+    }
+
+    @Test
+    public void testCompactTokensWithErrors() throws RecognitionException {
+        log("testCompactTokensWithErrors():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "let $a := <a>{ 1 + }</a>",
+            "return $a[",
+            "fn:string(\"unfinished"
+        );
+        Assert.assertEquals(describe(code, true), describe(code, false), "Tree");
+    }
+
+    @Test
+    public void testSameTokens() {
+        log("testSameTokens():");
+        ANTLRStringStream source = new ANTLRStringStream("(: comment :)\nfn:true()\n  + 1");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(source), true);
+
+        Token first = stream.LT(1);
+        Assert.assertSame(stream.LT(1), first, "Same token object");
+        Assert.assertEquals(stream.LA(1), first.getType(), "Type");
+        Assert.assertEquals(first.getText(), "fn", "Text");
+
+        // The hidden tokens are skipped
+        List<String> texts = new ArrayList<String>();
+        while (stream.LA(1) != Token.EOF) {
+            texts.add(stream.LT(1).getText());
+            stream.consume();
+        }
+        Assert.assertEquals(texts.toString(), "[fn, :, true, (, ), +, 1]", "Tokens");
+        Assert.assertEquals(stream.toString(0, stream.size() - 1), source.substring(0, source.size() - 1), "Text of all the tokens");
+
+        Token last = stream.LT(-1);
+        Assert.assertEquals(last.getLine(), 3, "Line");
+        Assert.assertEquals(last.getCharPositionInLine(), 4, "Column");
+        Assert.assertEquals(last.getTokenIndex(), stream.size() - 1, "Index");
+    }
+
+    @Test
+    public void testLookAheadOverComments() {
+        log("testLookAheadOverComments():");
+        String code = "(: start :) 1 (: a :)(: b :) + \n\n (: c (: nested :) :) 2 * 3 (: end :)";
+        List<String> texts = Arrays.asList("1", "+", "2", "*", "3");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream(code)), true);
+
+        for (int i = 0; i <= texts.size(); i++) {
+            for (int k = 1; k <= 3; k++) {
+                String ahead = i + k - 1 < texts.size() ? texts.get(i + k - 1) : null;
+                Assert.assertEquals(stream.LT(k).getText(), ahead, "LT(" + k + ") at " + i);
+                if (ahead != null) {
+                    Assert.assertEquals(stream.LA(k), stream.LT(k).getType(), "LA(" + k + ") at " + i);
+                }
+                if (i - k >= 0) {
+                    Assert.assertEquals(stream.LT(-k).getText(), texts.get(i - k), "LT(-" + k + ") at " + i);
+                }
+            }
+            stream.consume();
+        }
+    }
+
+    @Test
+    public void testRecoveryTimeout() throws InterruptedException {
+        log("testRecoveryTimeout():");
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setErrorBudget(0, 1);
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream("1 + 2 + 3")), true);
+        stream.setReporter(reporter);
+
+        // Tokens are read as always until there is an error
+        Thread.sleep(5);
+        stream.consume();
+        reporter.reportError("test", "error", stream.LT(1));
+
+        // Recovery that reads on without reporting anything is still stopped
+        Thread.sleep(5);
+        try {
+            stream.consume();
+            Assert.fail("Recovery not stopped");
+        } catch (ParseCancelledException e) {
+            Assert.assertTrue(reporter.isCancelled(), "Parse stopped");
+            Assert.assertTrue(e.getMessage().contains("ms of error recovery (1 errors)"), "Summary " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPositionsAfterLexerSwitch() throws RecognitionException {
+        log("testPositionsAfterLexerSwitch():");
+        SourceCode code = code(CODE);
+        LineIndex lines = new LineIndex(code.getCodeString());
+        Assert.assertEquals(lines.getLineCount(), CODE.length, "Lines");
+
+        // The XML constructors and strings switch lexers many times, every
+        // token should still have the position of its first character
+        XQueryTree tree = new XQueryAstParser(code, null).parse(new ProblemReporter());
+        int checked = 0;
+        for (int type = 0; type < XQueryParser.tokenNames.length; type++) {
+            for (XQueryTree node : tree.getNodes(type)) {
+                CommonToken token = node.getToken();
+                if (token != null && token.getInputStream() != null) {
+                    String position = token.getText() + " at " + token.getStartIndex();
+                    Assert.assertEquals(token.getLine(), lines.getLine(token.getStartIndex()), "Line of " + position);
+                    Assert.assertEquals(token.getCharPositionInLine(), lines.getCharPositionInLine(token.getStartIndex()), "Column of " + position);
+                    checked++;
+                }
+            }
+        }
+        Assert.assertTrue(checked > 50, "Tokens checked");
+    }
+
+    private String describe(SourceCode code, boolean compact) throws RecognitionException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        parser.setCompactTokens(compact);
+        XQueryTree tree = parser.parse(reporter);
+
+        StringBuffer description = new StringBuffer(tree.toStringTree());
+        for (Problem problem : reporter.getProblems()) {
+            description.append('\n').append(problem.getMessageString());
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class PrologSkimmerTest extends AbstractSonarTest {
+
+    @Test
+    public void testMainModule() {
+        log("testMainModule():");
+        Assert.assertNull(PrologSkimmer.skim(code(
+            "xquery version '1.0-ml';",
+            "(: module namespace test = 'http://lds.org/code/test'; :)",
+            "declare function local:test() { <module/> };",
+            "local:test()"
+        ).getCodeString()), "Main module");
+    }
+
+    @Test
+    public void testLibraryModule() throws RecognitionException {
+        log("testLibraryModule():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "(: A (: nested :) comment with a quote ' and a brace { :)",
+            "module namespace test = 'http://lds.org/code/test';",
+            "import module namespace util = 'http://lds.org/code/util' at '/util.xqy';",
+            "declare namespace xh = 'http://www.w3.org/1999/xhtml';",
+            "declare option xdmp:mapping 'false';",
+            "declare variable $test:CONFIG as element(config) := <config name=\"a {{b}} {fn:string(1)}\">it's {'}'}</config>;",
+            "declare variable $test:LIMIT as xs:integer external;",
+            "declare variable $test:NAMES := ('a;b', \"c}\");",
+            "declare function test:render($id as xs:string, $count as xs:integer?) as element(div)",
+            "{",
+            "    let $smaller := if ($count < 10 and $count<5) then 'it''s' else \"\"\"\"",
+            "    return",
+            "        <div id=\"{$id}\" class='a''b'>",
+            "            <![CDATA[ } ]]><!-- { --><?pi } ?>",
+            "            don't { $smaller } {{ }}",
+            "            <span>{ for $i in (1 to $count) return <b>{ $i }</b> }</span>",
+            "        </div>",
+            "};",
+            "declare private function test:empty() {()};",
+            "declare function test:external($node as node()) as xs:boolean external;"
+        );
+
+        String skimmed = PrologSkimmer.skim(code.getCodeString());
+        Assert.assertNotNull(skimmed, "Library module");
+        Assert.assertEquals(StringUtils.countMatches(skimmed, "\n"), StringUtils.countMatches(code.getCodeString(), "\n"), "Lines");
+        Assert.assertFalse(skimmed.contains("<div"), "Function body should be skipped");
+        Assert.assertFalse(skimmed.contains("<config"), "Variable value should be skipped");
+
+        ProblemReporter reporter = new ProblemReporter();
+        new XQueryAstParser(code(skimmed), null).parse(reporter);
+        Assert.assertTrue(reporter.getProblems().isEmpty(), "Skimmed code should parse");
+
+        assertSameDeclarations(code);
+    }
+
+    @Test
+    public void testFallback() throws RecognitionException {
+        log("testFallback():");
+
+        // The comparison after a step named like a keyword looks like an
+        // element constructor, so the skimmed code doesn't parse and the
+        // complete code is used
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare function test:smaller($items as element(item)*) as xs:boolean",
+            "{",
+            "    fn:exists($items[order <limit])",
+            "};",
+            "declare variable $test:LIMIT as xs:integer := 10;"
+        );
+        assertSameDeclarations(code);
+    }
+
+    private void assertSameDeclarations(SourceCode code) throws RecognitionException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+
+        DependencyMapper full = new DependencyMapper();
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        parser.mapDependencies(parser.parse(reporter), full);
+
+        DependencyMapper declarations = new DependencyMapper();
+        parser.mapDependencies(parser.parseDeclarations(reporter), declarations);
+
+        Assert.assertFalse(full.getGlobalDeclarations().isEmpty(), "Declarations should be mapped");
+        Assert.assertEquals(describe(declarations), describe(full), "Declarations");
+    }
+
+    private List<String> describe(DependencyMapper mapper) {
+        List<String> descriptions = new ArrayList<String>();
+        for (Map.Entry<Integer, Declaration> entry : mapper.getGlobalDeclarations().entrySet()) {
+            String description = entry.getKey() + " " + entry.getValue();
+            if (entry.getValue() instanceof Function) {
+                List<String> parameters = new ArrayList<String>();
+                for (Declaration parameter : ((Function) entry.getValue()).getParameters().values()) {
+                    parameters.add(parameter.toString());
+                }
+                Collections.sort(parameters);
+                description += " " + parameters;
+            }
+            descriptions.add(description);
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+}
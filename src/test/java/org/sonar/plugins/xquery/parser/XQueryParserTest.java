@@ -4,8 +4,11 @@
 
 package org.sonar.plugins.xquery.parser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.RecognitionException;
 import org.sonar.plugins.xquery.AbstractSonarTest;
 import org.sonar.plugins.xquery.parser.reporter.Problem;
@@ -27,7 +30,7 @@ public class XQueryParserTest extends AbstractSonarTest {
             );
             Assert.fail("Should have gotten a syntax error");
         } catch (RuntimeException e) {
-            Assert.assertEquals(e.getMessage(), " - line 2:34 - no viable alternative at input 'cellpadding'", "Error message");
+            Assert.assertEquals(e.getMessage(), " - line 2:21 - no viable alternative at input 'cellpadding'", "Error message");
         }
     }   
     
@@ -678,6 +681,37 @@ public class XQueryParserTest extends AbstractSonarTest {
         Assert.assertEquals(tree.getValue("ModuleImport.ModuleAtHints.StringLiteral"), "/MarkLogic/admin.xqy", "First namespace 'at hint'");
     }
     
+    @Test
+    public void testNodeValues() throws RecognitionException {
+        log("testNodeValues():");
+        XQueryTree tree = parse(
+            code(
+                "xquery version '1.0-ml';",
+                "",
+                "  fn:concat('a', 'b')"
+            )
+        );
+        XQueryTree call = tree.find("FunctionCall");
+        XQueryTree arguments = call.find("ArgumentList");
+        Assert.assertEquals(call.getLine(), 3, "Line");
+        Assert.assertEquals(call.getCharPositionInLine(), 2, "Column");
+        Assert.assertEquals(arguments.getLine(), 3, "Arguments line");
+        Assert.assertEquals(arguments.getValue(), "Argument Argument", "Value");
+        Assert.assertSame(arguments.getValue(), arguments.getValue(), "Value should only be computed once");
+        Assert.assertSame(arguments.getTextValue(), arguments.getTextValue(), "Text value should only be computed once");
+
+        // Changing the children of a node resets the values of the nodes above
+        // it as well
+        XQueryTree argument = arguments.getChild(0);
+        argument.addChild(new XQueryTree(new CommonToken(XQueryParser.StringLiteral, "c")));
+        arguments.addChild(new XQueryTree(new CommonToken(XQueryParser.StringLiteral, "d")));
+        Assert.assertEquals(arguments.getValue(), "Argument Argument d", "Value after adding a child");
+        Assert.assertEquals(arguments.getTextValue(), "ArgumentArgumentd", "Text value after adding a child");
+        arguments.deleteChild(0);
+        arguments.deleteChild(0);
+        Assert.assertEquals(arguments.getLine(), 0, "Line after deleting the arguments");
+    }
+
     @Test
     public void testNamespaceAxis() throws RecognitionException {
         log("testNamespaceAxis():");
@@ -690,6 +724,33 @@ public class XQueryParserTest extends AbstractSonarTest {
         Assert.assertEquals(tree.getValue("QueryBody.ParenthesizedExpr.PathExpr"), "/ QName / namespace :: *", "XPath expression");
     }
     
+    @Test
+    public void testNodeIndex() throws RecognitionException {
+        log("testNodeIndex():");
+        XQueryTree tree = parse(
+            code(
+                "xquery version '1.0-ml';",
+                "declare function local:first($a) { fn:string($a) };",
+                "let $b := xdmp:node-uri(/a[fn:exists(b)])",
+                "return local:first(fn:concat($b, '-'))"
+            )
+        );
+        Assert.assertTrue(tree.isIndexed(), "Root should be indexed");
+
+        List<String> names = new ArrayList<String>();
+        for (XQueryTree call : tree.getNodes(XQueryParser.FunctionCall)) {
+            names.add(call.getTextValue("FunctionName.QName"));
+        }
+        Assert.assertEquals(names, Arrays.asList("fn:string", "xdmp:node-uri", "fn:exists", "local:first", "fn:concat"), "Function calls");
+        Assert.assertEquals(tree.getNodes(XQueryParser.FunctionDecl).size(), 1, "Function declarations");
+        Assert.assertTrue(tree.getNodes(XQueryParser.TypeswitchExpr).isEmpty(), "Typeswitch expressions");
+
+        // Nodes below the root search their part of the tree
+        XQueryTree let = tree.getNodes(XQueryParser.LetClause).get(0);
+        Assert.assertFalse(let.isIndexed(), "Child should not be indexed");
+        Assert.assertEquals(let.getNodes(XQueryParser.FunctionCall).size(), 2, "Function calls in the let clause");
+    }
+
     @Test
     public void testOldVersion() throws RecognitionException {
         log("testOldVersion():");
@@ -735,6 +796,31 @@ public class XQueryParserTest extends AbstractSonarTest {
         Assert.assertEquals(tree.getValue("OrderedDecls.OptionDecl.StringLiteral"), "true", "Option value");
     }             
 
+    @Test
+    public void testPathQuery() throws RecognitionException {
+        log("testPathQuery():");
+        XQueryTree tree = parse(
+            code(
+                "xquery version '1.0-ml';",
+                "declare variable $QName := 'QName';",
+                "declare variable $limit := 10;",
+                "fn:string($QName)"
+            )
+        );
+        Assert.assertSame(XQueryPath.compile("FunctionName.QName"), XQueryPath.compile("FunctionName.QName"), "Cached path");
+        Assert.assertEquals(tree.getTextValue("FunctionCall.FunctionName.QName"), "fn:string", "Function name");
+        Assert.assertEquals(tree.getChildTextValue("VarDecl.VarName.QName"), null, "Path without skipping levels");
+        Assert.assertEquals(tree.getValue("VarDecl.VarValue.StringLiteral"), "QName", "Variable value");
+        Assert.assertNull(tree.find("FunctionCall."), "Empty part of the path");
+        Assert.assertNull(tree.find(""), "Empty path");
+
+        // Parts are matched by node type, so a name with the same text as a
+        // node type doesn't match, but parts that aren't node types are
+        // matched by the text of the nodes
+        Assert.assertNull(tree.find("VarName.QName.QName"), "Name with the text of a node type");
+        Assert.assertEquals(tree.find("VarName.QName.limit").getText(), "limit", "Text match");
+    }
+
     @Test
     public void testPredicate() throws RecognitionException {
         log("testPredicate():");
@@ -0,0 +1,218 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryParser;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class XQueryAstDispatcherTest extends AbstractSonarTest {
+
+    @Test
+    public void testSameIssues() throws Exception {
+        log("testSameIssues():");
+        String[] code = new String[] {
+            "xquery version '1.0-ml';",
+            "declare namespace xh = 'http://www.w3.org/1999/xhtml';",
+            "declare variable $LIMIT := 10;",
+            "declare function local:render($id, $flag as xs:boolean) {",
+            "    let $articles := /article[@id eq $id][fn:count(.//author) gt 1]//text()",
+            "    for $article at $index in $articles[/config/name]",
+            "    order by $article/title",
+            "    return",
+            "        if ($flag) then xdmp:apply(xdmp:function(xs:QName('local:test')), $article) else ()",
+            "};",
+            "local:render('1', fn:true())"
+        };
+
+        List<String> expected = describe(analyze(code(code), false));
+        Assert.assertFalse(expected.isEmpty(), "Issues should be found");
+        Assert.assertEquals(describe(analyze(code(code), true)), expected, "Issues");
+    }
+
+    @Test
+    public void testTypes() throws RecognitionException {
+        log("testTypes():");
+        XQueryTree tree = parse(code(
+            "xquery version '1.0-ml';",
+            "declare variable $a := 1;",
+            "for $i in (1 to $a) return $i[. gt 0]"
+        ));
+
+        List<String> calls = new ArrayList<String>();
+        XQueryAstVisitor all = new RecordingVisitor("all", calls);
+        XQueryAstVisitor variables = new VariableVisitor("variables", calls);
+        XQueryAstVisitor predicates = new PredicateVisitor("predicates", calls);
+        XQueryAstVisitor none = new NoneVisitor("none", calls);
+        new XQueryAstDispatcher(Arrays.asList(new XQueryAstVisitor[] { variables, all, predicates, none })).visit(tree);
+
+        int nodes = count(tree);
+        int variableCalls = 0;
+        int predicateCalls = 0;
+        int allCalls = 0;
+        for (int i = 0; i < calls.size(); i++) {
+            String call = calls.get(i);
+            if (call.startsWith("enter all") || call.startsWith("exit all")) {
+                allCalls++;
+            } else if (call.startsWith("enter variables") || call.startsWith("exit variables")) {
+                Assert.assertTrue(call.endsWith(" " + XQueryParser.VarDecl) || call.endsWith(" " + XQueryParser.ForName), call);
+                variableCalls++;
+            } else if (call.startsWith("enter predicates") || call.startsWith("exit predicates")) {
+                Assert.assertTrue(call.endsWith(" " + XQueryParser.Predicate), call);
+                predicateCalls++;
+            } else {
+                Assert.fail("Unexpected call " + call);
+            }
+        }
+
+        // The visitors are still called in the order of the list
+        int variable = calls.indexOf("enter variables " + XQueryParser.VarDecl);
+        Assert.assertEquals(calls.get(variable + 1), "enter all " + XQueryParser.VarDecl, "Call after the variable visitor");
+        int predicate = calls.indexOf("enter predicates " + XQueryParser.Predicate);
+        Assert.assertEquals(calls.get(predicate - 1), "enter all " + XQueryParser.Predicate, "Call before the predicate visitor");
+
+        Assert.assertEquals(allCalls, nodes * 2, "Calls to the visitor for all nodes");
+        Assert.assertEquals(variableCalls, 4, "Calls to the variable visitor");
+        Assert.assertEquals(predicateCalls, 2, "Calls to the predicate visitor");
+    }
+
+    @Test
+    public void testInheritedTypes() {
+        log("testInheritedTypes():");
+        XQueryAstDispatcher dispatcher = new XQueryAstDispatcher(Arrays.asList(new XQueryAstVisitor[] {
+            new PredicateVisitor("predicates", null), new SubclassVisitor("subclass", null)
+        }));
+        Assert.assertEquals(dispatcher.getVisitors(XQueryParser.Predicate).length, 2, "Predicate visitors");
+        Assert.assertEquals(dispatcher.getVisitors(XQueryParser.PathExpr).length, 1, "Path visitors");
+        Assert.assertEquals(dispatcher.getVisitors(XQueryParser.VarDecl).length, 0, "Variable visitors");
+    }
+
+    /*
+     * Runs all the checks, either by dispatching the nodes or by calling every
+     * check for every node like before.
+     */
+    private SourceCode analyze(SourceCode code, boolean dispatch) throws Exception {
+        List<XQueryAstVisitor> visitors = new ArrayList<XQueryAstVisitor>();
+        for (Class<?> check : CheckClasses.getChecks()) {
+            visitors.add((XQueryAstVisitor) check.newInstance());
+        }
+        DependencyMapper mapper = new DependencyMapper();
+        mapper.setMode("local");
+        visitors.add(mapper);
+
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        XQueryAstParser parser = new XQueryAstParser(code, visitors);
+        XQueryTree tree = parser.parse(reporter);
+        if (dispatch) {
+            parser.process(tree, mapper, reporter);
+        } else {
+            for (XQueryAstVisitor visitor : visitors) {
+                visitor.enterSource(code, tree, mapper);
+            }
+            visitAll(tree, visitors);
+            for (XQueryAstVisitor visitor : visitors) {
+                visitor.exitSource(tree);
+                visitor.checkReport(reporter);
+            }
+        }
+        return code;
+    }
+
+    private void visitAll(XQueryTree node, List<XQueryAstVisitor> visitors) {
+        for (XQueryAstVisitor visitor : visitors) {
+            visitor.enterExpression(node);
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            visitAll(node.getChild(i), visitors);
+        }
+        for (XQueryAstVisitor visitor : visitors) {
+            visitor.exitExpression(node);
+        }
+    }
+
+    private int count(XQueryTree node) {
+        int count = 1;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            count += count(node.getChild(i));
+        }
+        return count;
+    }
+
+    private List<String> describe(SourceCode code) {
+        List<String> issues = new ArrayList<String>();
+        for (Issue issue : code.getIssues()) {
+            issues.add(issue.rule() + ":" + issue.line() + " " + issue.message());
+        }
+        return issues;
+    }
+
+    private static class RecordingVisitor implements XQueryAstVisitor {
+        private final String name;
+        private final List<String> calls;
+
+        private RecordingVisitor(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        public void enterSource(SourceCode code, XQueryTree node, DependencyMapper mapper) {
+        }
+
+        public void exitSource(XQueryTree node) {
+        }
+
+        public void enterExpression(XQueryTree node) {
+            calls.add("enter " + name + " " + node.getType());
+        }
+
+        public void exitExpression(XQueryTree node) {
+            calls.add("exit " + name + " " + node.getType());
+        }
+
+        public void checkReport(ProblemReporter reporter) {
+        }
+    }
+
+    @NodeTypes({ XQueryParser.VarDecl, XQueryParser.ForName })
+    private static class VariableVisitor extends RecordingVisitor {
+        private VariableVisitor(String name, List<String> calls) {
+            super(name, calls);
+        }
+    }
+
+    @NodeTypes({ XQueryParser.Predicate })
+    private static class PredicateVisitor extends RecordingVisitor {
+        private PredicateVisitor(String name, List<String> calls) {
+            super(name, calls);
+        }
+    }
+
+    @NodeTypes({ XQueryParser.PathExpr })
+    private static class SubclassVisitor extends PredicateVisitor {
+        private SubclassVisitor(String name, List<String> calls) {
+            super(name, calls);
+        }
+    }
+
+    @NodeTypes({})
+    private static class NoneVisitor extends RecordingVisitor {
+        private NoneVisitor(String name, List<String> calls) {
+            super(name, calls);
+        }
+    }
+}
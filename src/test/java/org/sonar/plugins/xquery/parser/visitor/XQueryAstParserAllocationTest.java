@@ -0,0 +1,216 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.plexus.util.FileUtils;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.CorpusGenerator;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.rules.CheckClasses;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Fails when parsing or checking code allocates more than it used to. The
+ * bytes allocated to parse each KB of code, and to run all the checks on a
+ * thousand nodes, are compared with the baseline in
+ * allocation-baseline.properties with a margin of 20% (set
+ * xquery.allocation.margin to change it, 0.5 is 50%). The code is a
+ * generated project that is always the same.
+ *
+ * The baseline depends on the JVM, so the build leaves these tests out: run
+ * them with -Dgroups=allocation, and add -Dxquery.allocation.update=true to
+ * write a new baseline to src/test/resources after an intended change, or on
+ * another JVM. The tests are skipped on JVMs that can't measure the bytes
+ * allocated by a thread.
+ */
+@Test(groups = "allocation")
+public class XQueryAstParserAllocationTest extends AbstractSonarTest {
+
+    public static final String BASELINE = "allocation-baseline.properties";
+
+    private static final boolean UPDATE = Boolean.getBoolean("xquery.allocation.update");
+    private static final double MARGIN = Double.parseDouble(System.getProperty("xquery.allocation.margin", "0.2"));
+
+    private static final int FILES = 40;
+    private static final int WARMUPS = 5;
+    private static final int ROUNDS = 5;
+
+    private com.sun.management.ThreadMXBean threads;
+    private File directory;
+    private List<SourceCode> sources;
+    private long chars;
+    private Properties baseline;
+    private Map<String, Long> measured = new TreeMap<String, Long>();
+
+    @BeforeClass
+    public void createSources() throws IOException {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("This JVM can't measure the bytes allocated by a thread");
+        }
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            throw new SkipException("This JVM can't measure the bytes allocated by a thread");
+        }
+
+        directory = new File(System.getProperty("java.io.tmpdir"), "xquery-ast-parser-allocation-test");
+        FileUtils.mkdir(directory.getAbsolutePath());
+        FileUtils.cleanDirectory(directory);
+        sources = new ArrayList<SourceCode>();
+        for (File file : new CorpusGenerator(42).generate(directory, FILES)) {
+            SourceCode sourceCode = new XQuerySourceCode(org.sonar.api.resources.File.create(file.getName()), file);
+            chars += sourceCode.getSource().length();
+            sources.add(sourceCode);
+        }
+
+        baseline = new Properties();
+        InputStream in = getClass().getResourceAsStream("/" + BASELINE);
+        if (in != null) {
+            try {
+                baseline.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void writeBaseline() throws IOException {
+        if (directory != null) {
+            FileUtils.deleteDirectory(directory);
+        }
+        if (UPDATE && !measured.isEmpty()) {
+            File file = new File(System.getProperty("basedir", "."), "src/test/resources/" + BASELINE);
+            FileUtils.mkdir(file.getParent());
+            StringBuffer text = new StringBuffer();
+            text.append("# Bytes allocated by XQueryAstParserAllocationTest, written with -Dxquery.allocation.update=true\n");
+            text.append("# on ").append(System.getProperty("java.vm.name")).append(" ").append(System.getProperty("java.version")).append("\n");
+            for (Map.Entry<String, Long> entry : measured.entrySet()) {
+                text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", text.toString());
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        for (int i = 0; i < WARMUPS; i++) {
+            parse(null, null);
+        }
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes = Math.min(bytes, parse(null, null));
+        }
+        check("parse.bytesPerKB", bytes * 1024 / chars);
+    }
+
+    @Test
+    public void testProcess() throws Exception {
+        List<XQueryTree> trees = new ArrayList<XQueryTree>();
+        List<ProblemReporter> reporters = new ArrayList<ProblemReporter>();
+        parse(trees, reporters);
+
+        // Map the declarations and set up the checks like the analysis does
+        DependencyMapper mapper = new DependencyMapper();
+        long nodes = 0;
+        for (int i = 0; i < trees.size(); i++) {
+            DependencyMapper fileMapper = new DependencyMapper();
+            new XQueryAstParser(sources.get(i), null).mapDependencies(trees.get(i), fileMapper);
+            mapper.addGlobalDeclarations(fileMapper);
+            nodes += count(trees.get(i));
+        }
+        mapper.setMode("local");
+        DependencyMapper localMapper = mapper.createLocalMapper();
+        List<XQueryAstVisitor> visitors = new ArrayList<XQueryAstVisitor>();
+        for (Class<?> checkClass : CheckClasses.getChecks()) {
+            visitors.add((XQueryAstVisitor) checkClass.newInstance());
+        }
+        visitors.add(localMapper);
+        XQueryAstDispatcher dispatcher = new XQueryAstDispatcher(visitors);
+
+        for (int i = 0; i < WARMUPS; i++) {
+            process(dispatcher, localMapper, trees, reporters);
+        }
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes = Math.min(bytes, process(dispatcher, localMapper, trees, reporters));
+        }
+        check("process.bytesPer1000Nodes", bytes * 1000 / nodes);
+    }
+
+    /*
+     * Parses all the files, keeping the trees and reporters if there are
+     * lists for them.
+     */
+    private long parse(List<XQueryTree> trees, List<ProblemReporter> reporters) throws Exception {
+        long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (SourceCode sourceCode : sources) {
+            ProblemReporter reporter = new ProblemReporter();
+            XQueryTree tree = new XQueryAstParser(sourceCode, null).parse(reporter);
+            if (trees != null) {
+                trees.add(tree);
+            }
+            if (reporters != null) {
+                reporters.add(reporter);
+            }
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    private long process(XQueryAstDispatcher dispatcher, DependencyMapper mapper, List<XQueryTree> trees, List<ProblemReporter> reporters) {
+        long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < sources.size(); i++) {
+            // Start over so the issues don't pile up from one round to the
+            // next
+            sources.get(i).getIssues().clear();
+            XQueryAstParser parser = new XQueryAstParser(sources.get(i), dispatcher.getVisitors());
+            parser.setDispatcher(dispatcher);
+            parser.process(trees.get(i), mapper, reporters.get(i));
+            mapper.resetStack();
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    private void check(String key, long value) {
+        measured.put(key, value);
+        if (UPDATE) {
+            return;
+        }
+        String expected = baseline.getProperty(key);
+        if (expected == null) {
+            throw new SonarException("There is no baseline for " + key + ", run the tests with -Dxquery.allocation.update=true to write it");
+        }
+        long limit = (long) (Long.parseLong(expected) * (1 + MARGIN));
+        Assert.assertTrue(value <= limit, key + " is " + value + " bytes, the baseline is " + expected + " (at most " + limit
+            + " with the margin)");
+    }
+
+    private static long count(XQueryTree node) {
+        long count = 1;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            count += count(node.getChild(i));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.reporter.Problem;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class XQueryAstParserTest extends AbstractSonarTest {
+
+    @Test
+    public void testReuseParsers() throws RecognitionException {
+        log("testReuseParsers():");
+        List<SourceCode> codes = new ArrayList<SourceCode>();
+        codes.add(code(
+            "xquery version '1.0-ml';",
+            "declare variable $name := \"it's {{escaped}}\";",
+            "<ul class='list' data-name=\"{$name}\">{",
+            "    for $i in (1 to 3) return <li>{ $i }<!-- item --></li>",
+            "}</ul>"
+        ));
+
+        // Stops in the middle of a constructor and a string, so the lexers
+        // that were pushed are never popped
+        codes.add(code(
+            "xquery version '1.0-ml';",
+            "<a href=\"{ fn:concat('x', \"unfinished"
+        ));
+        codes.add(code(
+            "xquery version '1.0-ml';",
+            "let $a := <a>{ 1 + }</a>",
+            "return $a["
+        ));
+
+        // No version, so "private" is an error unless the language of the file
+        // before is used
+        codes.add(code(
+            "declare private function local:test($a) { <b>{ $a }</b> };",
+            "local:test('a' || \"b\")"
+        ));
+        codes.add(code(
+            "xquery version '0.9-ml';",
+            "declare namespace xh = 'http://www.w3.org/1999/xhtml';",
+            "<xh:p title='{ \"a\" }'>{ xdmp:log('b') }</xh:p>"
+        ));
+
+        for (int i = 0; i < 3; i++) {
+            for (SourceCode code : codes) {
+                Assert.assertEquals(describe(code, true), describe(code, false), "Tree of " + code);
+            }
+        }
+    }
+
+    private String describe(SourceCode code, boolean reuse) throws RecognitionException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        parser.setReuseParsers(reuse);
+
+        StringBuffer description = new StringBuffer(parser.parse(reporter).toStringTree());
+        for (Problem problem : reporter.getProblems()) {
+            description.append('\n').append(problem.getMessageString());
+        }
+        return description.toString();
+    }
+}